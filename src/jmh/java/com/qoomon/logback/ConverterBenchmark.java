@@ -0,0 +1,197 @@
+package com.qoomon.logback;
+
+import java.util.concurrent.TimeUnit;
+
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.Threads;
+import org.openjdk.jmh.annotations.Warmup;
+
+import ch.qos.logback.classic.Level;
+import ch.qos.logback.classic.Logger;
+import ch.qos.logback.classic.LoggerContext;
+import ch.qos.logback.classic.pattern.MessageConverter;
+import ch.qos.logback.classic.spi.LoggingEvent;
+import ch.qos.logback.classic.util.LogbackMDCAdapter;
+
+/**
+ * Measures the cost per event of {@link RelativeCompositeConverter} and {@link HighlightingCompositeConverter}.
+ * <p>
+ * Like in a layout, the converters are shared by all benchmark threads, while every thread has events of its own. The relative converter is measured with a timestamp that repeats, which it caches, and with a new timestamp for every event. The
+ * highlighting converter cycles through all levels and wraps the message, <code>plain</code> converts the message alone for comparison, <code>highlightingUncolored</code> passes it through with color mode
+ * <code>never</code>. Run with <code>-prof gc</code> to see the allocation rate.
+ *
+ * @author bengtbrodersen
+ *
+ */
+@State(Scope.Benchmark)
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.NANOSECONDS)
+@Warmup(iterations = 3, time = 1)
+@Measurement(iterations = 5, time = 1)
+@Fork(1)
+public class ConverterBenchmark
+{
+
+    private static final Level[]           LEVELS = { Level.ERROR, Level.WARN, Level.INFO, Level.DEBUG, Level.TRACE };
+
+    private LoggerContext                  context;
+    private RelativeCompositeConverter     relativeConverter;
+    private HighlightingCompositeConverter highlightingConverter;
+    private HighlightingCompositeConverter uncoloredConverter;
+    private MessageConverter               messageConverter;
+
+
+
+
+    @Setup
+    public void setUp()
+    {
+        this.context = new LoggerContext();
+        this.context.setMDCAdapter(new LogbackMDCAdapter());
+
+        this.relativeConverter = new RelativeCompositeConverter();
+        this.relativeConverter.setContext(this.context);
+        this.relativeConverter.start();
+
+        this.messageConverter = new MessageConverter();
+        this.messageConverter.start();
+
+        final MessageConverter childConverter = new MessageConverter();
+        childConverter.start();
+        this.highlightingConverter = new HighlightingCompositeConverter();
+        this.highlightingConverter.setContext(this.context);
+        this.highlightingConverter.setChildConverter(childConverter);
+        this.highlightingConverter.start();
+
+        this.uncoloredConverter = new HighlightingCompositeConverter();
+        this.uncoloredConverter.setContext(this.context);
+        this.uncoloredConverter.setChildConverter(childConverter);
+        this.uncoloredConverter.setColor(HighlightingCompositeConverter.COLOR_NEVER);
+        this.uncoloredConverter.start();
+    }
+
+
+
+
+    @Benchmark
+    public String relativeRepeatedTimestamp(final Events events)
+    {
+        return this.relativeConverter.transform(events.first, null);
+    }
+
+
+
+
+    @Benchmark
+    public String relativeNewTimestamp(final Events events)
+    {
+        return this.relativeConverter.transform(events.nextTimestamp(), null);
+    }
+
+
+
+
+    @Benchmark
+    @Threads(4)
+    public String relativeNewTimestamp4Threads(final Events events)
+    {
+        return this.relativeConverter.transform(events.nextTimestamp(), null);
+    }
+
+
+
+
+    @Benchmark
+    public String plain(final Events events)
+    {
+        return this.messageConverter.convert(events.nextLevel());
+    }
+
+
+
+
+    @Benchmark
+    public String highlighting(final Events events)
+    {
+        return this.highlightingConverter.convert(events.nextLevel());
+    }
+
+
+
+
+    @Benchmark
+    public String highlightingUncolored(final Events events)
+    {
+        return this.uncoloredConverter.convert(events.nextLevel());
+    }
+
+
+
+
+    @Benchmark
+    @Threads(4)
+    public String highlighting4Threads(final Events events)
+    {
+        return this.highlightingConverter.convert(events.nextLevel());
+    }
+
+
+
+
+    /**
+     * The events of a single benchmark thread, one per level.
+     */
+    @State(Scope.Thread)
+    public static class Events
+    {
+        private LoggingEvent[] events;
+        private LoggingEvent   first;
+        private long           timestamp;
+        private int            index;
+
+
+
+
+        @Setup
+        public void setUp(final ConverterBenchmark benchmark)
+        {
+            final Logger logger = benchmark.context.getLogger(ConverterBenchmark.class);
+            this.events = new LoggingEvent[LEVELS.length];
+            for (int i = 0; i < LEVELS.length; i++)
+            {
+                this.events[i] = new LoggingEvent(Logger.FQCN, logger, LEVELS[i], "benchmark event", null, null);
+            }
+            this.first = this.events[0];
+            // more than a week after the context started, so every field of the relative time is printed
+            this.timestamp = benchmark.context.getBirthTime() + TimeUnit.DAYS.toMillis(8) + 12345;
+            this.first.setTimeStamp(this.timestamp);
+        }
+
+
+
+
+        LoggingEvent nextTimestamp()
+        {
+            this.first.setTimeStamp(++this.timestamp);
+            return this.first;
+        }
+
+
+
+
+        LoggingEvent nextLevel()
+        {
+            this.index = (this.index + 1) % this.events.length;
+            return this.events[this.index];
+        }
+    }
+
+}
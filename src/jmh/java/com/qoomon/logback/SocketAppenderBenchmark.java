@@ -0,0 +1,240 @@
+package com.qoomon.logback;
+
+import java.io.IOException;
+import java.io.InputStream;
+import java.net.InetAddress;
+import java.net.ServerSocket;
+import java.net.Socket;
+import java.util.concurrent.TimeUnit;
+
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Level;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.TearDown;
+import org.openjdk.jmh.annotations.Threads;
+import org.openjdk.jmh.annotations.Warmup;
+
+import ch.qos.logback.classic.Logger;
+import ch.qos.logback.classic.LoggerContext;
+import ch.qos.logback.classic.encoder.PatternLayoutEncoder;
+import ch.qos.logback.classic.util.LogbackMDCAdapter;
+
+/**
+ * Measures {@link SocketAppender#append(ch.qos.logback.classic.spi.ILoggingEvent) append} throughput and latency with 1, 4, 16 and 64 logging threads.
+ * <p>
+ * The appender sends to a sink in the same JVM that reads and discards everything. The <code>block</code> overflow policy makes the appending threads wait for the dispatcher, so the throughput is the one that is actually delivered, not the
+ * rate at which events are dropped. The metrics of the appender are printed after every trial.
+ *
+ * @author bengtbrodersen
+ *
+ */
+@State(Scope.Benchmark)
+@BenchmarkMode({ Mode.Throughput, Mode.SampleTime })
+@OutputTimeUnit(TimeUnit.MICROSECONDS)
+@Warmup(iterations = 3, time = 2)
+@Measurement(iterations = 5, time = 2)
+@Fork(1)
+public class SocketAppenderBenchmark
+{
+
+    @Param({ AbstractSocketAppender.TRANSPORT_BLOCKING, AbstractSocketAppender.TRANSPORT_NIO })
+    public String          transport;
+
+    @Param({ AbstractSocketAppender.QUEUE_TYPE_ARRAY, AbstractSocketAppender.QUEUE_TYPE_RING_BUFFER })
+    public String          queueType;
+
+    @Param({ "64" })
+    public int             batchSize;
+
+    @Param({ "false", "true" })
+    public boolean         recycleEvents;
+
+    private Sink           sink;
+    private LoggerContext  context;
+    private SocketAppender appender;
+    private Logger         logger;
+
+
+
+
+    @Setup(Level.Trial)
+    public void setUp() throws IOException
+    {
+        this.sink = new Sink();
+
+        this.context = new LoggerContext();
+        this.context.setMDCAdapter(new LogbackMDCAdapter());
+
+        final PatternLayoutEncoder encoder = new PatternLayoutEncoder();
+        encoder.setContext(this.context);
+        encoder.setPattern("%date %level [%thread] %logger - %msg%n");
+        encoder.start();
+
+        this.appender = new SocketAppender();
+        this.appender.setContext(this.context);
+        this.appender.setName("benchmark");
+        this.appender.setRemoteHost(InetAddress.getLoopbackAddress().getHostAddress());
+        this.appender.setPort(this.sink.getPort());
+        this.appender.setEncoder(encoder);
+        this.appender.setQueueSize(8192);
+        this.appender.setQueueType(this.queueType);
+        this.appender.setTransport(this.transport);
+        this.appender.setBatchSize(this.batchSize);
+        this.appender.setRecycleEvents(this.recycleEvents);
+        this.appender.setOverflowPolicy(OverflowPolicy.BLOCK.name());
+        this.appender.setBlockingTimeout(1000);
+        this.appender.start();
+
+        this.logger = this.context.getLogger(SocketAppenderBenchmark.class);
+        this.logger.setAdditive(false);
+        this.logger.addAppender(this.appender);
+    }
+
+
+
+
+    @TearDown(Level.Trial)
+    public void tearDown() throws IOException
+    {
+        System.out.println();
+        System.out.println(this.appender.getMetrics());
+        this.context.stop();
+        this.sink.close();
+    }
+
+
+
+
+    @Benchmark
+    @Threads(1)
+    public void append1Thread()
+    {
+        this.append();
+    }
+
+
+
+
+    @Benchmark
+    @Threads(4)
+    public void append4Threads()
+    {
+        this.append();
+    }
+
+
+
+
+    @Benchmark
+    @Threads(16)
+    public void append16Threads()
+    {
+        this.append();
+    }
+
+
+
+
+    @Benchmark
+    @Threads(64)
+    public void append64Threads()
+    {
+        this.append();
+    }
+
+
+
+
+    private void append()
+    {
+        this.logger.info("benchmark event {}", this.batchSize);
+    }
+
+
+
+
+    /**
+     * Accepts connections on the loopback interface and discards everything it reads.
+     */
+    static final class Sink implements Runnable
+    {
+        private final ServerSocket serverSocket;
+
+
+
+
+        Sink() throws IOException
+        {
+            this.serverSocket = new ServerSocket(0, 50, InetAddress.getLoopbackAddress());
+            final Thread thread = new Thread(this, "benchmark-sink");
+            thread.setDaemon(true);
+            thread.start();
+        }
+
+
+
+
+        int getPort()
+        {
+            return this.serverSocket.getLocalPort();
+        }
+
+
+
+
+        @Override
+        public void run()
+        {
+            try
+            {
+                while (true)
+                {
+                    final Socket socket = this.serverSocket.accept();
+                    final Thread reader = new Thread(new Runnable()
+                    {
+                        @Override
+                        public void run()
+                        {
+                            final byte[] buffer = new byte[64 * 1024];
+                            try
+                            {
+                                final InputStream in = socket.getInputStream();
+                                while (in.read(buffer) >= 0)
+                                {
+                                    // discard
+                                }
+                            }
+                            catch (final IOException ex)
+                            {
+                                assert true; // connection closed
+                            }
+                        }
+                    }, "benchmark-sink-reader");
+                    reader.setDaemon(true);
+                    reader.start();
+                }
+            }
+            catch (final IOException ex)
+            {
+                assert true; // sink closed
+            }
+        }
+
+
+
+
+        void close() throws IOException
+        {
+            this.serverSocket.close();
+        }
+    }
+
+}
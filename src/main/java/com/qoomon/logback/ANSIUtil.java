@@ -1,7 +1,14 @@
 package com.qoomon.logback;
 
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentMap;
+
 /**
  * http://pueblo.sourceforge.net/doc/manual/ansi_color_codes.html
+ * <p>
+ * Styles are compiled into a single SGR sequence, <code>ESC[37;41;1m</code> instead of <code>ESC[37mESC[41mESC[1m</code>, and cached by their codes.
  *
  * @author bengtbrodersen
  *
@@ -46,31 +53,116 @@ public final class ANSIUtil
     public final static String WHITE_BG          = "47";
     public final static String DEFAULT_BG        = "49";
 
+    public final static String EXTENDED_FG       = "38";
+    public final static String EXTENDED_BG       = "48";
+
+
+
+
+    public final static String SEPARATOR         = ";";
 
+    private final static String EXTENDED_COLOR_INDEXED = "5";
+    private final static String EXTENDED_COLOR_RGB     = "2";
 
+    private static final ConcurrentMap<String, String> STYLES = new ConcurrentHashMap<String, String>();
 
+
+
+
+    /**
+     * Compiles the codes into one escape sequence. Codes may hold several parameters separated by {@link #SEPARATOR}. Blank codes are ignored, codes before a {@link #RESET} are dropped and a repeated code is only kept at its last position, since it would not change anything elsewhere. An extended colour, <code>38;5;n</code> or <code>38;2;r;g;b</code> and the same with <code>48</code>, counts as one code together with its parameters.
+     *
+     * @return the escape sequence, or an empty string if no code is left
+     */
     public static String set(final String... codes)
     {
-        final StringBuffer builder = new StringBuffer();
+        final StringBuilder keyBuilder = new StringBuilder();
         for (final String code : codes)
         {
-            builder.append(set(code));
+            keyBuilder.append(code).append(SEPARATOR);
         }
-        return builder.toString();
+        final String key = keyBuilder.toString();
+        final String cached = STYLES.get(key);
+        if (cached != null)
+        {
+            return cached;
+        }
+        final String style = compile(codes);
+        final String previous = STYLES.putIfAbsent(key, style);
+        return previous != null ? previous : style;
+    }
+
 
+
+
+    private static String compile(final String... codes)
+    {
+        final List<String> parameters = new ArrayList<String>(codes.length);
+        for (final String code : codes)
+        {
+            for (final String parameter : code.split(SEPARATOR))
+            {
+                final String trimmed = parameter.trim();
+                if (!trimmed.isEmpty())
+                {
+                    parameters.add(trimmed);
+                }
+            }
+        }
+
+        final List<String> merged = new ArrayList<String>(parameters.size());
+        for (int i = 0; i < parameters.size(); i++)
+        {
+            // an extended colour and its parameters form one code, so they are neither taken for a reset nor deduplicated on their own
+            final int extension = extendedColorParameterCount(parameters, i);
+            final String code = join(parameters, i, i + 1 + extension);
+            i += extension;
+            if (code.equals(RESET))
+            {
+                merged.clear();
+            }
+            merged.remove(code);
+            merged.add(code);
+        }
+        if (merged.isEmpty())
+        {
+            return "";
+        }
+        return ESC_START + join(merged, 0, merged.size()) + ESC_END;
     }
 
 
 
 
-    private static StringBuffer set(final String code)
+    /**
+     * Returns the number of parameters following an extended foreground or background colour at the index, <code>38;5;n</code> or <code>38;2;r;g;b</code>, or 0 if there is none.
+     */
+    private static int extendedColorParameterCount(final List<String> parameters, final int index)
     {
-        final StringBuffer builder = new StringBuffer()
-                .append(ESC_START)
-                .append(code)
-                .append(ESC_END);
+        final String code = parameters.get(index);
+        if (!code.equals(EXTENDED_FG) && !code.equals(EXTENDED_BG) || index + 1 >= parameters.size())
+        {
+            return 0;
+        }
+        final String mode = parameters.get(index + 1);
+        final int count = mode.equals(EXTENDED_COLOR_INDEXED) ? 2 : mode.equals(EXTENDED_COLOR_RGB) ? 4 : 1;
+        return Math.min(count, parameters.size() - index - 1);
+    }
+
+
 
-        return builder;
 
+    private static String join(final List<String> codes, final int from, final int to)
+    {
+        final StringBuilder builder = new StringBuilder();
+        for (int i = from; i < to; i++)
+        {
+            if (i > from)
+            {
+                builder.append(SEPARATOR);
+            }
+            builder.append(codes.get(i));
+        }
+        return builder.toString();
     }
 }
@@ -1,26 +1,55 @@
 package com.qoomon.logback;
 
+import java.io.ByteArrayOutputStream;
+import java.io.File;
+import java.io.FilterOutputStream;
 import java.io.IOException;
 import java.io.OutputStream;
+import java.lang.management.ManagementFactory;
 import java.net.ConnectException;
 import java.net.InetAddress;
 import java.net.Socket;
 import java.net.UnknownHostException;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.Iterator;
+import java.util.List;
+import java.util.Map;
+import java.util.TreeMap;
 import java.util.concurrent.ArrayBlockingQueue;
 import java.util.concurrent.BlockingQueue;
+import java.util.concurrent.CancellationException;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentMap;
 import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
 import java.util.concurrent.Future;
 import java.util.concurrent.RejectedExecutionException;
 import java.util.concurrent.SynchronousQueue;
-
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.ThreadFactory;
+import java.util.concurrent.TimeoutException;
+import java.util.concurrent.atomic.AtomicBoolean;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.zip.Deflater;
+
+import javax.management.JMException;
+import javax.management.ObjectName;
 import javax.net.SocketFactory;
 
+import ch.qos.logback.core.Appender;
 import ch.qos.logback.core.AppenderBase;
 import ch.qos.logback.core.encoder.Encoder;
 import ch.qos.logback.core.net.DefaultSocketConnector;
 import ch.qos.logback.core.net.SocketConnector;
+import ch.qos.logback.core.spi.AppenderAttachable;
+import ch.qos.logback.core.spi.AppenderAttachableImpl;
+import ch.qos.logback.core.spi.LifeCycle;
+import ch.qos.logback.core.spi.PreSerializationTransformer;
 import ch.qos.logback.core.status.ErrorStatus;
 import ch.qos.logback.core.util.CloseUtil;
+import ch.qos.logback.core.util.FileSize;
 
 /**
  * An abstract base for module specific {@code SocketAppender} implementations in other logback modules.
@@ -31,7 +60,7 @@ import ch.qos.logback.core.util.CloseUtil;
  */
 
 public abstract class AbstractSocketAppender<E> extends AppenderBase<E>
-        implements Runnable, SocketConnector.ExceptionHandler
+        implements SocketConnector.ExceptionHandler, AppenderAttachable<E>
 {
 
     /**
@@ -49,6 +78,141 @@ public abstract class AbstractSocketAppender<E> extends AppenderBase<E>
      */
     public static final int  DEFAULT_QUEUE_SIZE              = 0;
 
+    /**
+     * Default maximum number of logging events that are encoded and written to the remote peer at once.
+     */
+    public static final int  DEFAULT_BATCH_SIZE              = 1;
+
+    /**
+     * Default time to wait for further logging events before a batch is written (0, write what is available).
+     */
+    public static final int  DEFAULT_LINGER_MILLIS           = 0;
+
+    /**
+     * Default type of the queue used to hold logging events.
+     */
+    public static final String DEFAULT_QUEUE_TYPE            = "array";
+
+    /**
+     * Queue type of a (bounded) {@link ArrayBlockingQueue}, or a {@link SynchronousQueue} if the queue size is zero.
+     */
+    public static final String QUEUE_TYPE_ARRAY              = "array";
+
+    /**
+     * Queue type of a lock-free {@link RingBufferQueue}.
+     */
+    public static final String QUEUE_TYPE_RING_BUFFER        = "ringBuffer";
+
+    /**
+     * Default strategy the dispatcher uses to wait for logging events on a {@link RingBufferQueue}.
+     */
+    public static final String DEFAULT_WAIT_STRATEGY         = "blocking";
+
+    /**
+     * Default number of parallel connections to the remote peers.
+     */
+    public static final int  DEFAULT_CONNECTIONS             = 1;
+
+    /**
+     * Default distribution of connections across multiple endpoints, round robin.
+     */
+    public static final String DEFAULT_LOAD_BALANCING        = EndpointGroup.ROUND_ROBIN;
+
+    /**
+     * Default interval after which the addresses of the remote hosts are resolved again (60000 milliseconds or 1 minute).
+     */
+    public static final int  DEFAULT_DNS_REFRESH_INTERVAL    = 60000;
+
+    /**
+     * Default transport, a blocking socket served by a dispatcher thread of its own.
+     */
+    public static final String DEFAULT_TRANSPORT             = "blocking";
+
+    /**
+     * Transport of a blocking {@link Socket} written by a dispatcher task of the context's executor.
+     */
+    public static final String TRANSPORT_BLOCKING            = "blocking";
+
+    /**
+     * Transport of a non-blocking {@link java.nio.channels.SocketChannel} written by the I/O threads shared by all socket appenders of the context.
+     */
+    public static final String TRANSPORT_NIO                 = "nio";
+
+    /**
+     * Default number of I/O threads of the nio transport, shared by all socket appenders of the context.
+     */
+    public static final int  DEFAULT_IO_THREADS              = 1;
+
+    /**
+     * Default compression of the stream to the remote peer, none.
+     */
+    public static final String DEFAULT_COMPRESSION           = "none";
+
+    /**
+     * No compression.
+     */
+    public static final String COMPRESSION_NONE              = "none";
+
+    /**
+     * Deflate compression, flushed per batch, see {@link CompressingOutputStream}.
+     */
+    public static final String COMPRESSION_DEFLATE           = "deflate";
+
+    /**
+     * Default deflate compression level, fastest.
+     */
+    public static final int  DEFAULT_COMPRESSION_LEVEL       = Deflater.BEST_SPEED;
+
+    /**
+     * Default policy when the queue is full, drop the appended event.
+     */
+    public static final String DEFAULT_OVERFLOW_POLICY       = "dropNewest";
+
+    /**
+     * Default time an appending thread waits for space in the queue with the {@link OverflowPolicy#BLOCK} policy (100 milliseconds).
+     */
+    public static final int  DEFAULT_BLOCKING_TIMEOUT        = 100;
+
+    /**
+     * Default size of a single spill segment file (16 MB).
+     */
+    public static final long DEFAULT_SPILL_SEGMENT_SIZE      = 16 * FileSize.MB_COEFFICIENT;
+
+    /**
+     * Default maximum total size of all spill segment files (1 GB).
+     */
+    public static final long DEFAULT_MAX_SPILL_SIZE          = FileSize.GB_COEFFICIENT;
+
+    /**
+     * Name under which dropped events are counted that have no level.
+     */
+    public static final String UNLEVELED                     = "UNLEVELED";
+
+    /**
+     * Domain of the {@link ObjectName} the metrics are registered under with the <b>jmx</b> property.
+     */
+    public static final String JMX_DOMAIN                    = "com.qoomon.logback";
+
+    /**
+     * Default time {@link #stop()} waits for queued events to be delivered (1000 milliseconds).
+     */
+    public static final int  DEFAULT_DRAIN_TIMEOUT           = 1000;
+
+    /**
+     * Interval in milliseconds {@link #stop()} checks whether the non-blocking connections are drained.
+     */
+    private static final int DRAIN_POLL_INTERVAL             = 5;
+
+    /**
+     * Initial capacity of the buffer a batch of logging events is encoded into.
+     */
+    private static final int INITIAL_BATCH_BUFFER_SIZE       = 8192;
+
+    /**
+     * Minimum number of events per batch while draining the queue on {@link #stop()}.
+     */
+    static final int         DRAIN_BATCH_SIZE                = 512;
+
     /**
      * Default timeout when waiting for the remote server to accept our connection.
      */
@@ -61,17 +225,53 @@ public abstract class AbstractSocketAppender<E> extends AppenderBase<E>
 
     private String           remoteHost;
     private int              port                            = DEFAULT_PORT;
-    private InetAddress      address;
+    private String           endpoints;
+    private String           loadBalancing                   = DEFAULT_LOAD_BALANCING;
+    private int              dnsRefreshInterval              = DEFAULT_DNS_REFRESH_INTERVAL;
+    private int              connections                     = DEFAULT_CONNECTIONS;
+    private String           shardBy;
     private int              reconnectionDelay               = DEFAULT_RECONNECTION_DELAY;
+    private ReconnectionPolicy reconnectionPolicy;
+    private int              circuitBreakerThreshold;
+    private int              drainTimeout                    = DEFAULT_DRAIN_TIMEOUT;
     private int              queueSize                       = DEFAULT_QUEUE_SIZE;
     private int              acceptConnectionTimeout         = DEFAULT_ACCEPT_CONNECTION_DELAY;
-
-    private BlockingQueue<E> queue;
+    private int              batchSize                       = DEFAULT_BATCH_SIZE;
+    private int              lingerMillis                    = DEFAULT_LINGER_MILLIS;
+    private String           queueType                       = DEFAULT_QUEUE_TYPE;
+    private String           waitStrategy                    = DEFAULT_WAIT_STRATEGY;
+    private String           overflowPolicyName              = DEFAULT_OVERFLOW_POLICY;
+    private int              blockingTimeout                 = DEFAULT_BLOCKING_TIMEOUT;
+    private String           transport                       = DEFAULT_TRANSPORT;
+    private int              ioThreads                       = DEFAULT_IO_THREADS;
+    private boolean          virtualThreads;
+    private String           compression                     = DEFAULT_COMPRESSION;
+    private int              compressionLevel                = DEFAULT_COMPRESSION_LEVEL;
+    private String           spillDirectory;
+    private FileSize         spillSegmentSize                = new FileSize(DEFAULT_SPILL_SEGMENT_SIZE);
+    private FileSize         maxSpillSize                    = new FileSize(DEFAULT_MAX_SPILL_SIZE);
+    private boolean          jmx;
+    private boolean          recycleEvents;
+
+    private OverflowPolicy   overflowPolicy;
+    private final ConcurrentMap<String, AtomicLong> droppedEvents = new ConcurrentHashMap<String, AtomicLong>();
+    private final AtomicBoolean dropReported                 = new AtomicBoolean();
+    private final SocketAppenderMetrics metrics              = new SocketAppenderMetrics(this);
+    private final AppenderAttachableImpl<E> fallbackAppenders = new AppenderAttachableImpl<E>();
+    private ObjectName       metricsName;
+
+    private List<BlockingQueue<E>> queues;
+    private EndpointGroup    endpointGroup;
     private String           peerId;
-    private Future<?>        task;
-    private Future<Socket>   connectorTask;
+    private List<Dispatcher> dispatchers;
+    private ExecutorService  dispatcherExecutor;
 
-    private volatile Socket  socket;
+    private SpillQueue       spillQueue;
+    private SpillSerializer  spillSerializer;
+    private volatile boolean queuesClosed;
+    private List<NioSocketConnection<E>> nioConnections;
+    private BlockingQueue<E> recycledEvents;
+    private Class<?>         recycledEventClass;
 
 
 
@@ -132,7 +332,7 @@ public abstract class AbstractSocketAppender<E> extends AppenderBase<E>
                     + " For more information, please visit http://logback.qos.ch/codes.html#socket_no_port");
         }
 
-        if (this.remoteHost == null)
+        if (this.remoteHost == null && this.endpoints == null)
         {
             errorCount++;
             this.addError("No remote host was configured for appender"
@@ -146,326 +346,528 @@ public abstract class AbstractSocketAppender<E> extends AppenderBase<E>
             this.addError("Queue size must be non-negative");
         }
 
-        if (errorCount == 0)
+        if (this.batchSize < 1)
         {
-            try
-            {
-                this.address = InetAddress.getByName(this.remoteHost);
-            }
-            catch (final UnknownHostException ex)
-            {
-                this.addError("unknown host: " + this.remoteHost);
-                errorCount++;
-            }
+            errorCount++;
+            this.addError("Batch size must be positive");
+        }
+
+        if (this.lingerMillis < 0)
+        {
+            errorCount++;
+            this.addError("Linger millis must be non-negative");
+        }
+
+        if (!QUEUE_TYPE_ARRAY.equalsIgnoreCase(this.queueType)
+                && !QUEUE_TYPE_RING_BUFFER.equalsIgnoreCase(this.queueType))
+        {
+            errorCount++;
+            this.addError("Unknown queue type \"" + this.queueType + "\", expected \""
+                    + QUEUE_TYPE_ARRAY + "\" or \"" + QUEUE_TYPE_RING_BUFFER + "\"");
+        }
+        else if (QUEUE_TYPE_RING_BUFFER.equalsIgnoreCase(this.queueType) && this.queueSize == 0)
+        {
+            errorCount++;
+            this.addError("Queue type \"" + QUEUE_TYPE_RING_BUFFER + "\" requires a positive queue size");
+        }
+
+        try
+        {
+            WaitStrategy.fromName(String.valueOf(this.waitStrategy));
+        }
+        catch (final IllegalArgumentException ex)
+        {
+            errorCount++;
+            this.addError("Unknown wait strategy \"" + this.waitStrategy + "\"");
+        }
+
+        try
+        {
+            this.overflowPolicy = OverflowPolicy.fromName(String.valueOf(this.overflowPolicyName));
+        }
+        catch (final IllegalArgumentException ex)
+        {
+            errorCount++;
+            this.addError("Unknown overflow policy \"" + this.overflowPolicyName + "\"");
+        }
+
+        if (this.blockingTimeout < 0)
+        {
+            errorCount++;
+            this.addError("Blocking timeout must be non-negative");
+        }
+
+        if (this.drainTimeout < 0)
+        {
+            errorCount++;
+            this.addError("Drain timeout must be non-negative");
+        }
+
+        if (!EndpointGroup.isLoadBalancing(this.loadBalancing))
+        {
+            errorCount++;
+            this.addError("Unknown load balancing \"" + this.loadBalancing + "\", expected \""
+                    + EndpointGroup.ROUND_ROBIN + "\" or \"" + EndpointGroup.LEAST_LOADED + "\"");
         }
 
         if (errorCount == 0)
         {
-            this.queue = this.newBlockingQueue(this.queueSize);
-            this.peerId = "remote peer " + this.remoteHost + ":" + this.port + ": ";
-            this.task = this.getContext().getExecutorService().submit(this);
-            super.start();
+            errorCount += this.initEndpoints();
         }
-    }
 
+        if (this.connections < 1)
+        {
+            errorCount++;
+            this.addError("Connections must be positive");
+        }
 
+        if (this.ioThreads < 1)
+        {
+            errorCount++;
+            this.addError("I/O threads must be positive");
+        }
 
+        if (this.circuitBreakerThreshold < 0)
+        {
+            errorCount++;
+            this.addError("Circuit breaker threshold must be non-negative");
+        }
 
-    /**
-     * {@inheritDoc}
-     */
-    @Override
-    public void stop()
-    {
-        if (!this.isStarted())
+        if (this.shardBy != null && !this.isShardBy(this.shardBy))
         {
-            return;
+            errorCount++;
+            this.addError("Unsupported shardBy \"" + this.shardBy + "\" for appender named [" + this.name + "]");
         }
-        this.encoderClose();
-        CloseUtil.closeQuietly(this.socket);
-        this.task.cancel(true);
-        if (this.connectorTask != null)
+
+        if (this.recycleEvents && this.newRecycledEvent() == null)
         {
-            this.connectorTask.cancel(true);
+            errorCount++;
+            this.addError("Appender named [" + this.name + "] does not support recycling events");
         }
-        super.stop();
-    }
 
+        if (!TRANSPORT_BLOCKING.equalsIgnoreCase(this.transport) && !TRANSPORT_NIO.equalsIgnoreCase(this.transport))
+        {
+            errorCount++;
+            this.addError("Unknown transport \"" + this.transport + "\", expected \""
+                    + TRANSPORT_BLOCKING + "\" or \"" + TRANSPORT_NIO + "\"");
+        }
+        else if (TRANSPORT_NIO.equalsIgnoreCase(this.transport) && this.queueSize == 0)
+        {
+            errorCount++;
+            this.addError("Transport \"" + TRANSPORT_NIO + "\" requires a positive queue size");
+        }
 
+        if (!COMPRESSION_NONE.equalsIgnoreCase(this.compression) && !COMPRESSION_DEFLATE.equalsIgnoreCase(this.compression))
+        {
+            errorCount++;
+            this.addError("Unknown compression \"" + this.compression + "\", expected \""
+                    + COMPRESSION_NONE + "\" or \"" + COMPRESSION_DEFLATE + "\"");
+        }
 
+        if (this.compressionLevel < Deflater.BEST_SPEED || this.compressionLevel > Deflater.BEST_COMPRESSION)
+        {
+            errorCount++;
+            this.addError("Compression level must be between " + Deflater.BEST_SPEED + " and " + Deflater.BEST_COMPRESSION);
+        }
 
-    void encoderClose()
-    {
-        if (this.encoder != null && this.socket != null)
+        if (this.spillDirectory != null)
         {
-            try
+            if (this.getPST() == null)
             {
-                this.encoder.close();
+                errorCount++;
+                this.addError("Spilling requires a PreSerializationTransformer, which appender "
+                        + this.name + " does not provide");
             }
-            catch (final IOException ioe)
+            if (this.spillSegmentSize.getSize() <= 0 || this.spillSegmentSize.getSize() > Integer.MAX_VALUE)
             {
-                this.started = false;
-                this.addStatus(new ErrorStatus("Failed to write footer for appender named ["
-                        + this.name + "].", this, ioe));
+                errorCount++;
+                this.addError("Spill segment size must be positive and below 2GB");
             }
         }
-    }
-
-
 
-
-    void encoderInit()
-    {
-        if (this.encoder != null && this.socket != null)
+        if (errorCount == 0 && this.spillDirectory != null)
         {
             try
             {
-                this.encoder.init(this.socket.getOutputStream());
+                this.spillSerializer = new SpillSerializer(this.getSpillWhitelist());
+                this.spillQueue = new SpillQueue(new File(this.spillDirectory),
+                        (int) this.spillSegmentSize.getSize(), this.maxSpillSize.getSize());
+                if (!this.spillQueue.isEmpty())
+                {
+                    this.addInfo("recovered " + this.spillQueue.size() + " spilled events from "
+                            + this.spillDirectory);
+                }
             }
-            catch (final IOException ioe)
+            catch (final IOException ex)
             {
-                this.started = false;
-                this.addStatus(new ErrorStatus(
-                        "Failed to initialize encoder for appender named [" + this.name + "].",
-                        this, ioe));
+                errorCount++;
+                this.addError("Failed to open spill directory " + this.spillDirectory, ex);
             }
         }
-    }
 
-
-    /**
-     * {@inheritDoc}
-     */
-    @Override
-    protected void append(final E event)
-    {
-        if (event == null || !this.isStarted())
+        if (errorCount == 0)
         {
-            return;
+            this.queues = this.newQueues();
+            this.queuesClosed = false;
+            this.recycledEvents = this.recycleEvents || this.isCopyingEvents() && this.newRecycledEvent() != null ?
+                    this.newRecycledEvents() : null;
+            this.peerId = this.endpointGroup.size() == 1 ?
+                    this.endpointGroup.next().getPeerId() : "remote peers " + this.endpointGroup + ": ";
+            if (TRANSPORT_NIO.equalsIgnoreCase(this.transport))
+            {
+                final List<NioSocketConnection<E>> nioConnections = new ArrayList<NioSocketConnection<E>>(this.connections);
+                try
+                {
+                    for (int i = 0; i < this.connections; i++)
+                    {
+                        nioConnections.add(new NioSocketConnection<E>(this, this.queueOf(i),
+                                SocketIoLoop.acquire(this.getContext(), this.ioThreads)));
+                    }
+                }
+                catch (final IOException ex)
+                {
+                    this.addError("Failed to open selector for appender named [" + this.name + "].", ex);
+                    // releases the loops acquired so far
+                    for (final NioSocketConnection<E> nioConnection : nioConnections)
+                    {
+                        nioConnection.stop();
+                    }
+                    this.closeSpillQueue();
+                    return;
+                }
+                for (final NioSocketConnection<E> nioConnection : nioConnections)
+                {
+                    nioConnection.start();
+                }
+                this.nioConnections = nioConnections;
+            }
+            else
+            {
+                final List<Dispatcher> dispatchers = new ArrayList<Dispatcher>(this.connections);
+                this.dispatcherExecutor = this.virtualThreads ? this.newVirtualThreadExecutor() : null;
+                final ExecutorService executor = this.dispatcherExecutor != null ?
+                        this.dispatcherExecutor : this.getContext().getExecutorService();
+                try
+                {
+                    for (int i = 0; i < this.connections; i++)
+                    {
+                        final Dispatcher dispatcher = new Dispatcher(this.queueOf(i));
+                        dispatcher.task = executor.submit(dispatcher);
+                        dispatchers.add(dispatcher);
+                    }
+                }
+                catch (final RejectedExecutionException ex)
+                {
+                    this.addError("The executor of the context rejected the dispatcher of appender named [" + this.name
+                            + "], consider the nio transport.", ex);
+                    for (final Dispatcher dispatcher : dispatchers)
+                    {
+                        dispatcher.stop();
+                    }
+                    this.shutdownDispatcherExecutor();
+                    this.closeSpillQueue();
+                    return;
+                }
+                this.dispatchers = dispatchers;
+            }
+            if (this.jmx)
+            {
+                this.registerMetrics();
+            }
+            super.start();
         }
-        this.queue.offer(event);
     }
 
 
 
 
     /**
-     * {@inheritDoc}
+     * Creates an executor that starts a virtual thread per dispatcher.
+     *
+     * @return the executor or <code>null</code> if the JVM does not support virtual threads, before Java 21
      */
-    @Override
-    public final void run()
+    private ExecutorService newVirtualThreadExecutor()
     {
         try
         {
-            while (!Thread.currentThread().isInterrupted())
-            {
-                final SocketConnector connector = this.createConnector(this.address, this.port, 0,
-                        this.reconnectionDelay);
-
-                this.connectorTask = this.activateConnector(connector);
-                if (this.connectorTask == null)
-                {
-                    break;
-                }
-
-                this.socket = this.waitForConnectorToReturnASocket();
-                if (this.socket == null)
-                {
-                    break;
-                }
-                this.dispatchEvents();
-            }
+            // Thread.ofVirtual().name(prefix, 0).factory(), compiled against older JDKs
+            final Class<?> builderClass = Class.forName("java.lang.Thread$Builder");
+            Object builder = Thread.class.getMethod("ofVirtual").invoke(null);
+            builder = builderClass.getMethod("name", String.class, long.class).invoke(builder,
+                    "logback-socket-dispatcher-" + this.name + "-", 0L);
+            final ThreadFactory threadFactory = (ThreadFactory) builderClass.getMethod("factory").invoke(builder);
+            return (ExecutorService) Executors.class.getMethod("newThreadPerTaskExecutor", ThreadFactory.class)
+                    .invoke(null, threadFactory);
         }
-        catch (final InterruptedException ex)
+        catch (final ReflectiveOperationException ex)
         {
-            assert true; // ok... we'll exit now
+            this.addWarn("Virtual threads are not supported by this JVM, appender named [" + this.name
+                    + "] runs its dispatchers on the executor of the context");
+            return null;
         }
-        this.addInfo("shutting down");
     }
 
 
 
 
-    private SocketConnector createConnector(final InetAddress address, final int port,
-            final int initialDelay, final int retryDelay)
+    private void closeSpillQueue()
     {
-        final SocketConnector connector = this.newConnector(address, port, initialDelay,
-                retryDelay);
-        connector.setExceptionHandler(this);
-        connector.setSocketFactory(this.getSocketFactory());
-        return connector;
+        if (this.spillQueue != null)
+        {
+            this.spillQueue.close();
+            this.spillQueue = null;
+        }
     }
 
 
 
 
-    private Future<Socket> activateConnector(final SocketConnector connector)
+    private void shutdownDispatcherExecutor()
     {
-        try
-        {
-            return this.getContext().getExecutorService().submit(connector);
-        }
-        catch (final RejectedExecutionException ex)
+        if (this.dispatcherExecutor != null)
         {
-            return null;
+            // the dispatchers have been cancelled, their threads end on their own
+            this.dispatcherExecutor.shutdown();
+            this.dispatcherExecutor = null;
         }
     }
 
 
 
 
-    private Socket waitForConnectorToReturnASocket() throws InterruptedException
+    private void registerMetrics()
     {
         try
         {
-            final Socket s = this.connectorTask.get();
-            this.connectorTask = null;
-            return s;
+            this.metricsName = new ObjectName(JMX_DOMAIN + ":type=SocketAppender,context="
+                    + ObjectName.quote(String.valueOf(this.getContext().getName())) + ",name="
+                    + ObjectName.quote(String.valueOf(this.name)));
+            ManagementFactory.getPlatformMBeanServer().registerMBean(this.metrics, this.metricsName);
         }
-        catch (final ExecutionException e)
+        catch (final JMException ex)
         {
-            return null;
+            this.metricsName = null;
+            this.addWarn("Failed to register metrics of appender named [" + this.name + "] with JMX", ex);
         }
     }
 
 
 
 
-    private void dispatchEvents() throws InterruptedException
+    /**
+     * Creates a single queue shared by all connections, or a queue per connection if events are sharded by the <b>shardBy</b> property. The <b>queueSize</b> is split between the shards.
+     */
+    private List<BlockingQueue<E>> newQueues()
     {
-        try
-        {
-            this.socket.setSoTimeout(this.acceptConnectionTimeout);
-            this.encoderInit();
-            this.socket.setSoTimeout(0);
-            this.addInfo(this.peerId + "connection established");
-            while (true)
-            {
-                final E event = this.queue.take();
-                this.postProcessEvent(event);
-                this.encoder.doEncode(event);
-            }
-        }
-        catch (final IOException ex)
+        if (this.shardBy == null || this.connections == 1)
         {
-            this.addInfo(this.peerId + "connection failed: " + ex);
+            return Collections.singletonList(this.newBlockingQueue(this.queueSize));
         }
-        finally
+        final int shardSize = (this.queueSize + this.connections - 1) / this.connections;
+        final List<BlockingQueue<E>> queues = new ArrayList<BlockingQueue<E>>(this.connections);
+        for (int i = 0; i < this.connections; i++)
         {
-            CloseUtil.closeQuietly(this.socket);
-            this.socket = null;
-            this.addInfo(this.peerId + "connection closed");
+            queues.add(this.newBlockingQueue(shardSize));
         }
+        return queues;
     }
 
 
 
 
     /**
-     * {@inheritDoc}
+     * Returns the queue the connection with the given index drains.
      */
-    @Override
-    public void connectionFailed(final SocketConnector connector, final Exception ex)
+    private BlockingQueue<E> queueOf(final int connection)
     {
-        if (ex instanceof InterruptedException)
-        {
-            this.addInfo("connector interrupted");
-        }
-        else if (ex instanceof ConnectException)
-        {
-            this.addInfo(this.peerId + "connection refused");
-        }
-        else
-        {
-            this.addInfo(this.peerId + ex);
-        }
+        return this.queues.get(this.queues.size() == 1 ? 0 : connection);
     }
 
 
 
 
     /**
-     * Creates a new {@link SocketConnector}.
-     * <p>
-     * The default implementation creates an instance of {@link DefaultSocketConnector}. A subclass may override to provide a different {@link SocketConnector} implementation.
-     *
-     * @param address
-     *            target remote address
-     * @param port
-     *            target remote port
-     * @param initialDelay
-     *            delay before the first connection attempt
-     * @param retryDelay
-     *            delay before a reconnection attempt
-     * @return socket connector
+     * Returns the index of the shard queue an event goes to. Events with the same shard key always go to the same shard, events without a shard key go to the shard of the appending thread.
      */
-    protected SocketConnector newConnector(final InetAddress address,
-            final int port, final int initialDelay, final int retryDelay)
+    private int shardOf(final E event)
     {
-        return new DefaultSocketConnector(address, port, initialDelay, retryDelay);
+        final int shards = this.queues.size();
+        if (shards == 1)
+        {
+            return 0;
+        }
+        final Object key = this.getShardKey(event);
+        final int hash = key != null ? key.hashCode() : (int) Thread.currentThread().getId();
+        return ((hash ^ hash >>> 16) & Integer.MAX_VALUE) % shards;
     }
 
 
 
 
     /**
-     * Gets the default {@link SocketFactory} for the platform.
-     * <p>
-     * Subclasses may override to provide a custom socket factory.
+     * Builds the endpoint group from the <b>endpoints</b>, or the <b>remoteHost</b> and <b>port</b> properties and resolves the addresses of its hosts.
+     *
+     * @return the number of errors
      */
-    protected SocketFactory getSocketFactory()
+    private int initEndpoints()
     {
-        return SocketFactory.getDefault();
+        final Endpoint[] endpoints;
+        try
+        {
+            endpoints = this.endpoints != null ?
+                    Endpoint.parse(this.endpoints, this.port) : new Endpoint[] { Endpoint.of(this.remoteHost, this.port) };
+        }
+        catch (final IllegalArgumentException ex)
+        {
+            this.addError(ex.getMessage() + " of appender named [" + this.name + "]");
+            return 1;
+        }
+
+        int resolved = 0;
+        for (final Endpoint endpoint : endpoints)
+        {
+            try
+            {
+                endpoint.resolve(this.dnsRefreshInterval);
+                resolved++;
+            }
+            catch (final UnknownHostException ex)
+            {
+                if (endpoints.length == 1)
+                {
+                    this.addError("unknown host: " + endpoint.getHost());
+                }
+                else
+                {
+                    this.addWarn("unknown host: " + endpoint.getHost());
+                }
+            }
+        }
+        if (resolved == 0)
+        {
+            return 1;
+        }
+        this.endpointGroup = new EndpointGroup(endpoints, this.loadBalancing, this.getEffectiveReconnectionPolicy(),
+                this.circuitBreakerThreshold, this);
+        return 0;
     }
 
 
 
 
     /**
-     * Creates a blocking queue that will be used to hold logging events until they can be delivered to the remote receiver.
-     * <p>
-     * The default implementation creates a (bounded) {@link ArrayBlockingQueue} for positive queue sizes. Otherwise it creates a {@link SynchronousQueue}.
-     * <p>
-     * This method is exposed primarily to support instrumentation for unit testing.
-     *
-     * @param queueSize
-     *            size of the queue
-     * @return
+     * Stops accepting events and waits up to <b>drainTimeout</b> for the queued events to be delivered, then closes the connections. Events that are still queued are spilled if a <b>spillDirectory</b> is configured, else passed to the
+     * fallback appenders, else dropped.
      */
-    BlockingQueue<E> newBlockingQueue(final int queueSize)
+    @Override
+    public void stop()
     {
-        return queueSize <= 0 ?
-                new SynchronousQueue<E>() : new ArrayBlockingQueue<E>(queueSize);
+        if (!this.isStarted())
+        {
+            return;
+        }
+        this.started = false;
+        this.drain();
+        if (this.nioConnections != null)
+        {
+            for (final NioSocketConnection<E> nioConnection : this.nioConnections)
+            {
+                nioConnection.stop();
+            }
+            this.nioConnections = null;
+        }
+        else
+        {
+            for (final Dispatcher dispatcher : this.dispatchers)
+            {
+                dispatcher.stop();
+            }
+            this.dispatchers = null;
+            this.shutdownDispatcherExecutor();
+        }
+        // appending threads that passed the started check before hand their events over themselves from now on
+        this.queuesClosed = true;
+        this.handOverQueuedEvents();
+        this.closeSpillQueue();
+        if (this.metricsName != null)
+        {
+            try
+            {
+                ManagementFactory.getPlatformMBeanServer().unregisterMBean(this.metricsName);
+            }
+            catch (final JMException ex)
+            {
+                this.addWarn("Failed to unregister metrics of appender named [" + this.name + "] from JMX", ex);
+            }
+            this.metricsName = null;
+        }
+        super.stop();
     }
 
 
 
 
     /**
-     * Post-processes an event before it is serialized for delivery to the remote receiver.
-     *
-     * @param event
-     *            the event to post-process
+     * {@inheritDoc}
      */
-    protected abstract void postProcessEvent(E event);
+    @Override
+    protected void append(final E event)
+    {
+        if (event == null || !this.isStarted())
+        {
+            return;
+        }
+        if (this.isSuppressed(event))
+        {
+            this.metrics.eventSuppressed();
+            return;
+        }
+        this.enqueue(event);
+    }
 
 
 
 
-    /*
-     * This method is used by logback modules only in the now deprecated convenience constructors for SocketAppender
+    /**
+     * Queues an event without asking {@link #isSuppressed(Object)}, e.g. an event the appender creates itself while appending another one.
      */
-    @Deprecated
-    protected static InetAddress getAddressByName(final String host)
+    void enqueue(final E event)
     {
-        try
+        this.prepareForDeferredProcessing(event);
+        final int shard = this.shardOf(event);
+        final BlockingQueue<E> queue = this.queues.get(shard);
+        final E queued = this.recycle(event);
+        final SpillQueue spillQueue = this.spillQueue;
+        if (spillQueue != null && !spillQueue.isEmpty() && this.spill(queued, true))
         {
-            return InetAddress.getByName(host);
+            // keep order, nothing may overtake spilled events
+            this.metrics.eventEnqueued();
         }
-        catch (final Exception e)
+        else if (queue.offer(queued) || this.handleOverflow(queue, queued))
         {
-            // addError("Could not find address of [" + host + "].", e);
-            return null;
+            this.metrics.eventEnqueued();
+        }
+        if (this.queuesClosed)
+        {
+            // stop() has handed the queued events over already, nothing drains the queue anymore
+            this.handOverQueuedEvents();
+            return;
+        }
+        final List<NioSocketConnection<E>> nioConnections = this.nioConnections;
+        if (nioConnections != null)
+        {
+            if (this.queues.size() > 1)
+            {
+                nioConnections.get(shard).eventAppended();
+            }
+            else
+            {
+                // any of the connections sharing the queue may be the one that is connected
+                for (final NioSocketConnection<E> nioConnection : nioConnections)
+                {
+                    nioConnection.eventAppended();
+                }
+            }
         }
     }
 
@@ -473,128 +875,2185 @@ public abstract class AbstractSocketAppender<E> extends AppenderBase<E>
 
 
     /**
-     * The <b>RemoteHost</b> property takes the name of of the host where a corresponding server is running.
+     * Applies the configured {@link OverflowPolicy} to an event that did not fit into the queue.
+     *
+     * @return <code>true</code> if the event has been queued or spilled after all
      */
-    public void setRemoteHost(final String host)
+    private boolean handleOverflow(final BlockingQueue<E> queue, final E event)
     {
-        this.remoteHost = host;
+        if (this.spillQueue != null && this.spill(event, false))
+        {
+            return true;
+        }
+        switch (this.overflowPolicy)
+        {
+            case DROP_OLDEST:
+                while (!queue.offer(event))
+                {
+                    final E oldest = queue.poll();
+                    if (oldest == null)
+                    {
+                        // nothing to evict, e.g. a synchronous queue without a waiting dispatcher
+                        this.eventDropped(event);
+                        return false;
+                    }
+                    this.eventDropped(oldest);
+                }
+                return true;
+            case DROP_BELOW_THRESHOLD:
+                if (this.isDiscardable(event))
+                {
+                    this.eventDropped(event);
+                    return false;
+                }
+                return this.offerBlocking(queue, event);
+            case BLOCK:
+                return this.offerBlocking(queue, event);
+            case DROP_NEWEST:
+            default:
+                this.eventDropped(event);
+                return false;
+        }
     }
 
 
 
 
     /**
-     * Returns value of the <b>RemoteHost</b> property.
+     * Serializes an event to the spill queue.
+     *
+     * @param onlyIfNotEmpty
+     *            only spill while there are spilled events waiting for replay
+     * @return <code>true</code> if the event has been spilled
      */
-    public String getRemoteHost()
+    private boolean spill(final E event, final boolean onlyIfNotEmpty)
     {
-        return this.remoteHost;
+        final SpillQueue spillQueue = this.spillQueue;
+        if (spillQueue == null)
+        {
+            return false;
+        }
+        try
+        {
+            // not post-processed here, that happens on the delivering thread once the event is replayed
+            final byte[] record = this.spillSerializer.serialize(this.getPST().transform(event));
+            final boolean spilled = onlyIfNotEmpty ? spillQueue.appendIfNotEmpty(record) : spillQueue.append(record);
+            if (spilled)
+            {
+                this.release(event);
+            }
+            return spilled;
+        }
+        catch (final IOException ex)
+        {
+            this.addError("Failed to spill event to " + spillQueue.getDirectory(), ex);
+            return false;
+        }
     }
 
 
 
 
     /**
-     * The <b>Port</b> property takes a positive integer representing the port where the server is waiting for connections.
+     * Removes the oldest spilled event, skipping records that cannot be deserialized.
+     *
+     * @return the event or <code>null</code> if nothing is spilled
      */
-    public void setPort(final int port)
+    @SuppressWarnings("unchecked")
+    private E pollSpilled()
     {
-        this.port = port;
+        final SpillQueue spillQueue = this.spillQueue;
+        if (spillQueue == null)
+        {
+            return null;
+        }
+        byte[] record;
+        while ((record = spillQueue.poll()) != null)
+        {
+            try
+            {
+                return (E) this.spillSerializer.deserialize(record);
+            }
+            catch (final IOException ex)
+            {
+                this.addWarn("Skipping unreadable spilled event", ex);
+            }
+            catch (final ClassNotFoundException ex)
+            {
+                this.addWarn("Skipping unreadable spilled event", ex);
+            }
+        }
+        return null;
     }
 
 
 
 
     /**
-     * Returns value of the <b>Port</b> property.
+     * Waits for space in the queue, unless the circuits of all endpoints are open and appending threads would only wait in vain.
      */
-    public int getPort()
+    private boolean offerBlocking(final BlockingQueue<E> queue, final E event)
     {
-        return this.port;
+        if (!this.endpointGroup.isCircuitOpen())
+        {
+            try
+            {
+                if (queue.offer(event, this.blockingTimeout, TimeUnit.MILLISECONDS))
+                {
+                    return true;
+                }
+            }
+            catch (final InterruptedException ex)
+            {
+                Thread.currentThread().interrupt();
+            }
+        }
+        this.eventDropped(event);
+        return false;
     }
 
 
 
 
     /**
-     * The <b>reconnectionDelay</b> property takes a positive integer representing the number of milliseconds to wait between each failed connection attempt to the server. The default value of this option is 30000 which corresponds to 30 seconds.
-     *
-     * <p>
-     * Setting this option to zero turns off reconnection capability.
+     * Waits up to <b>drainTimeout</b> until the connections have delivered the queued events. Connections that are not established when the appender stops do not wait for a connection.
      */
-    public void setReconnectionDelay(final int delay)
+    private void drain()
     {
-        this.reconnectionDelay = delay;
+        final long deadline = System.nanoTime() + TimeUnit.MILLISECONDS.toNanos(this.drainTimeout);
+        if (this.nioConnections != null)
+        {
+            for (final NioSocketConnection<E> nioConnection : this.nioConnections)
+            {
+                nioConnection.drain();
+            }
+            try
+            {
+                for (final NioSocketConnection<E> nioConnection : this.nioConnections)
+                {
+                    while (!nioConnection.isDrained() && deadline - System.nanoTime() > 0)
+                    {
+                        Thread.sleep(DRAIN_POLL_INTERVAL);
+                        nioConnection.drain();
+                    }
+                }
+            }
+            catch (final InterruptedException ex)
+            {
+                Thread.currentThread().interrupt();
+            }
+            return;
+        }
+        for (final Dispatcher dispatcher : this.dispatchers)
+        {
+            dispatcher.drain();
+        }
+        for (final Dispatcher dispatcher : this.dispatchers)
+        {
+            if (!dispatcher.awaitDrained(deadline))
+            {
+                return;
+            }
+        }
     }
 
 
 
 
     /**
-     * Returns value of the <b>reconnectionDelay</b> property.
+     * Hands the events left in the queues over after the connections have been closed: spills them if spilling is configured, else passes them to the fallback appenders, else drops them.
      */
-    public int getReconnectionDelay()
+    private void handOverQueuedEvents()
     {
-        return this.reconnectionDelay;
+        int spilled = 0;
+        int passed = 0;
+        int dropped = 0;
+        final boolean fallback = this.fallbackAppenders.iteratorForAppenders().hasNext();
+        for (final BlockingQueue<E> queue : this.queues)
+        {
+            E event;
+            while ((event = queue.poll()) != null)
+            {
+                if (this.spillQueue != null && this.spill(event, false))
+                {
+                    spilled++;
+                }
+                else if (fallback)
+                {
+                    // not released, fallback appenders may keep the event
+                    this.fallbackAppenders.appendLoopOnAppenders(event);
+                    passed++;
+                }
+                else
+                {
+                    this.countDropped(event);
+                    this.release(event);
+                    dropped++;
+                }
+            }
+        }
+        if (spilled + passed + dropped > 0)
+        {
+            this.addWarn((spilled + passed + dropped) + " events were not delivered within the drain timeout of "
+                    + this.drainTimeout + " ms: " + spilled + " spilled, " + passed + " passed to fallback appenders, "
+                    + dropped + " dropped");
+        }
     }
 
 
 
 
     /**
-     * The <b>queueSize</b> property takes a non-negative integer representing the number of logging events to retain for delivery to the remote receiver. When the queue size is zero, event delivery to the remote receiver is synchronous. When the queue
-     * size is greater than zero, the {@link #append(Object)} method returns immediately after enqueing the event, assuming that there is space available in the queue. Using a non-zero queue length can improve performance by eliminating delays caused by
-     * transient network delays. If the queue is full when the {@link #append(Object)} method is called, the event is summarily and silently dropped.
-     *
-     * @param queueSize
-     *            the queue size to set.
+     * Counts an event that is dropped instead of being delivered to the remote receiver, and releases it.
      */
-    public void setQueueSize(final int queueSize)
+    private void eventDropped(final E event)
     {
-        this.queueSize = queueSize;
+        this.countDropped(event);
+        this.release(event);
+
+        if (this.dropReported.compareAndSet(false, true))
+        {
+            this.addWarn("Queue is full, dropping events according to overflow policy "
+                    + this.overflowPolicy + ". Further drops are only counted.");
+        }
     }
 
 
 
 
-    /**
-     * Returns the value of the <b>queueSize</b> property.
-     */
-    public int getQueueSize()
+    private void countDropped(final E event)
     {
-        return this.queueSize;
+        final String level = this.getLevelName(event);
+        final String key = level != null ? level : UNLEVELED;
+        AtomicLong counter = this.droppedEvents.get(key);
+        if (counter == null)
+        {
+            final AtomicLong newCounter = new AtomicLong();
+            counter = this.droppedEvents.putIfAbsent(key, newCounter);
+            if (counter == null)
+            {
+                counter = newCounter;
+            }
+        }
+        counter.incrementAndGet();
+        this.metrics.eventDropped(key);
+    }
+
+
+
+
+    private SocketConnector createConnector(final InetAddress address, final int port,
+            final int initialDelay, final int retryDelay)
+    {
+        final SocketConnector connector = this.newConnector(address, port, initialDelay,
+                retryDelay);
+        connector.setExceptionHandler(this);
+        connector.setSocketFactory(this.getSocketFactory());
+        return connector;
     }
 
 
 
 
     /**
-     * Sets the timeout that controls how long we'll wait for the remote peer to accept our connection attempt.
-     * <p>
-     * This property is configurable primarily to support instrumentation for unit testing.
-     *
-     * @param acceptConnectionTimeout
-     *            timeout value in milliseconds
+     * Returns the next event of the given queue, or the next spilled event if the queue is empty, without blocking.
      */
-    void setAcceptConnectionTimeout(final int acceptConnectionTimeout)
+    E nextEvent(final BlockingQueue<E> queue)
     {
-        this.acceptConnectionTimeout = acceptConnectionTimeout;
+        final E event = queue.poll();
+        return event != null ? event : this.pollSpilled();
     }
 
 
 
 
-    public Encoder<E> getEncoder()
+    /**
+     * Returns a recycled copy of an appended event to queue in its place if <b>recycleEvents</b> is on, or else the event returned by {@link #toQueuedEvent(Object)}.
+     */
+    private E recycle(final E event)
     {
-        return this.encoder;
+        final BlockingQueue<E> recycledEvents = this.recycledEvents;
+        final E recycled = recycledEvents != null ? recycledEvents.poll() : null;
+        if (recycled == null)
+        {
+            return this.toQueuedEvent(event);
+        }
+        this.fillRecycledEvent(recycled, event);
+        return recycled;
     }
 
 
 
 
-    public void setEncoder(final Encoder<E> encoder)
+    /**
+     * Hands an event that has been delivered, dropped or spilled back for reuse if it is a recycled one.
+     */
+    void release(final E event)
+    {
+        final BlockingQueue<E> recycledEvents = this.recycledEvents;
+        if (recycledEvents != null && event.getClass() == this.recycledEventClass)
+        {
+            this.clearRecycledEvent(event);
+            recycledEvents.offer(event);
+        }
+    }
+
+
+
+
+    /**
+     * Hands the events of a batch over that could not be written because its connection failed: spills them if spilling is configured, else counts them as dropped. Part of the batch may have reached the remote peer before the connection
+     * failed, so spilled events may be delivered twice. Clears the batch.
+     */
+    void batchFailed(final List<E> batch, final String peerId)
+    {
+        if (batch.isEmpty())
+        {
+            return;
+        }
+        int spilled = 0;
+        for (final E event : batch)
+        {
+            if (this.spillQueue != null && this.spill(event, false))
+            {
+                spilled++;
+            }
+            else
+            {
+                this.countDropped(event);
+                this.release(event);
+            }
+        }
+        this.addWarn(peerId + batch.size() + " events of a failed batch were not delivered: " + spilled + " spilled, "
+                + (batch.size() - spilled) + " dropped");
+        batch.clear();
+    }
+
+
+
+
+    /**
+     * Releases the events of a batch that has been delivered or given up, and clears it.
+     */
+    void release(final List<E> batch)
+    {
+        if (this.recycledEvents != null)
+        {
+            for (final E event : batch)
+            {
+                this.release(event);
+            }
+        }
+        batch.clear();
+    }
+
+
+
+
+    /**
+     * Preallocates a recycled event for every event that can be queued and for a full batch per connection.
+     */
+    private BlockingQueue<E> newRecycledEvents()
+    {
+        final int count = this.queueSize + this.connections * this.batchSize;
+        final BlockingQueue<E> recycledEvents = new RingBufferQueue<E>(count, WaitStrategy.BLOCKING);
+        for (int i = 0; i < count; i++)
+        {
+            final E recycled = this.newRecycledEvent();
+            this.recycledEventClass = recycled.getClass();
+            recycledEvents.offer(recycled);
+        }
+        return recycledEvents;
+    }
+
+
+
+
+    /**
+     * Tells whether there are events in the given queue or spilled events waiting for delivery.
+     */
+    boolean hasQueuedEvents(final BlockingQueue<E> queue)
+    {
+        return !queue.isEmpty() || this.spillQueue != null && !this.spillQueue.isEmpty();
+    }
+
+
+
+
+    /**
+     * Returns the (approximate) number of events in the given queue and spilled events waiting for delivery.
+     */
+    long getQueuedEventCount(final BlockingQueue<E> queue)
+    {
+        return queue.size() + this.getSpilledEventCount();
+    }
+
+
+
+
+    /**
+     * Returns the number of events in all queues, without spilled events.
+     */
+    long getQueueDepth()
+    {
+        final List<BlockingQueue<E>> queues = this.queues;
+        if (queues == null)
+        {
+            return 0;
+        }
+        long depth = 0;
+        for (final BlockingQueue<E> queue : queues)
+        {
+            depth += queue.size();
+        }
+        return depth;
+    }
+
+
+
+
+    SocketAppenderMetrics metrics()
+    {
+        return this.metrics;
+    }
+
+
+
+
+    /**
+     * Returns the encoder of a new connection, a new instance from a {@link PerConnectionEncoder} or else the configured encoder, which is shared by all connections.
+     */
+    @SuppressWarnings("unchecked")
+    Encoder<E> newConnectionEncoder()
+    {
+        return this.encoder instanceof PerConnectionEncoder ?
+                ((PerConnectionEncoder<E>) this.encoder).newConnectionEncoder() : this.encoder;
+    }
+
+
+
+
+    /**
+     * Post-processes a single event and encodes it with the encoder of a connection.
+     */
+    byte[] encodeEvent(final Encoder<E> encoder, final E event)
+    {
+        this.postProcessEvent(event);
+        return encoder.encode(event);
+    }
+
+
+
+
+    /**
+     * Wraps the raw stream of a new connection as configured by the <b>compression</b> property.
+     */
+    OutputStream newOutputStream(final OutputStream out)
+    {
+        return COMPRESSION_DEFLATE.equalsIgnoreCase(this.compression) ?
+                new CompressingOutputStream(out, this.compressionLevel) : out;
+    }
+
+
+
+
+    EndpointGroup getEndpointGroup()
+    {
+        return this.endpointGroup;
+    }
+
+
+
+
+    /**
+     * {@inheritDoc}
+     */
+    @Override
+    public void connectionFailed(final SocketConnector connector, final Exception ex)
+    {
+        final Endpoint endpoint = connector instanceof EndpointConnector ?
+                ((EndpointConnector) connector).getEndpoint() : null;
+        if (endpoint == null && !(ex instanceof InterruptedException) && this.endpointGroup.size() == 1)
+        {
+            // the connector of a single endpoint retries on its own, only count the failure
+            this.endpointGroup.failed(this.endpointGroup.next());
+        }
+        this.connectionFailed(endpoint != null ? endpoint.getPeerId() : this.peerId, ex);
+    }
+
+
+
+
+    void connectionFailed(final String peerId, final Exception ex)
+    {
+        if (ex instanceof InterruptedException)
+        {
+            this.addInfo("connector interrupted");
+        }
+        else if (ex instanceof ConnectException)
+        {
+            this.addInfo(peerId + "connection refused");
+        }
+        else
+        {
+            this.addInfo(peerId + ex);
+        }
+    }
+
+
+
+
+    /**
+     * Creates a new {@link SocketConnector}.
+     * <p>
+     * The default implementation creates an instance of {@link DefaultSocketConnector}. A subclass may override to provide a different {@link SocketConnector} implementation.
+     *
+     * @param address
+     *            target remote address
+     * @param port
+     *            target remote port
+     * @param initialDelay
+     *            delay before the first connection attempt
+     * @param retryDelay
+     *            delay before a reconnection attempt
+     * @return socket connector
+     */
+    protected SocketConnector newConnector(final InetAddress address,
+            final int port, final int initialDelay, final int retryDelay)
+    {
+        return new DefaultSocketConnector(address, port, initialDelay, retryDelay);
+    }
+
+
+
+
+    /**
+     * Gets the default {@link SocketFactory} for the platform.
+     * <p>
+     * Subclasses may override to provide a custom socket factory.
+     */
+    protected SocketFactory getSocketFactory()
+    {
+        return SocketFactory.getDefault();
+    }
+
+
+
+
+    /**
+     * Creates a blocking queue that will be used to hold logging events until they can be delivered to the remote receiver.
+     * <p>
+     * The default implementation creates a lock-free {@link RingBufferQueue} waiting with the configured <b>waitStrategy</b> if the <b>queueType</b> is {@value #QUEUE_TYPE_RING_BUFFER}. Otherwise it creates a (bounded) {@link ArrayBlockingQueue}
+     * for positive queue sizes and a {@link SynchronousQueue} for a queue size of zero.
+     * <p>
+     * This method is exposed primarily to support instrumentation for unit testing.
+     *
+     * @param queueSize
+     *            size of the queue
+     * @return
+     */
+    BlockingQueue<E> newBlockingQueue(final int queueSize)
+    {
+        if (QUEUE_TYPE_RING_BUFFER.equalsIgnoreCase(this.queueType))
+        {
+            return new RingBufferQueue<E>(queueSize, WaitStrategy.fromName(this.waitStrategy));
+        }
+        return queueSize <= 0 ?
+                new SynchronousQueue<E>() : new ArrayBlockingQueue<E>(queueSize);
+    }
+
+
+
+
+    /**
+     * Tells whether an event may be dropped right away by the {@link OverflowPolicy#DROP_BELOW_THRESHOLD} policy when the queue is full.
+     * <p>
+     * The default implementation returns <code>false</code>. Subclasses override to shed less important events, e.g. by level.
+     *
+     * @param event
+     *            the event that did not fit into the queue
+     * @return <code>true</code> if the event can be dropped without waiting for space in the queue
+     */
+    protected boolean isDiscardable(final E event)
+    {
+        return false;
+    }
+
+
+
+
+    /**
+     * Tells whether an event is suppressed before it is queued, e.g. by rate limits or sampling. Runs on the appending thread first thing, so it must be cheap and thread-safe. Suppressed events are counted by
+     * {@link SocketAppenderMetrics#getSuppressedEventCount()}, not as dropped.
+     * <p>
+     * The default implementation returns <code>false</code>.
+     *
+     * @param event
+     *            the appended event
+     * @return <code>true</code> if the event is discarded
+     */
+    protected boolean isSuppressed(final E event)
+    {
+        return false;
+    }
+
+
+
+
+    /**
+     * Returns the name of the level under which a dropped event is counted.
+     * <p>
+     * The default implementation returns <code>null</code>, counting all events as {@value #UNLEVELED}.
+     *
+     * @param event
+     *            the dropped event
+     * @return the level name or <code>null</code>
+     */
+    protected String getLevelName(final E event)
+    {
+        return null;
+    }
+
+
+
+
+    /**
+     * Returns the transformer that turns events into their serializable form for spilling them to disk. The deserialized form must be assignable to the event type.
+     * <p>
+     * The default implementation returns <code>null</code>, which makes a configured <b>spillDirectory</b> an error.
+     */
+    protected PreSerializationTransformer<E> getPST()
+    {
+        return null;
+    }
+
+
+
+
+    /**
+     * Returns the names of the classes that may be deserialized when spilled events are replayed, besides those of the <code>java.lang</code> and <code>java.util</code> packages. Records holding other classes are skipped.
+     * <p>
+     * The default implementation returns an empty list.
+     */
+    protected List<String> getSpillWhitelist()
+    {
+        return Collections.emptyList();
+    }
+
+
+
+
+    /**
+     * Tells whether the appender can shard events by the given <b>shardBy</b> value.
+     * <p>
+     * The default implementation returns <code>false</code>, which makes a configured <b>shardBy</b> an error.
+     */
+    protected boolean isShardBy(final String shardBy)
+    {
+        return false;
+    }
+
+
+
+
+    /**
+     * Returns the key that decides which connection delivers an event if the <b>shardBy</b> property is set. Events with equal keys are delivered by the same connection, in order.
+     * <p>
+     * The default implementation returns <code>null</code>, which spreads events by the appending thread.
+     *
+     * @param event
+     *            the appended event
+     * @return the shard key or <code>null</code>
+     */
+    protected Object getShardKey(final E event)
+    {
+        return null;
+    }
+
+
+
+
+    /**
+     * Captures on the appending thread what cannot be resolved later, like state bound to that thread, before the event is queued or spilled. Everything else should be left to {@link #postProcessEvent(Object)} and the encoder, which run on the
+     * thread delivering the event, so appending threads only pay for what is needed.
+     * <p>
+     * The default implementation does nothing.
+     *
+     * @param event
+     *            the appended event
+     */
+    protected void prepareForDeferredProcessing(final E event)
+    {
+    }
+
+
+
+
+    /**
+     * Post-processes an event before it is serialized for delivery to the remote receiver. Runs on the thread delivering the event, spilled events are post-processed once they are replayed, so it must not depend on the current thread.
+     *
+     * @param event
+     *            the event to post-process
+     */
+    protected abstract void postProcessEvent(E event);
+
+
+
+
+    /**
+     * Returns the event to queue in place of an appended event that is not recycled. The appended event is shared with the other appenders, so an appender that sends a changed event queues a copy instead of changing it.
+     * <p>
+     * The default implementation returns the appended event itself.
+     */
+    protected E toQueuedEvent(final E event)
+    {
+        return event;
+    }
+
+
+
+
+    /**
+     * Tells whether {@link #toQueuedEvent(Object)} copies appended events. The copies are then taken from the preallocated recycled events, as if <b>recycleEvents</b> was on, so that appending does not allocate a copy per event.
+     * <p>
+     * The default implementation returns <code>false</code>.
+     */
+    protected boolean isCopyingEvents()
+    {
+        return false;
+    }
+
+
+
+
+    /**
+     * Creates an empty event to be filled by {@link #fillRecycledEvent(Object, Object)} and reused for many events if the <b>recycleEvents</b> property is on. All instances must be of the same class, and appended events must not be.
+     * <p>
+     * The default implementation returns <code>null</code>, which makes <b>recycleEvents</b> an error.
+     */
+    protected E newRecycledEvent()
+    {
+        return null;
+    }
+
+
+
+
+    /**
+     * Copies what is needed for delivery from an appended event into a recycled one, on the appending thread after {@link #prepareForDeferredProcessing(Object)}. The recycled event must not keep a reference to the appended one.
+     *
+     * @param recycled
+     *            the event to fill
+     * @param event
+     *            the appended event
+     */
+    protected void fillRecycledEvent(final E recycled, final E event)
+    {
+    }
+
+
+
+
+    /**
+     * Drops the references a recycled event holds, once it has been delivered, dropped or spilled, so it does not keep garbage alive while waiting for reuse.
+     *
+     * @param recycled
+     *            the event to clear
+     */
+    protected void clearRecycledEvent(final E recycled)
+    {
+    }
+
+
+
+
+    /*
+     * This method is used by logback modules only in the now deprecated convenience constructors for SocketAppender
+     */
+    @Deprecated
+    protected static InetAddress getAddressByName(final String host)
+    {
+        try
+        {
+            return InetAddress.getByName(host);
+        }
+        catch (final Exception e)
+        {
+            // addError("Could not find address of [" + host + "].", e);
+            return null;
+        }
+    }
+
+
+
+
+    /**
+     * The <b>RemoteHost</b> property takes the name of of the host where a corresponding server is running.
+     */
+    public void setRemoteHost(final String host)
+    {
+        this.remoteHost = host;
+    }
+
+
+
+
+    /**
+     * Returns value of the <b>RemoteHost</b> property.
+     */
+    public String getRemoteHost()
+    {
+        return this.remoteHost;
+    }
+
+
+
+
+    /**
+     * The <b>endpoints</b> property takes a comma separated list of <code>host[:port]</code> remote peers, e.g. <code>log1:4560,log2:4560</code>; endpoints without port use the <b>Port</b> property. It replaces the <b>RemoteHost</b> property.
+     * <p>
+     * Whenever a connection attempt or an established connection fails, the endpoint is skipped for the delay of the <b>reconnectionPolicy</b> and the appender fails over to the next available endpoint at once. The <b>loadBalancing</b> property
+     * decides which of the available endpoints is connected to next.
+     */
+    public void setEndpoints(final String endpoints)
+    {
+        this.endpoints = endpoints;
+    }
+
+
+
+
+    /**
+     * Returns value of the <b>endpoints</b> property.
+     */
+    public String getEndpoints()
+    {
+        return this.endpoints;
+    }
+
+
+
+
+    /**
+     * The <b>loadBalancing</b> property selects how connections are distributed across the available <b>endpoints</b>: <code>roundRobin</code> (the default) connects to them in turn, <code>leastLoaded</code> to the one with the fewest live
+     * connections.
+     */
+    public void setLoadBalancing(final String loadBalancing)
+    {
+        this.loadBalancing = loadBalancing;
+    }
+
+
+
+
+    /**
+     * Returns value of the <b>loadBalancing</b> property.
+     */
+    public String getLoadBalancing()
+    {
+        return this.loadBalancing;
+    }
+
+
+
+
+    /**
+     * The <b>dnsRefreshInterval</b> property takes the number of milliseconds after which the address of a remote host is resolved again before the next connection attempt. The default value is 60000 (1 minute). Zero resolves addresses only once.
+     */
+    public void setDnsRefreshInterval(final int dnsRefreshInterval)
+    {
+        this.dnsRefreshInterval = dnsRefreshInterval;
+    }
+
+
+
+
+    /**
+     * Returns value of the <b>dnsRefreshInterval</b> property.
+     */
+    public int getDnsRefreshInterval()
+    {
+        return this.dnsRefreshInterval;
+    }
+
+
+
+
+    /**
+     * The <b>connections</b> property takes the number of parallel connections to the remote peers, 1 by default. Every connection has a dispatcher of its own that encodes and writes events, so encoding is spread over several threads and the
+     * load over several TCP streams; with several <b>endpoints</b> the connections are distributed by <b>loadBalancing</b>. The encoder must be thread-safe if more than one connection is configured, unless it is a {@link PerConnectionEncoder}.
+     * <p>
+     * The connections drain a single shared queue, so events of different connections may arrive out of order. Set the <b>shardBy</b> property to keep related events in order.
+     */
+    public void setConnections(final int connections)
+    {
+        this.connections = connections;
+    }
+
+
+
+
+    /**
+     * Returns value of the <b>connections</b> property.
+     */
+    public int getConnections()
+    {
+        return this.connections;
+    }
+
+
+
+
+    /**
+     * The <b>shardBy</b> property gives every connection a queue of its own and assigns events to the queues by a key taken from the event, see {@link #getShardKey(Object)}. Events with the same key are delivered by the same connection and stay in order. The
+     * <b>queueSize</b> is split evenly between the queues. Which values are supported depends on the appender. Spilled events are replayed by whichever connection is ready, so ordering per key is only kept while nothing is spilled.
+     */
+    public void setShardBy(final String shardBy)
+    {
+        this.shardBy = shardBy;
+    }
+
+
+
+
+    /**
+     * Returns value of the <b>shardBy</b> property.
+     */
+    public String getShardBy()
+    {
+        return this.shardBy;
+    }
+
+
+
+
+    /**
+     * The <b>Port</b> property takes a positive integer representing the port where the server is waiting for connections.
+     */
+    public void setPort(final int port)
+    {
+        this.port = port;
+    }
+
+
+
+
+    /**
+     * Returns value of the <b>Port</b> property.
+     */
+    public int getPort()
+    {
+        return this.port;
+    }
+
+
+
+
+    /**
+     * The <b>reconnectionDelay</b> property takes a positive integer representing the number of milliseconds to wait between each failed connection attempt to the server. The default value of this option is 30000 which corresponds to 30 seconds.
+     *
+     * <p>
+     * Setting this option to zero turns off reconnection capability.
+     */
+    public void setReconnectionDelay(final int delay)
+    {
+        this.reconnectionDelay = delay;
+    }
+
+
+
+
+    /**
+     * Returns value of the <b>reconnectionDelay</b> property.
+     */
+    public int getReconnectionDelay()
+    {
+        return this.reconnectionDelay;
+    }
+
+
+
+
+    /**
+     * The <b>reconnectionPolicy</b> property takes a {@link ReconnectionPolicy} that decides how long to wait before connecting to an endpoint again, e.g. an {@link ExponentialBackoffPolicy}. Without a policy every failure is followed by
+     * the fixed <b>reconnectionDelay</b>. A <b>reconnectionDelay</b> of zero turns off reconnection either way.
+     */
+    public void setReconnectionPolicy(final ReconnectionPolicy reconnectionPolicy)
+    {
+        this.reconnectionPolicy = reconnectionPolicy;
+    }
+
+
+
+
+    /**
+     * Returns the value of the <b>reconnectionPolicy</b> property.
+     */
+    public ReconnectionPolicy getReconnectionPolicy()
+    {
+        return this.reconnectionPolicy;
+    }
+
+
+
+
+    /**
+     * The <b>circuitBreakerThreshold</b> property takes the number of consecutive failures after which the circuit of an endpoint opens, until a connection to it is established again. While the circuits of all endpoints are open, the
+     * <code>block</code> and <code>dropBelowThreshold</code> overflow policies drop events instead of blocking appending threads. Open circuits are counted by {@link SocketAppenderMetrics#getOpenCircuitCount()}. The default value of zero
+     * turns the circuit breaker off.
+     */
+    public void setCircuitBreakerThreshold(final int circuitBreakerThreshold)
+    {
+        this.circuitBreakerThreshold = circuitBreakerThreshold;
+    }
+
+
+
+
+    /**
+     * Returns the value of the <b>circuitBreakerThreshold</b> property.
+     */
+    public int getCircuitBreakerThreshold()
+    {
+        return this.circuitBreakerThreshold;
+    }
+
+
+
+
+    /**
+     * Tells whether a reconnection policy is configured and, if it has a life cycle, has been started successfully.
+     */
+    private boolean hasReconnectionPolicy()
+    {
+        return this.reconnectionPolicy != null
+                && (!(this.reconnectionPolicy instanceof LifeCycle) || ((LifeCycle) this.reconnectionPolicy).isStarted());
+    }
+
+
+
+
+    /**
+     * Returns the configured reconnection policy, or one that always waits <b>reconnectionDelay</b> if there is none or it failed to start.
+     */
+    private ReconnectionPolicy getEffectiveReconnectionPolicy()
+    {
+        if (this.hasReconnectionPolicy())
+        {
+            return this.reconnectionPolicy;
+        }
+        if (this.reconnectionPolicy != null)
+        {
+            this.addWarn("Reconnection policy " + this.reconnectionPolicy + " of appender named [" + this.name
+                    + "] is not started, falling back to the fixed reconnection delay");
+        }
+        final long reconnectionDelay = this.reconnectionDelay;
+        return new ReconnectionPolicy()
+        {
+            @Override
+            public long nextDelay(final int failures)
+            {
+                return reconnectionDelay;
+            }
+        };
+    }
+
+
+
+
+    /**
+     * Returns the number of endpoints whose circuit is open.
+     */
+    int getOpenCircuitCount()
+    {
+        final EndpointGroup endpointGroup = this.endpointGroup;
+        return endpointGroup != null ? endpointGroup.getOpenCircuitCount() : 0;
+    }
+
+
+
+
+    /**
+     * The <b>queueSize</b> property takes a non-negative integer representing the number of logging events to retain for delivery to the remote receiver. When the queue size is zero, event delivery to the remote receiver is synchronous. When the queue
+     * size is greater than zero, the {@link #append(Object)} method returns immediately after enqueing the event, assuming that there is space available in the queue. Using a non-zero queue length can improve performance by eliminating delays caused by
+     * transient network delays. If the queue is full when the {@link #append(Object)} method is called, the <b>overflowPolicy</b> decides which event gets dropped.
+     *
+     * @param queueSize
+     *            the queue size to set.
+     */
+    public void setQueueSize(final int queueSize)
+    {
+        this.queueSize = queueSize;
+    }
+
+
+
+
+    /**
+     * Returns the value of the <b>queueSize</b> property.
+     */
+    public int getQueueSize()
+    {
+        return this.queueSize;
+    }
+
+
+
+
+    /**
+     * The <b>transport</b> property selects how events are written to the remote peer. {@value #TRANSPORT_BLOCKING} (the default) connects a blocking socket and occupies a thread of the context's executor, or a virtual thread, see
+     * <b>virtualThreads</b>, per connection for the lifetime of the appender, reconnecting included. {@value #TRANSPORT_NIO} uses a non-blocking socket channel served by the <b>ioThreads</b> shared by all socket appenders of the context, which also run the reconnection timers, so the number of
+     * threads stays the same however many appenders are configured; events are encoded into direct buffers and written with gathering writes. The nio transport requires a positive <b>queueSize</b>.
+     *
+     * @param transport
+     *            the transport to set.
+     */
+    public void setTransport(final String transport)
+    {
+        this.transport = transport;
+    }
+
+
+
+
+    /**
+     * Returns the value of the <b>transport</b> property.
+     */
+    public String getTransport()
+    {
+        return this.transport;
+    }
+
+
+
+
+    /**
+     * The <b>ioThreads</b> property takes the number of I/O threads the nio transport may use. The threads are shared by the connections of all socket appenders of the context, new connections are assigned to the least used one. The
+     * context starts at most as many threads as the largest value configured by any of its appenders. The default value is 1; more threads only help if encoding the events keeps a single thread busy.
+     */
+    public void setIoThreads(final int ioThreads)
+    {
+        this.ioThreads = ioThreads;
+    }
+
+
+
+
+    /**
+     * Returns the value of the <b>ioThreads</b> property.
+     */
+    public int getIoThreads()
+    {
+        return this.ioThreads;
+    }
+
+
+
+
+    /**
+     * The <b>virtualThreads</b> property makes the blocking transport run every dispatcher, which also connects and reconnects its socket, on a virtual thread of its own instead of a thread of the context's executor, so that many
+     * appenders and connections do not require sizing the executor. Requires Java 21 or later, older JVMs fall back to the executor of the context with a warning. The default value is <code>false</code>.
+     */
+    public void setVirtualThreads(final boolean virtualThreads)
+    {
+        this.virtualThreads = virtualThreads;
+    }
+
+
+
+
+    /**
+     * Returns the value of the <b>virtualThreads</b> property.
+     */
+    public boolean isVirtualThreads()
+    {
+        return this.virtualThreads;
+    }
+
+
+
+
+    /**
+     * The <b>compression</b> property selects the compression of the stream to the remote peer: {@value #COMPRESSION_NONE} (the default) or {@value #COMPRESSION_DEFLATE}. Deflate compression is flushed after every batch, so the receiver can
+     * decode every batch as soon as it arrives. The receiver has to inflate the stream.
+     *
+     * @param compression
+     *            the compression to set.
+     */
+    public void setCompression(final String compression)
+    {
+        this.compression = compression;
+    }
+
+
+
+
+    /**
+     * Returns the value of the <b>compression</b> property.
+     */
+    public String getCompression()
+    {
+        return this.compression;
+    }
+
+
+
+
+    /**
+     * The <b>compressionLevel</b> property takes the deflate level from 1 (fastest, the default) to 9 (smallest).
+     *
+     * @param compressionLevel
+     *            the compression level to set.
+     */
+    public void setCompressionLevel(final int compressionLevel)
+    {
+        this.compressionLevel = compressionLevel;
+    }
+
+
+
+
+    /**
+     * Returns the value of the <b>compressionLevel</b> property.
+     */
+    public int getCompressionLevel()
+    {
+        return this.compressionLevel;
+    }
+
+
+
+
+    /**
+     * The <b>overflowPolicy</b> property decides what happens when the queue is full: <code>dropNewest</code> (the default) drops the appended event, <code>dropOldest</code> evicts the oldest queued events, <code>block</code> waits up to
+     * <b>blockingTimeout</b> milliseconds for space and <code>dropBelowThreshold</code> drops discardable events at once and waits for the others. See {@link OverflowPolicy}.
+     * <p>
+     * Every dropped event is counted per level, see {@link #getDroppedEventCounts()}.
+     *
+     * @param overflowPolicy
+     *            the overflow policy to set.
+     */
+    public void setOverflowPolicy(final String overflowPolicy)
+    {
+        this.overflowPolicyName = overflowPolicy;
+    }
+
+
+
+
+    /**
+     * Returns the value of the <b>overflowPolicy</b> property.
+     */
+    public String getOverflowPolicy()
+    {
+        return this.overflowPolicyName;
+    }
+
+
+
+
+    /**
+     * The <b>blockingTimeout</b> property takes a non-negative integer representing the number of milliseconds an appending thread waits for space in a full queue with the <code>block</code> and <code>dropBelowThreshold</code> overflow policies.
+     * The default value is 100 milliseconds.
+     *
+     * @param blockingTimeout
+     *            timeout value in milliseconds
+     */
+    public void setBlockingTimeout(final int blockingTimeout)
+    {
+        this.blockingTimeout = blockingTimeout;
+    }
+
+
+
+
+    /**
+     * Returns the value of the <b>blockingTimeout</b> property.
+     */
+    public int getBlockingTimeout()
+    {
+        return this.blockingTimeout;
+    }
+
+
+
+
+    /**
+     * The <b>spillDirectory</b> property enables spilling. Events that do not fit into the queue, typically while the remote peer is unreachable, are serialized into memory-mapped segment files in this directory instead of being handed to the
+     * <b>overflowPolicy</b>. Once connected, spilled events are replayed in order after the queued events. Events only overflow if spilling fails, e.g. because <b>maxSpillSize</b> is reached. Events left on disk when the appender stops are replayed
+     * after the next start.
+     *
+     * @param spillDirectory
+     *            directory for spill segment files
+     */
+    public void setSpillDirectory(final String spillDirectory)
+    {
+        this.spillDirectory = spillDirectory;
+    }
+
+
+
+
+    /**
+     * Returns the value of the <b>spillDirectory</b> property.
+     */
+    public String getSpillDirectory()
+    {
+        return this.spillDirectory;
+    }
+
+
+
+
+    /**
+     * The <b>spillSegmentSize</b> property sets the size of a single spill segment file, e.g. <code>16MB</code> (the default). A single serialized event must fit into a segment.
+     */
+    public void setSpillSegmentSize(final FileSize spillSegmentSize)
+    {
+        this.spillSegmentSize = spillSegmentSize;
+    }
+
+
+
+
+    /**
+     * Returns the value of the <b>spillSegmentSize</b> property.
+     */
+    public FileSize getSpillSegmentSize()
+    {
+        return this.spillSegmentSize;
+    }
+
+
+
+
+    /**
+     * The <b>maxSpillSize</b> property limits the total size of all spill segment files, e.g. <code>1GB</code> (the default).
+     */
+    public void setMaxSpillSize(final FileSize maxSpillSize)
+    {
+        this.maxSpillSize = maxSpillSize;
+    }
+
+
+
+
+    /**
+     * Returns the value of the <b>maxSpillSize</b> property.
+     */
+    public FileSize getMaxSpillSize()
+    {
+        return this.maxSpillSize;
+    }
+
+
+
+
+    /**
+     * Returns the number of spilled events waiting for replay.
+     */
+    public long getSpilledEventCount()
+    {
+        final SpillQueue spillQueue = this.spillQueue;
+        return spillQueue != null ? spillQueue.size() : 0;
+    }
+
+
+
+
+    /**
+     * Returns the number of dropped events per level name, ordered by level name.
+     */
+    public Map<String, Long> getDroppedEventCounts()
+    {
+        final Map<String, Long> counts = new TreeMap<String, Long>();
+        for (final Map.Entry<String, AtomicLong> entry : this.droppedEvents.entrySet())
+        {
+            counts.put(entry.getKey(), entry.getValue().get());
+        }
+        return Collections.unmodifiableMap(counts);
+    }
+
+
+
+
+    /**
+     * Returns the total number of dropped events.
+     */
+    public long getDroppedEventCount()
+    {
+        long count = 0;
+        for (final AtomicLong counter : this.droppedEvents.values())
+        {
+            count += counter.get();
+        }
+        return count;
+    }
+
+
+
+
+    /**
+     * Returns the live counters and gauges of the appender.
+     */
+    public SocketAppenderMetrics getMetrics()
+    {
+        return this.metrics;
+    }
+
+
+
+
+    /**
+     * Adds a listener that is notified of every metrics update, e.g. to bridge them to a metrics library. Also available as nested <code>&lt;listener&gt;</code> element.
+     */
+    public void addListener(final SocketAppenderListener listener)
+    {
+        this.metrics.addListener(listener);
+    }
+
+
+
+
+    /**
+     * Removes a listener added by {@link #addListener(SocketAppenderListener)}.
+     */
+    public void removeListener(final SocketAppenderListener listener)
+    {
+        this.metrics.removeListener(listener);
+    }
+
+
+
+
+    /**
+     * The <b>jmx</b> property registers the {@link #getMetrics() metrics} of the appender with the platform MBean server while the appender is started, under the name
+     * <code>com.qoomon.logback:type=SocketAppender,context=&lt;context name&gt;,name=&lt;appender name&gt;</code>. Off by default.
+     */
+    public void setJmx(final boolean jmx)
+    {
+        this.jmx = jmx;
+    }
+
+
+
+
+    /**
+     * Returns the value of the <b>jmx</b> property.
+     */
+    public boolean isJmx()
+    {
+        return this.jmx;
+    }
+
+
+
+
+    /**
+     * The <b>recycleEvents</b> property queues preallocated event objects that are filled with a copy of the appended events and reused once delivered, instead of the appended events. The appended events then die young, rather than being
+     * promoted to the old generation while they wait in a full queue during a burst. One recycled event is allocated per event the queue can hold and per event of a batch in flight, appended events are queued as they are while all are in
+     * use. Off by default; requires support by the appender.
+     */
+    public void setRecycleEvents(final boolean recycleEvents)
+    {
+        this.recycleEvents = recycleEvents;
+    }
+
+
+
+
+    /**
+     * Returns the value of the <b>recycleEvents</b> property.
+     */
+    public boolean isRecycleEvents()
+    {
+        return this.recycleEvents;
+    }
+
+
+
+
+    /**
+     * The <b>drainTimeout</b> property takes the number of milliseconds {@link #stop()} waits for the established connections to deliver the queued events, in batches of at least {@value #DRAIN_BATCH_SIZE} events. Events left afterwards are
+     * spilled, passed to the fallback appenders given as nested <code>&lt;appender-ref ref="..."/&gt;</code> elements, or dropped. The default value is 1000 milliseconds, zero does not wait.
+     */
+    public void setDrainTimeout(final int drainTimeout)
+    {
+        this.drainTimeout = drainTimeout;
+    }
+
+
+
+
+    /**
+     * Returns the value of the <b>drainTimeout</b> property.
+     */
+    public int getDrainTimeout()
+    {
+        return this.drainTimeout;
+    }
+
+
+
+
+    /**
+     * Adds a fallback appender that receives the events left in the queue when the appender stops, see {@link #setDrainTimeout(int)}.
+     */
+    @Override
+    public void addAppender(final Appender<E> appender)
+    {
+        this.fallbackAppenders.addAppender(appender);
+    }
+
+
+
+
+    @Override
+    public Iterator<Appender<E>> iteratorForAppenders()
+    {
+        return this.fallbackAppenders.iteratorForAppenders();
+    }
+
+
+
+
+    @Override
+    public Appender<E> getAppender(final String name)
+    {
+        return this.fallbackAppenders.getAppender(name);
+    }
+
+
+
+
+    @Override
+    public boolean isAttached(final Appender<E> appender)
+    {
+        return this.fallbackAppenders.isAttached(appender);
+    }
+
+
+
+
+    @Override
+    public void detachAndStopAllAppenders()
+    {
+        this.fallbackAppenders.detachAndStopAllAppenders();
+    }
+
+
+
+
+    @Override
+    public boolean detachAppender(final Appender<E> appender)
+    {
+        return this.fallbackAppenders.detachAppender(appender);
+    }
+
+
+
+
+    @Override
+    public boolean detachAppender(final String name)
+    {
+        return this.fallbackAppenders.detachAppender(name);
+    }
+
+
+
+
+    /**
+     * The <b>queueType</b> property selects the queue that holds logging events until they are dispatched. {@value #QUEUE_TYPE_ARRAY} (the default) uses an {@link ArrayBlockingQueue} that is guarded by a single lock. {@value #QUEUE_TYPE_RING_BUFFER}
+     * uses a lock-free {@link RingBufferQueue} that scales with many concurrently logging threads; its capacity is the <b>queueSize</b> rounded up to the next power of two and must be positive.
+     *
+     * @param queueType
+     *            the queue type to set.
+     */
+    public void setQueueType(final String queueType)
+    {
+        this.queueType = queueType;
+    }
+
+
+
+
+    /**
+     * Returns the value of the <b>queueType</b> property.
+     */
+    public String getQueueType()
+    {
+        return this.queueType;
+    }
+
+
+
+
+    /**
+     * The <b>waitStrategy</b> property selects how the dispatcher waits for logging events on a {@value #QUEUE_TYPE_RING_BUFFER} queue, one of <code>spin</code>, <code>yield</code>, <code>park</code> or <code>blocking</code> (the default). See
+     * {@link WaitStrategy}.
+     *
+     * @param waitStrategy
+     *            the wait strategy to set.
+     */
+    public void setWaitStrategy(final String waitStrategy)
+    {
+        this.waitStrategy = waitStrategy;
+    }
+
+
+
+
+    /**
+     * Returns the value of the <b>waitStrategy</b> property.
+     */
+    public String getWaitStrategy()
+    {
+        return this.waitStrategy;
+    }
+
+
+
+
+    /**
+     * The <b>batchSize</b> property takes a positive integer representing the maximum number of logging events that are encoded into one buffer and written to the remote receiver with a single write. The default value of 1 writes every event on its own.
+     *
+     * @param batchSize
+     *            the batch size to set.
+     */
+    public void setBatchSize(final int batchSize)
+    {
+        this.batchSize = batchSize;
+    }
+
+
+
+
+    /**
+     * Returns the value of the <b>batchSize</b> property.
+     */
+    public int getBatchSize()
+    {
+        return this.batchSize;
+    }
+
+
+
+
+    /**
+     * The <b>lingerMillis</b> property takes a non-negative integer representing the number of milliseconds to wait for further logging events before a batch that is not yet full is written. The default value of 0 writes whatever is queued without
+     * waiting. Only effective with a <b>batchSize</b> greater than one.
+     *
+     * @param lingerMillis
+     *            the linger time in milliseconds.
+     */
+    public void setLingerMillis(final int lingerMillis)
+    {
+        this.lingerMillis = lingerMillis;
+    }
+
+
+
+
+    /**
+     * Returns the value of the <b>lingerMillis</b> property.
+     */
+    public int getLingerMillis()
+    {
+        return this.lingerMillis;
+    }
+
+
+
+
+    /**
+     * Sets the timeout that controls how long we'll wait for the remote peer to accept our connection attempt.
+     * <p>
+     * This property is configurable primarily to support instrumentation for unit testing.
+     *
+     * @param acceptConnectionTimeout
+     *            timeout value in milliseconds
+     */
+    void setAcceptConnectionTimeout(final int acceptConnectionTimeout)
+    {
+        this.acceptConnectionTimeout = acceptConnectionTimeout;
+    }
+
+
+
+
+    public Encoder<E> getEncoder()
+    {
+        return this.encoder;
+    }
+
+
+
+
+    public void setEncoder(final Encoder<E> encoder)
     {
         this.encoder = encoder;
     }
 
+
+
+
+    /**
+     * Connects one blocking socket and writes the events of its queue to it until the appender stops. Reconnects, failing over to the other endpoints, whenever the connection fails.
+     */
+    private final class Dispatcher implements Runnable
+    {
+        private final BlockingQueue<E>  queue;
+        private final List<E>           batch       = new ArrayList<E>(AbstractSocketAppender.this.batchSize);
+        private final ByteArrayOutputStream batchBuffer = new ByteArrayOutputStream(INITIAL_BATCH_BUFFER_SIZE);
+        private volatile Future<?>      task;
+        private volatile Socket         socket;
+        private volatile OutputStream   outputStream;
+        private volatile Encoder<E>     connectionEncoder;
+        private CountingOutputStream    countingStream;
+        private String                  peerId      = AbstractSocketAppender.this.peerId;
+        private Endpoint                endpoint;
+        private boolean                 connectedBefore;
+        private volatile boolean        draining;
+        private Thread                  thread;
+        private boolean                 writing;
+
+
+
+
+        Dispatcher(final BlockingQueue<E> queue)
+        {
+            this.queue = queue;
+        }
+
+
+
+
+        /**
+         * {@inheritDoc}
+         */
+        @Override
+        public void run()
+        {
+            final AbstractSocketAppender<E> appender = AbstractSocketAppender.this;
+            synchronized (this)
+            {
+                this.thread = Thread.currentThread();
+            }
+            try
+            {
+                while (!Thread.currentThread().isInterrupted() && !this.draining)
+                {
+                    final SocketConnector connector;
+                    Endpoint endpoint = null;
+                    if (appender.endpointGroup.size() == 1 && !appender.hasReconnectionPolicy())
+                    {
+                        endpoint = appender.endpointGroup.next();
+                        connector = appender.createConnector(endpoint.resolve(appender.dnsRefreshInterval),
+                                endpoint.getPort(), 0, appender.reconnectionDelay);
+                    }
+                    else
+                    {
+                        connector = new EndpointConnector(appender.endpointGroup, appender.reconnectionDelay,
+                                appender.dnsRefreshInterval);
+                        connector.setExceptionHandler(appender);
+                        connector.setSocketFactory(appender.getSocketFactory());
+                    }
+
+                    // connect on this thread, reconnecting does not take another thread of the executor
+                    this.socket = connector.call();
+                    if (this.socket == null)
+                    {
+                        break;
+                    }
+                    if (connector instanceof EndpointConnector)
+                    {
+                        endpoint = ((EndpointConnector) connector).getEndpoint();
+                    }
+                    this.peerId = endpoint.getPeerId();
+                    this.endpoint = endpoint;
+                    appender.endpointGroup.connected(endpoint);
+                    try
+                    {
+                        this.dispatchEvents();
+                    }
+                    finally
+                    {
+                        endpoint.disconnected();
+                    }
+                    if (this.draining)
+                    {
+                        break;
+                    }
+                    // fail over to the other endpoints first
+                    appender.endpointGroup.failed(endpoint);
+                }
+            }
+            catch (final InterruptedException ex)
+            {
+                assert true; // ok... we'll exit now
+            }
+            catch (final UnknownHostException ex)
+            {
+                appender.addError("unknown host: " + ex.getMessage());
+            }
+            finally
+            {
+                synchronized (this)
+                {
+                    // the pooled thread must not be interrupted by a late drain()
+                    this.thread = null;
+                }
+            }
+            appender.addInfo("shutting down");
+        }
+
+
+
+
+        /**
+         * Makes the dispatcher deliver the queued events and close its connection once the queue is empty. Wakes it up if it is waiting for an event or a connection, a dispatcher that is not connected gives up.
+         */
+        synchronized void drain()
+        {
+            this.draining = true;
+            // socket I/O of virtual threads is interruptible, a batch being written must not be aborted
+            if (this.thread != null && !this.writing)
+            {
+                this.thread.interrupt();
+            }
+        }
+
+
+
+
+        private synchronized void writing(final boolean writing)
+        {
+            this.writing = writing;
+            if (writing && this.draining)
+            {
+                // woken up by drain() but did not have to wait
+                Thread.interrupted();
+            }
+        }
+
+
+
+
+        /**
+         * Waits until the dispatcher has drained its queue and closed its connection.
+         *
+         * @return <code>false</code> if the deadline has passed
+         */
+        boolean awaitDrained(final long deadline)
+        {
+            try
+            {
+                this.task.get(Math.max(0, deadline - System.nanoTime()), TimeUnit.NANOSECONDS);
+            }
+            catch (final TimeoutException ex)
+            {
+                return false;
+            }
+            catch (final InterruptedException ex)
+            {
+                Thread.currentThread().interrupt();
+                return false;
+            }
+            catch (final ExecutionException ex)
+            {
+                assert true; // terminated anyway
+            }
+            catch (final CancellationException ex)
+            {
+                assert true; // terminated anyway
+            }
+            return true;
+        }
+
+
+
+
+        /**
+         * Closes the socket and cancels the dispatcher. Only the dispatcher itself writes the footer, once it has drained its queue, so a dispatcher that has not drained within the <b>drainTimeout</b> is cut off without one.
+         */
+        void stop()
+        {
+            CloseUtil.closeQuietly(this.socket);
+            this.task.cancel(true);
+        }
+
+
+
+
+        private void dispatchEvents() throws InterruptedException
+        {
+            boolean connected = false;
+            try
+            {
+                this.socket.setSoTimeout(AbstractSocketAppender.this.acceptConnectionTimeout);
+                this.connectionEncoder = AbstractSocketAppender.this.newConnectionEncoder();
+                this.countingStream = new CountingOutputStream(this.socket.getOutputStream());
+                this.outputStream = AbstractSocketAppender.this.newOutputStream(this.countingStream);
+                this.encoderInit();
+                this.socket.setSoTimeout(0);
+                AbstractSocketAppender.this.addInfo(this.peerId + "connection established");
+                AbstractSocketAppender.this.metrics.connected(this.peerId, this.connectedBefore);
+                connected = true;
+                this.connectedBefore = true;
+                while (this.drainBatch())
+                {
+                    this.writing(true);
+                    try
+                    {
+                        this.writeBatch();
+                    }
+                    finally
+                    {
+                        this.writing(false);
+                    }
+                    AbstractSocketAppender.this.release(this.batch);
+                }
+                // drained
+                this.encoderClose();
+            }
+            catch (final IOException ex)
+            {
+                AbstractSocketAppender.this.addInfo(this.peerId + "connection failed: " + ex);
+            }
+            finally
+            {
+                AbstractSocketAppender.this.batchFailed(this.batch, this.peerId);
+                CloseUtil.closeQuietly(this.socket);
+                this.socket = null;
+                CompressingOutputStream.release(this.outputStream);
+                this.outputStream = null;
+                this.countingStream = null;
+                AbstractSocketAppender.this.addInfo(this.peerId + "connection closed");
+                if (connected)
+                {
+                    AbstractSocketAppender.this.metrics.disconnected(this.peerId);
+                }
+            }
+        }
+
+
+
+
+        /**
+         * Blocks until at least one event is available, then collects further events until either {@link AbstractSocketAppender#getBatchSize() batchSize} events are collected or
+         * {@link AbstractSocketAppender#getLingerMillis() lingerMillis} have elapsed. While draining, batches hold at least {@value AbstractSocketAppender#DRAIN_BATCH_SIZE} events and do not linger.
+         * <p>
+         * Queued events are older than spilled ones, because appended events bypass the queue as long as there are spilled events. So the queue is drained first and spilled events are replayed after it.
+         *
+         * @return <code>false</code> if the dispatcher is draining and the queue is empty
+         */
+        private boolean drainBatch() throws InterruptedException
+        {
+            final int batchSize = this.draining ?
+                    Math.max(AbstractSocketAppender.this.batchSize, DRAIN_BATCH_SIZE) : AbstractSocketAppender.this.batchSize;
+            final List<E> batch = this.batch;
+            E first = AbstractSocketAppender.this.nextEvent(this.queue);
+            if (first == null)
+            {
+                first = this.take();
+                if (first == null)
+                {
+                    return false;
+                }
+            }
+            batch.add(first);
+            AbstractSocketAppender.this.metrics.queueDepthSampled(this.queue.size() + 1);
+            if (batchSize == 1)
+            {
+                return true;
+            }
+            E event;
+            while (batch.size() < batchSize && (event = AbstractSocketAppender.this.nextEvent(this.queue)) != null)
+            {
+                batch.add(event);
+            }
+
+            final long deadline = System.nanoTime() + TimeUnit.MILLISECONDS.toNanos(AbstractSocketAppender.this.lingerMillis);
+            while (batch.size() < batchSize && !this.draining)
+            {
+                final long remaining = deadline - System.nanoTime();
+                if (remaining <= 0)
+                {
+                    break;
+                }
+                try
+                {
+                    event = this.queue.poll(remaining, TimeUnit.NANOSECONDS);
+                }
+                catch (final InterruptedException ex)
+                {
+                    if (!this.draining)
+                    {
+                        throw ex;
+                    }
+                    break;
+                }
+                if (event == null)
+                {
+                    break;
+                }
+                batch.add(event);
+                this.queue.drainTo(batch, batchSize - batch.size());
+            }
+            return true;
+        }
+
+
+
+
+        /**
+         * Waits for the next event.
+         *
+         * @return the event or <code>null</code> if the dispatcher is draining and the queue is empty
+         */
+        private E take() throws InterruptedException
+        {
+            while (!this.draining)
+            {
+                try
+                {
+                    return this.queue.take();
+                }
+                catch (final InterruptedException ex)
+                {
+                    if (!this.draining)
+                    {
+                        throw ex;
+                    }
+                }
+            }
+            return AbstractSocketAppender.this.nextEvent(this.queue);
+        }
+
+
+
+
+        /**
+         * Encodes all events of the batch into the reusable batch buffer and hands it to the socket with a single write. The events count as sent once the socket has taken them.
+         */
+        private void writeBatch() throws IOException
+        {
+            final long start = System.nanoTime();
+            this.batchBuffer.reset();
+            for (final E event : this.batch)
+            {
+                final byte[] bytes = AbstractSocketAppender.this.encodeEvent(this.connectionEncoder, event);
+                if (bytes != null)
+                {
+                    this.batchBuffer.write(bytes, 0, bytes.length);
+                }
+            }
+            final long encoded = System.nanoTime();
+            final long written = this.countingStream.count;
+            this.batchBuffer.writeTo(this.outputStream);
+            this.outputStream.flush();
+            AbstractSocketAppender.this.metrics.bytesWritten(this.countingStream.count - written,
+                    System.nanoTime() - encoded);
+            AbstractSocketAppender.this.metrics.eventsSent(this.batch.size(), encoded - start);
+            AbstractSocketAppender.this.endpointGroup.delivered(this.endpoint);
+        }
+
+
+
+
+        private void encoderInit()
+        {
+            final AbstractSocketAppender<E> appender = AbstractSocketAppender.this;
+            final Encoder<E> encoder = this.connectionEncoder;
+            if (encoder != null && this.outputStream != null)
+            {
+                try
+                {
+                    this.writeBytes(encoder.headerBytes());
+                }
+                catch (final IOException ioe)
+                {
+                    appender.started = false;
+                    appender.addStatus(new ErrorStatus(
+                            "Failed to initialize encoder for appender named [" + appender.name + "].",
+                            appender, ioe));
+                }
+            }
+        }
+
+
+
+
+        private void encoderClose()
+        {
+            final AbstractSocketAppender<E> appender = AbstractSocketAppender.this;
+            final Encoder<E> encoder = this.connectionEncoder;
+            if (encoder != null && this.outputStream != null)
+            {
+                try
+                {
+                    this.writeBytes(encoder.footerBytes());
+                }
+                catch (final IOException ioe)
+                {
+                    appender.started = false;
+                    appender.addStatus(new ErrorStatus("Failed to write footer for appender named ["
+                            + appender.name + "].", appender, ioe));
+                }
+            }
+        }
+
+
+
+
+        private void writeBytes(final byte[] bytes) throws IOException
+        {
+            final OutputStream outputStream = this.outputStream;
+            if (bytes != null && bytes.length > 0 && outputStream != null)
+            {
+                outputStream.write(bytes);
+                outputStream.flush();
+            }
+        }
+    }
+
+
+
+
+    /**
+     * Counts the bytes written to a socket.
+     */
+    private static final class CountingOutputStream extends FilterOutputStream
+    {
+        private long count;
+
+
+
+
+        CountingOutputStream(final OutputStream out)
+        {
+            super(out);
+        }
+
+
+
+
+        @Override
+        public void write(final int b) throws IOException
+        {
+            this.out.write(b);
+            this.count++;
+        }
+
+
+
+
+        @Override
+        public void write(final byte[] bytes, final int offset, final int length) throws IOException
+        {
+            this.out.write(bytes, offset, length);
+            this.count += length;
+        }
+    }
+
 }
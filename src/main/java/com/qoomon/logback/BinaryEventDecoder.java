@@ -0,0 +1,732 @@
+package com.qoomon.logback;
+
+import static com.qoomon.logback.BinaryEventEncoder.DEFAULT_DICTIONARY_SIZE;
+import static com.qoomon.logback.BinaryEventEncoder.LEVEL_UNIT;
+import static com.qoomon.logback.BinaryEventEncoder.MAX_DICTIONARY_STRING_LENGTH;
+import static com.qoomon.logback.BinaryEventEncoder.MAX_THROWABLE_DEPTH;
+import static com.qoomon.logback.BinaryEventEncoder.MAGIC;
+import static com.qoomon.logback.BinaryEventEncoder.RECORD_CONTEXT;
+import static com.qoomon.logback.BinaryEventEncoder.RECORD_END;
+import static com.qoomon.logback.BinaryEventEncoder.RECORD_EVENT;
+import static com.qoomon.logback.BinaryEventEncoder.STRING_DEFINITION;
+import static com.qoomon.logback.BinaryEventEncoder.STRING_LITERAL;
+import static com.qoomon.logback.BinaryEventEncoder.STRING_NULL;
+import static com.qoomon.logback.BinaryEventEncoder.STRING_REFERENCE;
+import static com.qoomon.logback.BinaryEventEncoder.THROWABLE_CYCLIC;
+import static com.qoomon.logback.BinaryEventEncoder.THROWABLE_NONE;
+import static com.qoomon.logback.BinaryEventEncoder.VERSION;
+
+import java.io.BufferedInputStream;
+import java.io.DataInputStream;
+import java.io.EOFException;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.StreamCorruptedException;
+import java.nio.charset.StandardCharsets;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+
+import org.slf4j.Marker;
+import org.slf4j.event.KeyValuePair;
+import org.slf4j.helpers.BasicMarkerFactory;
+import org.slf4j.helpers.MessageFormatter;
+
+import ch.qos.logback.classic.Level;
+import ch.qos.logback.classic.spi.CallerData;
+import ch.qos.logback.classic.spi.ILoggingEvent;
+import ch.qos.logback.classic.spi.IThrowableProxy;
+import ch.qos.logback.classic.spi.LoggerContextVO;
+import ch.qos.logback.classic.spi.StackTraceElementProxy;
+
+/**
+ * Reads the logging events of a stream written by {@link BinaryEventEncoder}, e.g. on the receiving end of a socket appender. The events are read-only views, like the events deserialized from a classic socket appender. Messages
+ * sent as pattern and arguments are formatted when they are first asked for.
+ * <p>
+ * The limits of the encoder are enforced, so that a corrupt stream fails with a {@link StreamCorruptedException} instead of exhausting the memory or the stack: dictionary strings are at most
+ * {@link BinaryEventEncoder#MAX_DICTIONARY_STRING_LENGTH} characters long, the dictionary holds at most <b>dictionarySize</b> strings and an event holds at most {@value #MAX_COUNT} elements of a kind, e.g. MDC entries or stack
+ * frames, and causes and suppressed exceptions are nested at most {@link BinaryEventEncoder#MAX_THROWABLE_DEPTH} deep. Other strings are read as their bytes arrive.
+ * <p>
+ * A decoder reads a single stream and is not thread-safe.
+ *
+ * @author bengtbrodersen
+ *
+ */
+public class BinaryEventDecoder
+{
+
+    /**
+     * Maximum number of arguments, MDC entries, markers, key-value pairs, stack frames or suppressed exceptions of an event.
+     */
+    public static final int                     MAX_COUNT                     = 64 * 1024;
+
+    // a character takes up to 3 bytes in UTF-8, a surrogate pair of 2 characters 4 bytes
+    private static final int                    MAX_DICTIONARY_STRING_BYTES   = MAX_DICTIONARY_STRING_LENGTH * 3;
+
+    private static final IThrowableProxy[]      NO_THROWABLES                 = new IThrowableProxy[0];
+
+    private final DataInputStream               in;
+    private final int                           dictionarySize;
+    private final List<String>                  dictionary                    = new ArrayList<String>();
+    private final BasicMarkerFactory            markerFactory                 = new BasicMarkerFactory();
+    private byte[]                              stringBuffer                  = new byte[256];
+    private boolean                             headerRead;
+    private long                                timestamp;
+    private long                                sequenceNumber;
+    private LoggerContextVO                     context;
+
+
+
+
+    /**
+     * Creates a decoder for streams of encoders with a <b>dictionarySize</b> of up to {@value BinaryEventEncoder#DEFAULT_DICTIONARY_SIZE}.
+     */
+    public BinaryEventDecoder(final InputStream in)
+    {
+        this(in, DEFAULT_DICTIONARY_SIZE);
+    }
+
+
+
+
+    /**
+     * @param dictionarySize
+     *            the maximum number of strings in the dictionary, at least the <b>dictionarySize</b> of the encoder
+     */
+    public BinaryEventDecoder(final InputStream in, final int dictionarySize)
+    {
+        this.in = new DataInputStream(new BufferedInputStream(in));
+        this.dictionarySize = dictionarySize;
+    }
+
+
+
+
+    /**
+     * Reads the next event.
+     *
+     * @return the event, or <code>null</code> at the end of the stream
+     * @throws IOException
+     *             if the stream fails, ends within an event or was not written by a {@link BinaryEventEncoder}
+     */
+    public ILoggingEvent readEvent() throws IOException
+    {
+        if (!this.headerRead)
+        {
+            if (!this.readHeader())
+            {
+                return null;
+            }
+            this.headerRead = true;
+        }
+        while (true)
+        {
+            final int record = this.in.read();
+            if (record == -1 || record == RECORD_END)
+            {
+                return null;
+            }
+            if (record == RECORD_CONTEXT)
+            {
+                this.context = this.readContext();
+            }
+            else if (record == RECORD_EVENT)
+            {
+                return this.readEventRecord();
+            }
+            else
+            {
+                throw new StreamCorruptedException("Unknown record type " + record);
+            }
+        }
+    }
+
+
+
+
+    /**
+     * @return <code>false</code> if the stream is empty
+     */
+    private boolean readHeader() throws IOException
+    {
+        final int first = this.in.read();
+        if (first == -1)
+        {
+            return false;
+        }
+        final byte[] magic = new byte[MAGIC.length];
+        magic[0] = (byte) first;
+        this.in.readFully(magic, 1, magic.length - 1);
+        for (int i = 0; i < MAGIC.length; i++)
+        {
+            if (magic[i] != MAGIC[i])
+            {
+                throw new StreamCorruptedException("Not a binary event stream");
+            }
+        }
+        final int version = this.in.readUnsignedByte();
+        if (version != VERSION)
+        {
+            throw new StreamCorruptedException("Unsupported binary event stream version " + version);
+        }
+        return true;
+    }
+
+
+
+
+    private LoggerContextVO readContext() throws IOException
+    {
+        final String name = this.readString();
+        final long birthTime = this.readVarint();
+        final Map<String, String> properties = this.readMap();
+        return new LoggerContextVO(name, properties, birthTime);
+    }
+
+
+
+
+    private ILoggingEvent readEventRecord() throws IOException
+    {
+        final DecodedEvent event = new DecodedEvent();
+        event.loggerContext = this.context;
+        this.timestamp += this.readSignedVarint();
+        event.timestamp = this.timestamp;
+        event.level = Level.toLevel((int) this.readSignedVarint() * LEVEL_UNIT);
+        this.sequenceNumber += this.readSignedVarint();
+        event.sequenceNumber = this.sequenceNumber;
+        event.loggerName = this.readString();
+        event.threadName = this.readString();
+        event.message = this.readString();
+        final int argumentCount = this.readCount();
+        if (argumentCount > 0)
+        {
+            event.arguments = new String[argumentCount];
+            for (int i = 0; i < argumentCount; i++)
+            {
+                event.arguments[i] = this.readString();
+            }
+        }
+        event.mdc = this.readMap();
+
+        final int markerCount = this.readCount();
+        if (markerCount > 0)
+        {
+            event.markers = new ArrayList<Marker>(markerCount);
+            for (int i = 0; i < markerCount; i++)
+            {
+                event.markers.add(this.markerFactory.getDetachedMarker(this.readString()));
+            }
+        }
+
+        final int keyValuePairCount = this.readCount();
+        if (keyValuePairCount > 0)
+        {
+            event.keyValuePairs = new ArrayList<KeyValuePair>(keyValuePairCount);
+            for (int i = 0; i < keyValuePairCount; i++)
+            {
+                event.keyValuePairs.add(new KeyValuePair(this.readString(), this.readString()));
+            }
+        }
+
+        event.callerData = this.readFrames();
+        event.throwable = this.readThrowable(1);
+        return event;
+    }
+
+
+
+
+    private Map<String, String> readMap() throws IOException
+    {
+        final int count = this.readCount();
+        if (count == 0)
+        {
+            return Collections.emptyMap();
+        }
+        final Map<String, String> map = new HashMap<String, String>(count * 2);
+        for (int i = 0; i < count; i++)
+        {
+            map.put(this.readString(), this.readString());
+        }
+        return map;
+    }
+
+
+
+
+    private StackTraceElement[] readFrames() throws IOException
+    {
+        final int count = this.readCount();
+        if (count == 0)
+        {
+            return null;
+        }
+        final StackTraceElement[] frames = new StackTraceElement[count];
+        for (int i = 0; i < count; i++)
+        {
+            frames[i] = this.readFrame();
+        }
+        return frames;
+    }
+
+
+
+
+    private StackTraceElement readFrame() throws IOException
+    {
+        final String className = this.readString();
+        final String methodName = this.readString();
+        final String fileName = this.readString();
+        final int lineNumber = (int) this.readSignedVarint();
+        return new StackTraceElement(className, methodName, fileName, lineNumber);
+    }
+
+
+
+
+    private IThrowableProxy readThrowable(final int depth) throws IOException
+    {
+        final int type = this.in.readUnsignedByte();
+        if (type == THROWABLE_NONE)
+        {
+            return null;
+        }
+        if (depth > MAX_THROWABLE_DEPTH)
+        {
+            throw new StreamCorruptedException("Exceptions nested deeper than " + MAX_THROWABLE_DEPTH);
+        }
+        final DecodedThrowableProxy throwable = new DecodedThrowableProxy();
+        throwable.cyclic = type == THROWABLE_CYCLIC;
+        throwable.className = this.readString();
+        throwable.message = this.readString();
+        final int frameCount = this.readCount();
+        throwable.frames = new StackTraceElementProxy[frameCount];
+        for (int i = 0; i < frameCount; i++)
+        {
+            throwable.frames[i] = new StackTraceElementProxy(this.readFrame());
+        }
+        throwable.commonFrames = this.readCount();
+        throwable.cause = this.readThrowable(depth + 1);
+        final int suppressedCount = this.readCount();
+        throwable.suppressed = suppressedCount == 0 ? NO_THROWABLES : new IThrowableProxy[suppressedCount];
+        for (int i = 0; i < suppressedCount; i++)
+        {
+            throwable.suppressed[i] = this.readThrowable(depth + 1);
+        }
+        return throwable;
+    }
+
+
+
+
+    private String readString() throws IOException
+    {
+        final long tag = this.readVarint();
+        if (tag == STRING_NULL)
+        {
+            return null;
+        }
+        if (tag == STRING_LITERAL || tag == STRING_DEFINITION)
+        {
+            final int slot = tag == STRING_DEFINITION ? this.readSlot() : -1;
+            final int length = this.readLength();
+            if (slot >= 0 && length > MAX_DICTIONARY_STRING_BYTES)
+            {
+                throw new StreamCorruptedException("Invalid dictionary string length " + length);
+            }
+            this.readStringBytes(length);
+            final String string = new String(this.stringBuffer, 0, length, StandardCharsets.UTF_8);
+            if (slot == this.dictionary.size())
+            {
+                this.dictionary.add(string);
+            }
+            else if (slot >= 0)
+            {
+                this.dictionary.set(slot, string);
+            }
+            return string;
+        }
+        final long slot = tag - STRING_REFERENCE;
+        if (slot >= this.dictionary.size())
+        {
+            throw new StreamCorruptedException("Unknown string reference " + slot);
+        }
+        return this.dictionary.get((int) slot);
+    }
+
+
+
+
+    private int readSlot() throws IOException
+    {
+        final long slot = this.readVarint();
+        if (slot > this.dictionary.size() || slot >= this.dictionarySize)
+        {
+            throw new StreamCorruptedException("Invalid dictionary slot " + slot);
+        }
+        return (int) slot;
+    }
+
+
+
+
+    /**
+     * Reads the bytes of a string into the string buffer. The buffer grows with the bytes that have arrived, so a corrupt length ends the stream instead of allocating its size up front.
+     */
+    private void readStringBytes(final int length) throws IOException
+    {
+        int read = 0;
+        while (read < length)
+        {
+            if (read == this.stringBuffer.length)
+            {
+                this.stringBuffer = Arrays.copyOf(this.stringBuffer, (int) Math.min(length, this.stringBuffer.length * 2L));
+            }
+            final int chunk = Math.min(length, this.stringBuffer.length) - read;
+            this.in.readFully(this.stringBuffer, read, chunk);
+            read += chunk;
+        }
+    }
+
+
+
+
+    private int readLength() throws IOException
+    {
+        final long length = this.readVarint();
+        if (length > Integer.MAX_VALUE)
+        {
+            throw new StreamCorruptedException("Invalid length " + length);
+        }
+        return (int) length;
+    }
+
+
+
+
+    private int readCount() throws IOException
+    {
+        final long count = this.readVarint();
+        if (count > MAX_COUNT)
+        {
+            throw new StreamCorruptedException("Invalid count " + count);
+        }
+        return (int) count;
+    }
+
+
+
+
+    private long readSignedVarint() throws IOException
+    {
+        final long value = this.readVarint();
+        return value >>> 1 ^ -(value & 1);
+    }
+
+
+
+
+    private long readVarint() throws IOException
+    {
+        long value = 0;
+        for (int shift = 0; shift < 64; shift += 7)
+        {
+            final int b = this.in.read();
+            if (b == -1)
+            {
+                throw new EOFException();
+            }
+            value |= (long) (b & 0x7F) << shift;
+            if ((b & 0x80) == 0)
+            {
+                return value;
+            }
+        }
+        throw new StreamCorruptedException("Malformed variable length integer");
+    }
+
+
+
+
+    /**
+     * A decoded logging event.
+     */
+    private static final class DecodedEvent implements ILoggingEvent
+    {
+        LoggerContextVO     loggerContext;
+        long                timestamp;
+        Level               level;
+        long                sequenceNumber;
+        String              loggerName;
+        String              threadName;
+        String              message;
+        String[]            arguments;
+        String              formattedMessage;
+        Map<String, String> mdc;
+        List<Marker>        markers;
+        List<KeyValuePair>  keyValuePairs;
+        StackTraceElement[] callerData;
+        IThrowableProxy     throwable;
+
+
+
+
+        @Override
+        public String getThreadName()
+        {
+            return this.threadName;
+        }
+
+
+
+
+        @Override
+        public Level getLevel()
+        {
+            return this.level;
+        }
+
+
+
+
+        @Override
+        public String getMessage()
+        {
+            return this.message;
+        }
+
+
+
+
+        @Override
+        public Object[] getArgumentArray()
+        {
+            return this.arguments;
+        }
+
+
+
+
+        @Override
+        public String getFormattedMessage()
+        {
+            if (this.formattedMessage == null)
+            {
+                this.formattedMessage = this.arguments != null ?
+                        MessageFormatter.arrayFormat(this.message, this.arguments).getMessage() : this.message;
+            }
+            return this.formattedMessage;
+        }
+
+
+
+
+        @Override
+        public String getLoggerName()
+        {
+            return this.loggerName;
+        }
+
+
+
+
+        @Override
+        public LoggerContextVO getLoggerContextVO()
+        {
+            return this.loggerContext;
+        }
+
+
+
+
+        @Override
+        public IThrowableProxy getThrowableProxy()
+        {
+            return this.throwable;
+        }
+
+
+
+
+        @Override
+        public StackTraceElement[] getCallerData()
+        {
+            return this.callerData != null ? this.callerData : CallerData.EMPTY_CALLER_DATA_ARRAY;
+        }
+
+
+
+
+        @Override
+        public boolean hasCallerData()
+        {
+            return this.callerData != null;
+        }
+
+
+
+
+        @Override
+        public List<Marker> getMarkerList()
+        {
+            return this.markers;
+        }
+
+
+
+
+        @Override
+        public Map<String, String> getMDCPropertyMap()
+        {
+            return this.mdc;
+        }
+
+
+
+
+        @Override
+        @Deprecated
+        public Map<String, String> getMdc()
+        {
+            return this.mdc;
+        }
+
+
+
+
+        @Override
+        public long getTimeStamp()
+        {
+            return this.timestamp;
+        }
+
+
+
+
+        @Override
+        public int getNanoseconds()
+        {
+            return -1;
+        }
+
+
+
+
+        @Override
+        public long getSequenceNumber()
+        {
+            return this.sequenceNumber;
+        }
+
+
+
+
+        @Override
+        public List<KeyValuePair> getKeyValuePairs()
+        {
+            return this.keyValuePairs;
+        }
+
+
+
+
+        @Override
+        public void prepareForDeferredProcessing()
+        {
+        }
+
+
+
+
+        @Override
+        public String toString()
+        {
+            return "[" + this.level + "] " + this.getFormattedMessage();
+        }
+    }
+
+
+
+
+    /**
+     * A decoded throwable.
+     */
+    private static final class DecodedThrowableProxy implements IThrowableProxy
+    {
+        String                   className;
+        String                   message;
+        StackTraceElementProxy[] frames;
+        int                      commonFrames;
+        IThrowableProxy          cause;
+        IThrowableProxy[]        suppressed;
+        boolean                  cyclic;
+
+
+
+
+        @Override
+        public String getMessage()
+        {
+            return this.message;
+        }
+
+
+
+
+        @Override
+        public String getClassName()
+        {
+            return this.className;
+        }
+
+
+
+
+        @Override
+        public StackTraceElementProxy[] getStackTraceElementProxyArray()
+        {
+            return this.frames;
+        }
+
+
+
+
+        @Override
+        public int getCommonFrames()
+        {
+            return this.commonFrames;
+        }
+
+
+
+
+        @Override
+        public IThrowableProxy getCause()
+        {
+            return this.cause;
+        }
+
+
+
+
+        @Override
+        public IThrowableProxy[] getSuppressed()
+        {
+            return this.suppressed;
+        }
+
+
+
+
+        @Override
+        public boolean isCyclic()
+        {
+            return this.cyclic;
+        }
+    }
+
+}
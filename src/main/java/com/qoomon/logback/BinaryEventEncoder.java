@@ -0,0 +1,548 @@
+package com.qoomon.logback;
+
+import java.math.BigDecimal;
+import java.math.BigInteger;
+import java.util.Arrays;
+import java.util.Iterator;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+
+import org.slf4j.Marker;
+import org.slf4j.event.KeyValuePair;
+
+import ch.qos.logback.classic.Level;
+import ch.qos.logback.classic.spi.ILoggingEvent;
+import ch.qos.logback.classic.spi.IThrowableProxy;
+import ch.qos.logback.classic.spi.LoggerContextVO;
+import ch.qos.logback.classic.spi.StackTraceElementProxy;
+import ch.qos.logback.core.encoder.Encoder;
+import ch.qos.logback.core.encoder.EncoderBase;
+
+/**
+ * Encodes logging events into a compact binary stream, read by {@link BinaryEventDecoder}, instead of serializing them with Java serialization.
+ * <p>
+ * Numbers are written as variable length integers, timestamps and sequence numbers as the difference to the previous event. Logger and thread names, message patterns, MDC, marker and key-value keys, the names of exception classes and
+ * the parts of stack frames are written once per stream together with a slot of the dictionary and referenced by that slot afterwards. The dictionary holds up to <b>dictionarySize</b> strings; when it is full, the least recently used
+ * string gives up its slot. The logger context is only written when it changes. A message is written as its pattern and arguments if all arguments are immutable values like strings, numbers and enums, whose text is the same on the
+ * receiving end, otherwise as the formatted message. Values are always written as they are. Sub-millisecond time and the references between markers are not transmitted.
+ * <p>
+ * The encoder is a {@link PerConnectionEncoder}: every connection of a socket appender gets an instance of its own whose dictionary starts empty with the header of the connection. An instance is not thread-safe.
+ *
+ * <pre>
+ * stream    = header record* end
+ * header    = 'L' 'B' 'X' 'B' version
+ * end       = 0
+ * record    = context | event
+ * context   = 2 string:name varint:birthTime varint:count (string:key string:value)*
+ * event     = 1 svarint:timestampDelta svarint:level svarint:sequenceNumberDelta string:logger string:thread
+ *             string:message varint:count string:argument*   the pattern and its arguments, or the formatted message without arguments
+ *             varint:count (string:key string:value)*   MDC
+ *             varint:count string:marker*
+ *             varint:count (string:key string:value)*   key-value pairs
+ *             frames:callerData throwable
+ * throwable = 0 | (1 | 2:cyclic) string:className string:message frames varint:commonFrames throwable:cause varint:count throwable:suppressed*
+ * frames    = varint:count (string:className string:methodName string:fileName svarint:lineNumber)*
+ * string    = 0:null | 1 varint:length utf8 | 2 varint:slot varint:length utf8 (stored in the dictionary) | 3+slot (reference to the dictionary)
+ * </pre>
+ *
+ * @author bengtbrodersen
+ *
+ */
+public class BinaryEventEncoder extends EncoderBase<ILoggingEvent> implements PerConnectionEncoder<ILoggingEvent>
+{
+
+    /**
+     * Default maximum number of strings in the dictionary of a stream.
+     */
+    public static final int            DEFAULT_DICTIONARY_SIZE      = 4096;
+
+    /**
+     * Maximum length of a string in the dictionary; longer strings are always written in full, so that a few of them cannot take up a lot of memory on both ends.
+     */
+    public static final int            MAX_DICTIONARY_STRING_LENGTH = 1024;
+
+    /**
+     * Maximum nesting of causes and suppressed exceptions; deeper ones are left out, so that decoding a stream cannot overflow the stack.
+     */
+    public static final int            MAX_THROWABLE_DEPTH          = 256;
+
+    static final byte[]                MAGIC                        = { 'L', 'B', 'X', 'B' };
+    static final int                   VERSION                      = 2;
+
+    static final int                   RECORD_END                   = 0;
+    static final int                   RECORD_EVENT                 = 1;
+    static final int                   RECORD_CONTEXT               = 2;
+
+    static final int                   STRING_NULL                  = 0;
+    static final int                   STRING_LITERAL               = 1;
+    static final int                   STRING_DEFINITION            = 2;
+    static final int                   STRING_REFERENCE             = 3;
+
+    static final int                   THROWABLE_NONE               = 0;
+    static final int                   THROWABLE                    = 1;
+    static final int                   THROWABLE_CYCLIC             = 2;
+
+    /**
+     * The levels of logging events are multiples of this value, it is divided out to fit them into a byte.
+     */
+    static final int                   LEVEL_UNIT                   = Level.TRACE_INT;
+
+    private static final int           INITIAL_BUFFER_SIZE          = 512;
+    private static final int           MAX_RETAINED_BUFFER_SIZE     = 64 * 1024;
+
+    private final Map<String, Integer> dictionary                   = new LinkedHashMap<String, Integer>(16, 0.75f, true);
+    private int                        dictionarySize               = DEFAULT_DICTIONARY_SIZE;
+    private byte[]                     buffer                       = new byte[INITIAL_BUFFER_SIZE];
+    private int                        position;
+    private long                       lastTimestamp;
+    private long                       lastSequenceNumber;
+    private LoggerContextVO            lastContext;
+
+
+
+
+    /**
+     * {@inheritDoc}
+     */
+    @Override
+    public Encoder<ILoggingEvent> newConnectionEncoder()
+    {
+        final BinaryEventEncoder encoder = new BinaryEventEncoder();
+        encoder.setContext(this.getContext());
+        encoder.setDictionarySize(this.dictionarySize);
+        encoder.start();
+        return encoder;
+    }
+
+
+
+
+    /**
+     * Starts a new stream with an empty dictionary.
+     */
+    @Override
+    public byte[] headerBytes()
+    {
+        this.dictionary.clear();
+        this.lastTimestamp = 0;
+        this.lastSequenceNumber = 0;
+        this.lastContext = null;
+
+        final byte[] header = Arrays.copyOf(MAGIC, MAGIC.length + 1);
+        header[MAGIC.length] = VERSION;
+        return header;
+    }
+
+
+
+
+    @Override
+    public byte[] footerBytes()
+    {
+        return new byte[] { RECORD_END };
+    }
+
+
+
+
+    @Override
+    public byte[] encode(final ILoggingEvent event)
+    {
+        this.position = 0;
+
+        final LoggerContextVO context = event.getLoggerContextVO();
+        if (context != null && context != this.lastContext && !context.equals(this.lastContext))
+        {
+            this.writeContext(context);
+            this.lastContext = context;
+        }
+
+        this.writeByte(RECORD_EVENT);
+        final long timestamp = event.getTimeStamp();
+        this.writeSignedVarint(timestamp - this.lastTimestamp);
+        this.lastTimestamp = timestamp;
+        this.writeSignedVarint(event.getLevel().levelInt / LEVEL_UNIT);
+        final long sequenceNumber = event.getSequenceNumber();
+        this.writeSignedVarint(sequenceNumber - this.lastSequenceNumber);
+        this.lastSequenceNumber = sequenceNumber;
+        this.writeString(event.getLoggerName(), true);
+        this.writeString(event.getThreadName(), true);
+        this.writeMessage(event);
+        this.writeMap(event.getMDCPropertyMap());
+        this.writeMarkers(event.getMarkerList());
+        this.writeKeyValuePairs(event.getKeyValuePairs());
+        this.writeFrames(event.hasCallerData() ? event.getCallerData() : null);
+        this.writeThrowable(event.getThrowableProxy(), 1);
+
+        final byte[] bytes = Arrays.copyOf(this.buffer, this.position);
+        if (this.buffer.length > MAX_RETAINED_BUFFER_SIZE)
+        {
+            this.buffer = new byte[INITIAL_BUFFER_SIZE];
+        }
+        return bytes;
+    }
+
+
+
+
+    private void writeMessage(final ILoggingEvent event)
+    {
+        final Object[] arguments = event.getArgumentArray();
+        if (arguments == null || arguments.length == 0 || !isValues(arguments))
+        {
+            this.writeString(event.getFormattedMessage(), false);
+            this.writeVarint(0);
+            return;
+        }
+        this.writeString(event.getMessage(), true);
+        this.writeVarint(arguments.length);
+        for (final Object argument : arguments)
+        {
+            this.writeString(argument != null ? argument.toString() : null, false);
+        }
+    }
+
+
+
+
+    /**
+     * Returns whether all arguments are immutable values whose text cannot change before the event is encoded and is the same when the receiver formats the message.
+     */
+    private static boolean isValues(final Object[] arguments)
+    {
+        for (final Object argument : arguments)
+        {
+            if (argument != null && !(argument instanceof String || argument instanceof Integer || argument instanceof Long
+                    || argument instanceof Boolean || argument instanceof Character || argument instanceof Double
+                    || argument instanceof Float || argument instanceof Short || argument instanceof Byte
+                    || argument instanceof BigInteger || argument instanceof BigDecimal || argument instanceof Enum))
+            {
+                return false;
+            }
+        }
+        return true;
+    }
+
+
+
+
+    private void writeContext(final LoggerContextVO context)
+    {
+        this.writeByte(RECORD_CONTEXT);
+        this.writeString(context.getName(), true);
+        this.writeVarint(context.getBirthTime());
+        this.writeMap(context.getPropertyMap());
+    }
+
+
+
+
+    private void writeMap(final Map<String, String> map)
+    {
+        if (map == null)
+        {
+            this.writeVarint(0);
+            return;
+        }
+        this.writeVarint(map.size());
+        for (final Map.Entry<String, String> entry : map.entrySet())
+        {
+            this.writeString(entry.getKey(), true);
+            this.writeString(entry.getValue(), false);
+        }
+    }
+
+
+
+
+    private void writeMarkers(final List<Marker> markers)
+    {
+        if (markers == null)
+        {
+            this.writeVarint(0);
+            return;
+        }
+        this.writeVarint(markers.size());
+        for (final Marker marker : markers)
+        {
+            this.writeString(marker.getName(), true);
+        }
+    }
+
+
+
+
+    private void writeKeyValuePairs(final List<KeyValuePair> keyValuePairs)
+    {
+        if (keyValuePairs == null)
+        {
+            this.writeVarint(0);
+            return;
+        }
+        this.writeVarint(keyValuePairs.size());
+        for (final KeyValuePair keyValuePair : keyValuePairs)
+        {
+            this.writeString(keyValuePair.key, true);
+            this.writeString(keyValuePair.value != null ? String.valueOf(keyValuePair.value) : null, false);
+        }
+    }
+
+
+
+
+    private void writeFrames(final StackTraceElement[] frames)
+    {
+        if (frames == null)
+        {
+            this.writeVarint(0);
+            return;
+        }
+        this.writeVarint(frames.length);
+        for (final StackTraceElement frame : frames)
+        {
+            this.writeFrame(frame);
+        }
+    }
+
+
+
+
+    private void writeFrame(final StackTraceElement frame)
+    {
+        this.writeString(frame.getClassName(), true);
+        this.writeString(frame.getMethodName(), true);
+        this.writeString(frame.getFileName(), true);
+        this.writeSignedVarint(frame.getLineNumber());
+    }
+
+
+
+
+    private void writeThrowable(final IThrowableProxy throwable, final int depth)
+    {
+        if (throwable == null || depth > MAX_THROWABLE_DEPTH)
+        {
+            this.writeByte(THROWABLE_NONE);
+            return;
+        }
+        this.writeByte(throwable.isCyclic() ? THROWABLE_CYCLIC : THROWABLE);
+        this.writeString(throwable.getClassName(), true);
+        this.writeString(throwable.getMessage(), false);
+        final StackTraceElementProxy[] frames = throwable.getStackTraceElementProxyArray();
+        if (frames == null)
+        {
+            this.writeVarint(0);
+        }
+        else
+        {
+            this.writeVarint(frames.length);
+            for (final StackTraceElementProxy frame : frames)
+            {
+                this.writeFrame(frame.getStackTraceElement());
+            }
+        }
+        this.writeVarint(throwable.getCommonFrames());
+        this.writeThrowable(throwable.getCause(), depth + 1);
+        final IThrowableProxy[] suppressed = throwable.getSuppressed();
+        if (suppressed == null)
+        {
+            this.writeVarint(0);
+        }
+        else
+        {
+            this.writeVarint(suppressed.length);
+            for (final IThrowableProxy proxy : suppressed)
+            {
+                this.writeThrowable(proxy, depth + 1);
+            }
+        }
+    }
+
+
+
+
+    /**
+     * Writes a string, as a reference if it is in the dictionary. Otherwise its characters are written and, if <code>dictionary</code> is set, it is stored in a free slot of the dictionary or in the slot of the least recently used string.
+     */
+    private void writeString(final String string, final boolean dictionary)
+    {
+        if (string == null)
+        {
+            this.writeVarint(STRING_NULL);
+            return;
+        }
+        if (dictionary)
+        {
+            final Integer index = this.dictionary.get(string);
+            if (index != null)
+            {
+                this.writeVarint(STRING_REFERENCE + index);
+                return;
+            }
+            if (this.dictionarySize > 0 && string.length() <= MAX_DICTIONARY_STRING_LENGTH)
+            {
+                final int slot;
+                if (this.dictionary.size() < this.dictionarySize)
+                {
+                    slot = this.dictionary.size();
+                }
+                else
+                {
+                    // access order, the first entry is the least recently used one
+                    final Iterator<Integer> eldest = this.dictionary.values().iterator();
+                    slot = eldest.next();
+                    eldest.remove();
+                }
+                this.dictionary.put(string, slot);
+                this.writeVarint(STRING_DEFINITION);
+                this.writeVarint(slot);
+                this.writeUtf8(string);
+                return;
+            }
+        }
+        this.writeVarint(STRING_LITERAL);
+        this.writeUtf8(string);
+    }
+
+
+
+
+    /**
+     * Writes the UTF-8 length and bytes of a string straight into the buffer. Unpaired surrogates are written as '?', like {@link String#getBytes(java.nio.charset.Charset)} does.
+     */
+    private void writeUtf8(final String string)
+    {
+        final int length = string.length();
+        int utf8Length = 0;
+        for (int i = 0; i < length; i++)
+        {
+            final char c = string.charAt(i);
+            if (c < 0x80)
+            {
+                utf8Length++;
+            }
+            else if (c < 0x800)
+            {
+                utf8Length += 2;
+            }
+            else if (Character.isHighSurrogate(c) && i + 1 < length && Character.isLowSurrogate(string.charAt(i + 1)))
+            {
+                utf8Length += 4;
+                i++;
+            }
+            else if (Character.isSurrogate(c))
+            {
+                utf8Length++;
+            }
+            else
+            {
+                utf8Length += 3;
+            }
+        }
+        this.writeVarint(utf8Length);
+        this.ensureCapacity(utf8Length);
+
+        final byte[] buffer = this.buffer;
+        int position = this.position;
+        for (int i = 0; i < length; i++)
+        {
+            final char c = string.charAt(i);
+            if (c < 0x80)
+            {
+                buffer[position++] = (byte) c;
+            }
+            else if (c < 0x800)
+            {
+                buffer[position++] = (byte) (0xC0 | c >> 6);
+                buffer[position++] = (byte) (0x80 | c & 0x3F);
+            }
+            else if (Character.isHighSurrogate(c) && i + 1 < length && Character.isLowSurrogate(string.charAt(i + 1)))
+            {
+                final int codePoint = Character.toCodePoint(c, string.charAt(++i));
+                buffer[position++] = (byte) (0xF0 | codePoint >> 18);
+                buffer[position++] = (byte) (0x80 | codePoint >> 12 & 0x3F);
+                buffer[position++] = (byte) (0x80 | codePoint >> 6 & 0x3F);
+                buffer[position++] = (byte) (0x80 | codePoint & 0x3F);
+            }
+            else if (Character.isSurrogate(c))
+            {
+                buffer[position++] = '?';
+            }
+            else
+            {
+                buffer[position++] = (byte) (0xE0 | c >> 12);
+                buffer[position++] = (byte) (0x80 | c >> 6 & 0x3F);
+                buffer[position++] = (byte) (0x80 | c & 0x3F);
+            }
+        }
+        this.position = position;
+    }
+
+
+
+
+    private void writeSignedVarint(final long value)
+    {
+        this.writeVarint(value << 1 ^ value >> 63);
+    }
+
+
+
+
+    private void writeVarint(final long value)
+    {
+        this.ensureCapacity(10);
+        long rest = value;
+        while ((rest & ~0x7FL) != 0)
+        {
+            this.buffer[this.position++] = (byte) (rest & 0x7F | 0x80);
+            rest >>>= 7;
+        }
+        this.buffer[this.position++] = (byte) rest;
+    }
+
+
+
+
+    private void writeByte(final int value)
+    {
+        this.ensureCapacity(1);
+        this.buffer[this.position++] = (byte) value;
+    }
+
+
+
+
+    private void ensureCapacity(final int length)
+    {
+        if (this.position + length > this.buffer.length)
+        {
+            this.buffer = Arrays.copyOf(this.buffer, Math.max(this.buffer.length * 2, this.position + length));
+        }
+    }
+
+
+
+
+    /**
+     * The <b>dictionarySize</b> property takes the maximum number of strings that are sent only once per stream as long as they are used, {@value #DEFAULT_DICTIONARY_SIZE} by default; 0 disables the dictionary. Every receiving
+     * connection holds as many strings; a {@link BinaryEventDecoder} has to be created with a dictionary size of at least this size if it is larger than the default.
+     */
+    public void setDictionarySize(final int dictionarySize)
+    {
+        this.dictionarySize = dictionarySize;
+    }
+
+
+
+
+    /**
+     * Returns the value of the <b>dictionarySize</b> property.
+     */
+    public int getDictionarySize()
+    {
+        return this.dictionarySize;
+    }
+
+}
@@ -0,0 +1,63 @@
+package com.qoomon.logback;
+
+import java.io.OutputStream;
+import java.util.zip.Deflater;
+import java.util.zip.DeflaterOutputStream;
+
+/**
+ * A deflate compressing stream for the connection to the remote peer.
+ * <p>
+ * Every {@link #flush()} performs a {@link Deflater#SYNC_FLUSH sync flush}, so all bytes written so far can be inflated by the receiver right away. Socket appenders flush once per batch, which bounds the latency compression adds while keeping
+ * the compression context, and with it the dictionary of repeated logger names, thread names and stack frames, for the lifetime of the connection.
+ * <p>
+ * The deflater is owned by the stream, {@link #release()} frees its native memory when the connection is gone.
+ *
+ * @author bengtbrodersen
+ *
+ */
+public class CompressingOutputStream extends DeflaterOutputStream
+{
+
+    private static final int BUFFER_SIZE = 8192;
+
+
+
+
+    /**
+     * Creates a compressing stream.
+     *
+     * @param out
+     *            the stream compressed bytes are written to
+     * @param level
+     *            the compression level, 1 (fastest) to 9 (smallest)
+     */
+    public CompressingOutputStream(final OutputStream out, final int level)
+    {
+        super(out, new Deflater(level), BUFFER_SIZE, true);
+    }
+
+
+
+
+    /**
+     * Frees the deflater without writing anything. Use {@link #close()} to finish the compressed stream instead.
+     */
+    public void release()
+    {
+        this.def.end();
+    }
+
+
+
+
+    /**
+     * {@link #release() Releases} the stream if it is a compressing one.
+     */
+    static void release(final OutputStream out)
+    {
+        if (out instanceof CompressingOutputStream)
+        {
+            ((CompressingOutputStream) out).release();
+        }
+    }
+}
@@ -0,0 +1,287 @@
+package com.qoomon.logback;
+
+import java.net.InetAddress;
+import java.net.UnknownHostException;
+import java.util.concurrent.atomic.AtomicInteger;
+
+/**
+ * A remote peer of a socket appender, identified by host name and port.
+ * <p>
+ * The host name is resolved lazily and re-resolved once the resolved address is older than the DNS refresh interval, so a log collector that moves to another address is found again without restarting the appender. Failed resolutions keep the
+ * last known address.
+ * <p>
+ * Consecutive failures are only reset once a connection proved to be usable, by delivering a batch or by staying up for {@link #STABLE_CONNECTION_MILLIS}. A peer that accepts connections and closes them at once keeps backing off.
+ *
+ * @author bengtbrodersen
+ *
+ */
+final class Endpoint
+{
+
+    /**
+     * Time in milliseconds after which a connection counts as stable even if it did not deliver a batch, e.g. because nothing was logged.
+     */
+    static final long           STABLE_CONNECTION_MILLIS = 10000;
+
+    private final String        host;
+    private final int           port;
+    private final String        peerId;
+    private final AtomicInteger connections = new AtomicInteger();
+    private final AtomicInteger failures    = new AtomicInteger();
+
+    private volatile InetAddress address;
+    private volatile long        resolvedAt;
+    private volatile long        retryAt;
+    private volatile long        connectedAt;
+
+
+
+
+    Endpoint(final String host, final int port)
+    {
+        this.host = host;
+        this.port = port;
+        this.peerId = "remote peer " + this + ": ";
+    }
+
+
+
+
+    /**
+     * Parses a comma separated list of <code>host[:port]</code> endpoints. IPv6 literals with a port are written in brackets, e.g. <code>[::1]:4560</code>.
+     *
+     * @param endpoints
+     *            the list to parse
+     * @param defaultPort
+     *            port of endpoints without port
+     * @throws IllegalArgumentException
+     *             if a host is blank or a port is not a number between 1 and 65535
+     */
+    static Endpoint[] parse(final String endpoints, final int defaultPort)
+    {
+        final String[] parts = endpoints.trim().split("\\s*,\\s*", -1);
+        final Endpoint[] result = new Endpoint[parts.length];
+        for (int i = 0; i < parts.length; i++)
+        {
+            final String part = parts[i];
+            final int colon = part.lastIndexOf(':');
+            if (part.startsWith("["))
+            {
+                final int bracket = part.indexOf(']');
+                if (bracket < 0 || bracket != part.length() - 1 && bracket != colon - 1)
+                {
+                    throw new IllegalArgumentException("Invalid endpoint \"" + part + "\"");
+                }
+                result[i] = of(part.substring(1, bracket),
+                        bracket == part.length() - 1 ? defaultPort : parsePort(part, part.substring(colon + 1)));
+            }
+            else if (colon < 0 || part.indexOf(':') != colon)
+            {
+                // no port, or an IPv6 literal without port
+                result[i] = of(part, defaultPort);
+            }
+            else
+            {
+                result[i] = of(part.substring(0, colon), parsePort(part, part.substring(colon + 1)));
+            }
+        }
+        return result;
+    }
+
+
+
+
+    /**
+     * Creates an endpoint after validating host and port.
+     *
+     * @throws IllegalArgumentException
+     *             if the host is blank or the port is not between 1 and 65535
+     */
+    static Endpoint of(final String host, final int port)
+    {
+        if (host == null || host.trim().isEmpty())
+        {
+            throw new IllegalArgumentException("Blank host in endpoints");
+        }
+        if (port < 1 || port > 65535)
+        {
+            throw new IllegalArgumentException("Port " + port + " of endpoint \"" + host + "\" is not between 1 and 65535");
+        }
+        return new Endpoint(host.trim(), port);
+    }
+
+
+
+
+    private static int parsePort(final String endpoint, final String port)
+    {
+        try
+        {
+            return Integer.parseInt(port.trim());
+        }
+        catch (final NumberFormatException ex)
+        {
+            throw new IllegalArgumentException("Invalid port in endpoint \"" + endpoint + "\"");
+        }
+    }
+
+
+
+
+    /**
+     * Returns the address of the endpoint, resolving the host name if it has not been resolved yet or the last resolution is older than the refresh interval.
+     *
+     * @param refreshIntervalMillis
+     *            maximum age of the resolved address, zero or less to resolve only once
+     * @throws UnknownHostException
+     *             if the host name has never been resolved successfully
+     */
+    InetAddress resolve(final long refreshIntervalMillis) throws UnknownHostException
+    {
+        final long now = System.currentTimeMillis();
+        InetAddress current = this.address;
+        if (current == null || refreshIntervalMillis > 0 && now - this.resolvedAt >= refreshIntervalMillis)
+        {
+            try
+            {
+                current = InetAddress.getByName(this.host);
+                this.address = current;
+            }
+            catch (final UnknownHostException ex)
+            {
+                if (current == null)
+                {
+                    throw ex;
+                }
+            }
+            this.resolvedAt = now;
+        }
+        return current;
+    }
+
+
+
+
+    String getHost()
+    {
+        return this.host;
+    }
+
+
+
+
+    int getPort()
+    {
+        return this.port;
+    }
+
+
+
+
+    /**
+     * Returns the prefix of status messages about this endpoint.
+     */
+    String getPeerId()
+    {
+        return this.peerId;
+    }
+
+
+
+
+    /**
+     * Returns the number of live connections to this endpoint.
+     */
+    int getConnections()
+    {
+        return this.connections.get();
+    }
+
+
+
+
+    /**
+     * Counts a live connection. The consecutive failures are kept until the connection delivered a batch or stayed up long enough.
+     */
+    void connected()
+    {
+        this.connections.incrementAndGet();
+        this.retryAt = 0;
+        this.connectedAt = System.currentTimeMillis();
+    }
+
+
+
+
+    /**
+     * Resets the consecutive failures after a connection delivered a batch.
+     *
+     * @return the number of consecutive failures before
+     */
+    int delivered()
+    {
+        // called for every batch, don't write the shared counter unless there is something to reset
+        return this.failures.get() == 0 ? 0 : this.failures.getAndSet(0);
+    }
+
+
+
+
+    void disconnected()
+    {
+        this.connections.decrementAndGet();
+    }
+
+
+
+
+    /**
+     * Counts a failed connection attempt or established connection and marks the endpoint as unavailable for the delay the policy returns.
+     *
+     * @return the number of consecutive failures, including this one
+     */
+    int failed(final ReconnectionPolicy policy)
+    {
+        final long now = System.currentTimeMillis();
+        final long connectedAt = this.connectedAt;
+        this.connectedAt = 0;
+        if (connectedAt != 0 && now - connectedAt >= STABLE_CONNECTION_MILLIS)
+        {
+            this.failures.set(0);
+        }
+        final int failures = this.failures.incrementAndGet();
+        this.retryAt = now + policy.nextDelay(failures);
+        return failures;
+    }
+
+
+
+
+    /**
+     * Returns the number of consecutive failures since the last connection that delivered a batch or stayed up long enough.
+     */
+    int getFailures()
+    {
+        return this.failures.get();
+    }
+
+
+
+
+    /**
+     * Returns the time in milliseconds before this endpoint should be tried again, zero if it is available.
+     */
+    long retryDelay(final long now)
+    {
+        return Math.max(0, this.retryAt - now);
+    }
+
+
+
+
+    @Override
+    public String toString()
+    {
+        return (this.host.indexOf(':') < 0 ? this.host : "[" + this.host + "]") + ":" + this.port;
+    }
+}
@@ -0,0 +1,113 @@
+package com.qoomon.logback;
+
+import java.io.IOException;
+import java.net.Socket;
+
+import javax.net.SocketFactory;
+
+import ch.qos.logback.core.net.SocketConnector;
+
+/**
+ * A {@link SocketConnector} that fails over between the endpoints of an {@link EndpointGroup}.
+ * <p>
+ * Every failed attempt marks its endpoint as unavailable for the delay of the reconnection policy and continues with the next available endpoint at once. The connector only sleeps when all endpoints are unavailable. With a reconnection delay of zero every
+ * endpoint is tried once.
+ *
+ * @author bengtbrodersen
+ *
+ */
+final class EndpointConnector implements SocketConnector
+{
+
+    private final EndpointGroup      endpoints;
+    private final int                reconnectionDelay;
+    private final long               dnsRefreshInterval;
+    private ExceptionHandler         exceptionHandler;
+    private SocketFactory            socketFactory = SocketFactory.getDefault();
+    private volatile Endpoint        endpoint;
+
+
+
+
+    EndpointConnector(final EndpointGroup endpoints, final int reconnectionDelay, final long dnsRefreshInterval)
+    {
+        this.endpoints = endpoints;
+        this.reconnectionDelay = reconnectionDelay;
+        this.dnsRefreshInterval = dnsRefreshInterval;
+    }
+
+
+
+
+    /**
+     * {@inheritDoc}
+     */
+    @Override
+    public Socket call() throws InterruptedException
+    {
+        int attempts = 0;
+        while (!Thread.currentThread().isInterrupted())
+        {
+            if (this.reconnectionDelay <= 0 && attempts == this.endpoints.size())
+            {
+                return null;
+            }
+            final Endpoint next = this.endpoints.next();
+            final long delay = next.retryDelay(System.currentTimeMillis());
+            if (delay > 0)
+            {
+                Thread.sleep(delay);
+            }
+            this.endpoint = next;
+            attempts++;
+            try
+            {
+                return this.socketFactory.createSocket(next.resolve(this.dnsRefreshInterval), next.getPort());
+            }
+            catch (final IOException ex)
+            {
+                this.endpoints.failed(next);
+                if (this.exceptionHandler != null)
+                {
+                    this.exceptionHandler.connectionFailed(this, ex);
+                }
+            }
+        }
+        throw new InterruptedException();
+    }
+
+
+
+
+    /**
+     * Returns the endpoint of the last connection attempt, the connected one once {@link #call()} returned a socket.
+     */
+    Endpoint getEndpoint()
+    {
+        return this.endpoint;
+    }
+
+
+
+
+    /**
+     * {@inheritDoc}
+     */
+    @Override
+    public void setExceptionHandler(final ExceptionHandler exceptionHandler)
+    {
+        this.exceptionHandler = exceptionHandler;
+    }
+
+
+
+
+    /**
+     * {@inheritDoc}
+     */
+    @Override
+    public void setSocketFactory(final SocketFactory socketFactory)
+    {
+        this.socketFactory = socketFactory;
+    }
+}
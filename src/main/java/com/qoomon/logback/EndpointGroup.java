@@ -0,0 +1,227 @@
+package com.qoomon.logback;
+
+import ch.qos.logback.core.spi.ContextAware;
+
+/**
+ * The remote peers of a socket appender and the strategy connections are distributed across them with.
+ * <p>
+ * An endpoint whose connection attempt or connection failed is skipped for the delay of the {@link ReconnectionPolicy}, so connecting fails over to the next endpoint at once instead of waiting for a dead host. Only when all endpoints are
+ * unavailable the one that becomes available first is returned, together with the time to wait for it.
+ * <p>
+ * With a circuit breaker threshold, the circuit of an endpoint opens once its consecutive failures reach the threshold. Every later attempt is a probe, the circuit stays open until one succeeds. Transitions are reported as status messages.
+ *
+ * @author bengtbrodersen
+ *
+ */
+final class EndpointGroup
+{
+
+    /**
+     * Distributes connections over the endpoints in turn.
+     */
+    static final String      ROUND_ROBIN  = "roundRobin";
+
+    /**
+     * Connects to the endpoint with the fewest live connections.
+     */
+    static final String      LEAST_LOADED = "leastLoaded";
+
+    private final Endpoint[]         endpoints;
+    private final boolean            leastLoaded;
+    private final ReconnectionPolicy reconnectionPolicy;
+    private final int                circuitBreakerThreshold;
+    private final ContextAware       status;
+    private int                      nextIndex;
+
+
+
+
+    /**
+     * @param circuitBreakerThreshold
+     *            consecutive failures that open the circuit of an endpoint, zero for no circuit breaker
+     * @param status
+     *            receives the status messages
+     */
+    EndpointGroup(final Endpoint[] endpoints, final String loadBalancing, final ReconnectionPolicy reconnectionPolicy,
+            final int circuitBreakerThreshold, final ContextAware status)
+    {
+        this.endpoints = endpoints.clone();
+        this.leastLoaded = LEAST_LOADED.equalsIgnoreCase(loadBalancing);
+        this.reconnectionPolicy = reconnectionPolicy;
+        this.circuitBreakerThreshold = circuitBreakerThreshold;
+        this.status = status;
+    }
+
+
+
+
+    /**
+     * Tells whether the load balancing strategy name is known.
+     */
+    static boolean isLoadBalancing(final String loadBalancing)
+    {
+        return ROUND_ROBIN.equalsIgnoreCase(loadBalancing) || LEAST_LOADED.equalsIgnoreCase(loadBalancing);
+    }
+
+
+
+
+    Endpoint[] getEndpoints()
+    {
+        return this.endpoints.clone();
+    }
+
+
+
+
+    int size()
+    {
+        return this.endpoints.length;
+    }
+
+
+
+
+    /**
+     * Returns the endpoint to connect to next. Check {@link Endpoint#retryDelay(long)} of the result, it is only positive if no endpoint is available right now.
+     */
+    synchronized Endpoint next()
+    {
+        final long now = System.currentTimeMillis();
+        Endpoint best = null;
+        int bestIndex = -1;
+        for (int i = 0; i < this.endpoints.length; i++)
+        {
+            final int index = (this.nextIndex + i) % this.endpoints.length;
+            final Endpoint candidate = this.endpoints[index];
+            if (best == null || this.isBetter(candidate, best, now))
+            {
+                best = candidate;
+                bestIndex = index;
+            }
+        }
+        this.nextIndex = (bestIndex + 1) % this.endpoints.length;
+        return best;
+    }
+
+
+
+
+    private boolean isBetter(final Endpoint candidate, final Endpoint best, final long now)
+    {
+        final long candidateDelay = candidate.retryDelay(now);
+        final long bestDelay = best.retryDelay(now);
+        if (candidateDelay != bestDelay)
+        {
+            // available first, then the one that becomes available soonest
+            return candidateDelay < bestDelay;
+        }
+        // equally available: round robin keeps the first one in turn
+        return this.leastLoaded && candidate.getConnections() < best.getConnections();
+    }
+
+
+
+
+    /**
+     * Marks an endpoint as unavailable for the delay of the reconnection policy after a connection attempt or an established connection failed.
+     */
+    void failed(final Endpoint endpoint)
+    {
+        final int failures = endpoint.failed(this.reconnectionPolicy);
+        if (failures == this.circuitBreakerThreshold)
+        {
+            this.status.addWarn(endpoint.getPeerId() + "circuit opened after " + failures + " consecutive failures");
+        }
+    }
+
+
+
+
+    /**
+     * Counts a connection that has been established to an endpoint.
+     */
+    void connected(final Endpoint endpoint)
+    {
+        endpoint.connected();
+    }
+
+
+
+
+    /**
+     * Resets the failures of an endpoint a connection delivered a batch to.
+     */
+    void delivered(final Endpoint endpoint)
+    {
+        final int failures = endpoint.delivered();
+        if (this.circuitBreakerThreshold > 0 && failures >= this.circuitBreakerThreshold)
+        {
+            this.status.addInfo(endpoint.getPeerId() + "circuit closed");
+        }
+    }
+
+
+
+
+    /**
+     * Returns the number of endpoints whose circuit is open.
+     */
+    int getOpenCircuitCount()
+    {
+        int open = 0;
+        for (final Endpoint endpoint : this.endpoints)
+        {
+            if (this.isCircuitOpen(endpoint))
+            {
+                open++;
+            }
+        }
+        return open;
+    }
+
+
+
+
+    /**
+     * Tells whether the circuits of all endpoints are open.
+     */
+    boolean isCircuitOpen()
+    {
+        for (final Endpoint endpoint : this.endpoints)
+        {
+            if (!this.isCircuitOpen(endpoint))
+            {
+                return false;
+            }
+        }
+        return true;
+    }
+
+
+
+
+    private boolean isCircuitOpen(final Endpoint endpoint)
+    {
+        return this.circuitBreakerThreshold > 0 && endpoint.getFailures() >= this.circuitBreakerThreshold
+                && endpoint.getConnections() == 0;
+    }
+
+
+
+
+    @Override
+    public String toString()
+    {
+        final StringBuilder builder = new StringBuilder();
+        for (final Endpoint endpoint : this.endpoints)
+        {
+            if (builder.length() > 0)
+            {
+                builder.append(',');
+            }
+            builder.append(endpoint);
+        }
+        return builder.toString();
+    }
+}
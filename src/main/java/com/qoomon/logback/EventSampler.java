@@ -0,0 +1,616 @@
+package com.qoomon.logback;
+
+import java.util.Collections;
+import java.util.HashMap;
+import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentMap;
+import java.util.concurrent.ThreadLocalRandom;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.atomic.LongAdder;
+
+import ch.qos.logback.classic.Level;
+import ch.qos.logback.classic.Logger;
+import ch.qos.logback.classic.LoggerContext;
+import ch.qos.logback.classic.spi.ILoggingEvent;
+import ch.qos.logback.classic.spi.LoggingEvent;
+import ch.qos.logback.core.spi.ContextAwareBase;
+import ch.qos.logback.core.spi.LifeCycle;
+
+/**
+ * Suppresses events before a {@link SocketAppender} queues them, so a single chatty logger cannot fill the queue and push everything else out. The rules are applied in this order:
+ * <ol>
+ * <li><b>sampleRate</b> takes <code>level=fraction</code> and passes that fraction of the events of the level at random, e.g. <code>DEBUG=0.1</code>.</li>
+ * <li><b>duplicateFirst</b> and <b>duplicateEvery</b> pass the first N and then every Mth of the events with the same logger and message pattern per summary interval, or per {@value #DEFAULT_SUMMARY_INTERVAL} ms if summaries are
+ * off; M = 0 suppresses all further duplicates.</li>
+ * <li><b>loggerRateLimit</b> and <b>levelRateLimit</b> take <code>name=eventsPerSecond</code> and pass events as long as a token bucket holding a second's worth of events has tokens left. A logger rate limit applies to every descendant of
+ * the named logger with a bucket of its own, the limit of the closest ancestor wins; <code>ROOT</code> applies to all loggers. A level rate limit is shared by all events of the level.</li>
+ * </ol>
+ * Rate limits come last, so only events that would be passed otherwise take tokens. Every <b>summaryInterval</b> milliseconds, if events have been suppressed, the next appended event is preceded by a WARN event of the logger of this class
+ * reporting how many; the appender queues a last summary when it stops. Summary events are never suppressed.
+ *
+ * <pre>
+ * &lt;sampler&gt;
+ *   &lt;loggerRateLimit&gt;com.example.chatty=100&lt;/loggerRateLimit&gt;
+ *   &lt;levelRateLimit&gt;INFO=5000&lt;/levelRateLimit&gt;
+ *   &lt;sampleRate&gt;DEBUG=0.1&lt;/sampleRate&gt;
+ *   &lt;duplicateFirst&gt;10&lt;/duplicateFirst&gt;
+ *   &lt;duplicateEvery&gt;100&lt;/duplicateEvery&gt;
+ * &lt;/sampler&gt;
+ * </pre>
+ *
+ * The sampler takes no locks: token buckets and duplicate counts are updated with compare-and-set and atomic increments, and the suppressed events are counted by striped {@link LongAdder}s, so appending threads do not contend on a
+ * shared counter.
+ *
+ * @author bengtbrodersen
+ *
+ */
+public class EventSampler extends ContextAwareBase implements LifeCycle
+{
+
+    public static final long                 DEFAULT_SUMMARY_INTERVAL = 60000;
+
+    /**
+     * Maximum number of distinct logger and message pattern pairs tracked for duplicate suppression per interval. Further pairs are passed.
+     */
+    static final int                         MAX_DUPLICATE_KEYS       = 10000;
+
+    private static final int                 LEVELS                   = 5;
+    private static final String              SUMMARY_LOGGER           = EventSampler.class.getName();
+    private static final TokenBucket         UNLIMITED                = new TokenBucket(0);
+
+    private final Map<String, Double>        loggerRateLimits         = new HashMap<String, Double>();
+    private final TokenBucket[]              levelBuckets             = new TokenBucket[LEVELS];
+    private final double[]                   sampleRates              = new double[LEVELS];
+    private int                              duplicateFirst;
+    private int                              duplicateEvery;
+    private long                             summaryInterval          = DEFAULT_SUMMARY_INTERVAL;
+    private int                              ruleErrors;
+    private boolean                          started;
+
+    private final ConcurrentMap<String, TokenBucket> loggerBuckets    = new ConcurrentHashMap<String, TokenBucket>();
+    private volatile ConcurrentMap<String, ConcurrentMap<String, AtomicLong>> duplicates = newDuplicates();
+    private final AtomicInteger              duplicateKeys            = new AtomicInteger();
+    private final AtomicLong                 nextSummary              = new AtomicLong();
+    private final AtomicLong                 nextDuplicateReset       = new AtomicLong();
+    private long                             duplicateWindow;
+    private volatile long                    intervalStart;
+    private final LongAdder                  rateLimited              = new LongAdder();
+    private final LongAdder                  sampled                  = new LongAdder();
+    private final LongAdder                  duplicated               = new LongAdder();
+
+
+
+
+    public EventSampler()
+    {
+        for (int i = 0; i < LEVELS; i++)
+        {
+            this.sampleRates[i] = 1;
+        }
+    }
+
+
+
+
+    @Override
+    public void start()
+    {
+        int errorCount = this.ruleErrors;
+        if (this.duplicateFirst < 0 || this.duplicateEvery < 0)
+        {
+            errorCount++;
+            this.addError("Duplicate counts must be non-negative");
+        }
+        if (this.summaryInterval < 0)
+        {
+            errorCount++;
+            this.addError("Summary interval must be non-negative");
+        }
+        if (!(this.getContext() instanceof LoggerContext))
+        {
+            errorCount++;
+            this.addError("Sampler requires a logger context");
+        }
+        if (errorCount == 0)
+        {
+            final long now = System.nanoTime();
+            this.intervalStart = now;
+            this.nextSummary.set(now + TimeUnit.MILLISECONDS.toNanos(this.summaryInterval));
+            this.duplicateWindow = TimeUnit.MILLISECONDS.toNanos(
+                    this.summaryInterval > 0 ? this.summaryInterval : DEFAULT_SUMMARY_INTERVAL);
+            this.nextDuplicateReset.set(now + this.duplicateWindow);
+            this.started = true;
+        }
+    }
+
+
+
+
+    @Override
+    public void stop()
+    {
+        this.started = false;
+    }
+
+
+
+
+    @Override
+    public boolean isStarted()
+    {
+        return this.started;
+    }
+
+
+
+
+    /**
+     * Tells whether an event is suppressed, and counts it if so. A sampler that is not started suppresses nothing.
+     */
+    public boolean isSuppressed(final ILoggingEvent event)
+    {
+        if (!this.started || SUMMARY_LOGGER.equals(event.getLoggerName()))
+        {
+            return false;
+        }
+        final int level = indexOf(event.getLevel());
+        final long now = System.nanoTime();
+        final double sampleRate = this.sampleRates[level];
+        if (sampleRate < 1 && ThreadLocalRandom.current().nextDouble() >= sampleRate)
+        {
+            this.sampled.increment();
+            return true;
+        }
+        if (this.duplicateFirst > 0 && this.isDuplicate(event, now))
+        {
+            this.duplicated.increment();
+            return true;
+        }
+        final TokenBucket loggerBucket = this.loggerBucket(event.getLoggerName());
+        if (!loggerBucket.tryAcquire(now))
+        {
+            this.rateLimited.increment();
+            return true;
+        }
+        final TokenBucket levelBucket = this.levelBuckets[level];
+        if (levelBucket != null && !levelBucket.tryAcquire(now))
+        {
+            // a suppressed event does not count against the limit of its logger
+            loggerBucket.release();
+            this.rateLimited.increment();
+            return true;
+        }
+        return false;
+    }
+
+
+
+
+    /**
+     * Returns the summary of the events suppressed since the last summary, once the summary interval has passed.
+     *
+     * @return the summary event or <code>null</code> if it is not due or nothing has been suppressed
+     */
+    public ILoggingEvent pollSummary()
+    {
+        if (!this.started || this.summaryInterval == 0)
+        {
+            return null;
+        }
+        final long now = System.nanoTime();
+        final long due = this.nextSummary.get();
+        if (now - due < 0
+                || !this.nextSummary.compareAndSet(due, now + TimeUnit.MILLISECONDS.toNanos(this.summaryInterval)))
+        {
+            return null;
+        }
+        return this.summary(now);
+    }
+
+
+
+
+    /**
+     * Returns the summary of the events suppressed since the last summary right away, e.g. when the appender stops, so they are not left unreported.
+     *
+     * @return the summary event or <code>null</code> if summaries are off or nothing has been suppressed
+     */
+    public ILoggingEvent flushSummary()
+    {
+        if (!this.started || this.summaryInterval == 0)
+        {
+            return null;
+        }
+        final long now = System.nanoTime();
+        this.nextSummary.set(now + TimeUnit.MILLISECONDS.toNanos(this.summaryInterval));
+        return this.summary(now);
+    }
+
+
+
+
+    private ILoggingEvent summary(final long now)
+    {
+        final long intervalMillis = TimeUnit.NANOSECONDS.toMillis(now - this.intervalStart);
+        this.intervalStart = now;
+        // events suppressed meanwhile are reported by the next summary
+        final long rateLimited = this.rateLimited.sumThenReset();
+        final long sampled = this.sampled.sumThenReset();
+        final long duplicated = this.duplicated.sumThenReset();
+        if (rateLimited + sampled + duplicated == 0)
+        {
+            return null;
+        }
+        final Logger logger = ((LoggerContext) this.getContext()).getLogger(SUMMARY_LOGGER);
+        final LoggingEvent summary = new LoggingEvent(Logger.FQCN, logger, Level.WARN,
+                "Suppressed {} events in the last {} ms: {} rate limited, {} sampled out, {} duplicates", null,
+                new Object[] { rateLimited + sampled + duplicated, intervalMillis, rateLimited, sampled, duplicated });
+        // not the MDC of whichever thread happens to append it
+        summary.setMDCPropertyMap(Collections.<String, String> emptyMap());
+        return summary;
+    }
+
+
+
+
+    /**
+     * Returns the bucket of a logger, created with the limit of its closest configured ancestor.
+     */
+    private TokenBucket loggerBucket(final String loggerName)
+    {
+        TokenBucket bucket = this.loggerBuckets.get(loggerName);
+        if (bucket == null)
+        {
+            final Double limit = this.loggerRateLimitOf(loggerName);
+            final TokenBucket newBucket = limit != null ? new TokenBucket(limit) : UNLIMITED;
+            bucket = this.loggerBuckets.putIfAbsent(loggerName, newBucket);
+            if (bucket == null)
+            {
+                bucket = newBucket;
+            }
+        }
+        return bucket;
+    }
+
+
+
+
+    private Double loggerRateLimitOf(final String loggerName)
+    {
+        String name = loggerName;
+        while (true)
+        {
+            final Double limit = this.loggerRateLimits.get(name);
+            if (limit != null)
+            {
+                return limit;
+            }
+            final int dot = name.lastIndexOf('.');
+            if (dot < 0)
+            {
+                return this.loggerRateLimits.get(Logger.ROOT_LOGGER_NAME);
+            }
+            name = name.substring(0, dot);
+        }
+    }
+
+
+
+
+    /**
+     * Counts the event with the events of the same logger and message pattern in the current duplicate window, starting a new window if it is due.
+     */
+    private boolean isDuplicate(final ILoggingEvent event, final long now)
+    {
+        final long due = this.nextDuplicateReset.get();
+        if (now - due >= 0 && this.nextDuplicateReset.compareAndSet(due, now + this.duplicateWindow))
+        {
+            this.duplicates = newDuplicates();
+            this.duplicateKeys.set(0);
+        }
+        final ConcurrentMap<String, ConcurrentMap<String, AtomicLong>> duplicates = this.duplicates;
+        ConcurrentMap<String, AtomicLong> patterns = duplicates.get(event.getLoggerName());
+        if (patterns == null)
+        {
+            final ConcurrentMap<String, AtomicLong> newPatterns = new ConcurrentHashMap<String, AtomicLong>();
+            patterns = duplicates.putIfAbsent(event.getLoggerName(), newPatterns);
+            if (patterns == null)
+            {
+                patterns = newPatterns;
+            }
+        }
+        final String pattern = String.valueOf(event.getMessage());
+        AtomicLong count = patterns.get(pattern);
+        if (count == null)
+        {
+            if (this.duplicateKeys.get() >= MAX_DUPLICATE_KEYS)
+            {
+                return false;
+            }
+            final AtomicLong newCount = new AtomicLong();
+            count = patterns.putIfAbsent(pattern, newCount);
+            if (count == null)
+            {
+                count = newCount;
+                this.duplicateKeys.incrementAndGet();
+            }
+        }
+        final long n = count.incrementAndGet() - this.duplicateFirst;
+        return n > 0 && (this.duplicateEvery == 0 || n % this.duplicateEvery != 0);
+    }
+
+
+
+
+    private static ConcurrentMap<String, ConcurrentMap<String, AtomicLong>> newDuplicates()
+    {
+        return new ConcurrentHashMap<String, ConcurrentMap<String, AtomicLong>>();
+    }
+
+
+
+
+    private static int indexOf(final Level level)
+    {
+        switch (level.toInt())
+        {
+            case Level.TRACE_INT:
+                return 0;
+            case Level.DEBUG_INT:
+                return 1;
+            case Level.INFO_INT:
+                return 2;
+            case Level.WARN_INT:
+                return 3;
+            default:
+                return 4;
+        }
+    }
+
+
+
+
+    /**
+     * Adds a rate limit of <code>loggerName=eventsPerSecond</code> for the logger and each of its descendants.
+     */
+    public void addLoggerRateLimit(final String rule)
+    {
+        final String[] parts = this.parseRule(rule);
+        if (parts != null)
+        {
+            final Double limit = this.parsePositive(rule, parts[1]);
+            if (limit != null)
+            {
+                this.loggerRateLimits.put(parts[0], limit);
+            }
+        }
+    }
+
+
+
+
+    /**
+     * Adds a rate limit of <code>level=eventsPerSecond</code> shared by all events of the level.
+     */
+    public void addLevelRateLimit(final String rule)
+    {
+        final String[] parts = this.parseRule(rule);
+        final Level level = parts != null ? this.parseLevel(rule, parts[0]) : null;
+        if (level != null)
+        {
+            final Double limit = this.parsePositive(rule, parts[1]);
+            if (limit != null)
+            {
+                this.levelBuckets[indexOf(level)] = new TokenBucket(limit);
+            }
+        }
+    }
+
+
+
+
+    /**
+     * Adds a sample rate of <code>level=fraction</code>, the fraction of events of the level that are passed.
+     */
+    public void addSampleRate(final String rule)
+    {
+        final String[] parts = this.parseRule(rule);
+        final Level level = parts != null ? this.parseLevel(rule, parts[0]) : null;
+        if (level != null)
+        {
+            try
+            {
+                final double rate = Double.parseDouble(parts[1]);
+                if (rate < 0 || rate > 1)
+                {
+                    throw new NumberFormatException();
+                }
+                this.sampleRates[indexOf(level)] = rate;
+            }
+            catch (final NumberFormatException ex)
+            {
+                this.ruleError(rule, "sample rate must be between 0 and 1");
+            }
+        }
+    }
+
+
+
+
+    private String[] parseRule(final String rule)
+    {
+        final int separator = rule.lastIndexOf('=');
+        if (separator <= 0)
+        {
+            this.ruleError(rule, "expected name=value");
+            return null;
+        }
+        return new String[] { rule.substring(0, separator).trim(), rule.substring(separator + 1).trim() };
+    }
+
+
+
+
+    private Level parseLevel(final String rule, final String name)
+    {
+        final Level level = Level.toLevel(name, null);
+        if (level == null || level == Level.ALL || level == Level.OFF)
+        {
+            this.ruleError(rule, "unknown level " + name);
+            return null;
+        }
+        return level;
+    }
+
+
+
+
+    private Double parsePositive(final String rule, final String value)
+    {
+        try
+        {
+            final double parsed = Double.parseDouble(value);
+            if (parsed > 0)
+            {
+                return parsed;
+            }
+        }
+        catch (final NumberFormatException ex)
+        {
+            assert true; // reported below
+        }
+        this.ruleError(rule, "events per second must be positive");
+        return null;
+    }
+
+
+
+
+    private void ruleError(final String rule, final String reason)
+    {
+        this.ruleErrors++;
+        this.addError("Invalid sampler rule \"" + rule + "\": " + reason);
+    }
+
+
+
+
+    /**
+     * The <b>duplicateFirst</b> property takes the number of events with the same logger and message pattern that are passed per summary interval before duplicates are suppressed. The default value 0 passes all duplicates.
+     */
+    public void setDuplicateFirst(final int duplicateFirst)
+    {
+        this.duplicateFirst = duplicateFirst;
+    }
+
+
+
+
+    public int getDuplicateFirst()
+    {
+        return this.duplicateFirst;
+    }
+
+
+
+
+    /**
+     * The <b>duplicateEvery</b> property passes every Mth duplicate once <b>duplicateFirst</b> have been passed. The default value 0 suppresses all further duplicates.
+     */
+    public void setDuplicateEvery(final int duplicateEvery)
+    {
+        this.duplicateEvery = duplicateEvery;
+    }
+
+
+
+
+    public int getDuplicateEvery()
+    {
+        return this.duplicateEvery;
+    }
+
+
+
+
+    /**
+     * The <b>summaryInterval</b> property takes the milliseconds between summaries of the suppressed events, which is also the interval duplicates are counted in. The default value is 1 minute, 0 turns summaries off and counts duplicates per minute.
+     */
+    public void setSummaryInterval(final long summaryInterval)
+    {
+        this.summaryInterval = summaryInterval;
+    }
+
+
+
+
+    public long getSummaryInterval()
+    {
+        return this.summaryInterval;
+    }
+
+
+
+
+    /**
+     * A token bucket holding up to a second's worth of events, at least one, as a generic cell rate algorithm: a single timestamp, the theoretical arrival time of the next event, is advanced with compare-and-set for every passed event.
+     * Suppressed events only read it.
+     */
+    static final class TokenBucket
+    {
+        private final long       interval;
+        private final long       capacity;
+        private final AtomicLong theoreticalArrival = new AtomicLong(System.nanoTime());
+
+
+
+
+        TokenBucket(final double eventsPerSecond)
+        {
+            this.interval = eventsPerSecond > 0 ? (long) (TimeUnit.SECONDS.toNanos(1) / eventsPerSecond) : 0;
+            this.capacity = Math.max(TimeUnit.SECONDS.toNanos(1), this.interval);
+        }
+
+
+
+
+        boolean tryAcquire(final long now)
+        {
+            if (this.interval == 0)
+            {
+                return true;
+            }
+            while (true)
+            {
+                final long arrival = this.theoreticalArrival.get();
+                final long next = (arrival - now > 0 ? arrival : now) + this.interval;
+                if (next - now > this.capacity)
+                {
+                    return false;
+                }
+                if (this.theoreticalArrival.compareAndSet(arrival, next))
+                {
+                    return true;
+                }
+            }
+        }
+
+
+
+
+        /**
+         * Gives back a token taken by {@link #tryAcquire(long)}.
+         */
+        void release()
+        {
+            if (this.interval != 0)
+            {
+                this.theoreticalArrival.addAndGet(-this.interval);
+            }
+        }
+    }
+
+}
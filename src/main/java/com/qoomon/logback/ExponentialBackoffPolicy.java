@@ -0,0 +1,182 @@
+package com.qoomon.logback;
+
+import java.util.concurrent.ThreadLocalRandom;
+
+import ch.qos.logback.core.spi.ContextAwareBase;
+import ch.qos.logback.core.spi.LifeCycle;
+
+/**
+ * A {@link ReconnectionPolicy} that retries at once after the first failure and then backs off exponentially: <b>initialDelay</b> after the second failure, multiplied by <b>multiplier</b> after every further one, up to <b>maxDelay</b>.
+ * <p>
+ * Every delay is shortened by a random fraction of up to <b>jitter</b>, so appenders that lost their receiver at the same time, e.g. all instances of a service, do not reconnect in lockstep when it comes back. With the defaults the delays are
+ * 0, 0.5-1, 1-2, 2-4, ... seconds up to 15-30 seconds.
+ *
+ * <pre>
+ * &lt;reconnectionPolicy class="com.qoomon.logback.ExponentialBackoffPolicy"&gt;
+ *   &lt;initialDelay&gt;1000&lt;/initialDelay&gt;
+ *   &lt;maxDelay&gt;30000&lt;/maxDelay&gt;
+ * &lt;/reconnectionPolicy&gt;
+ * </pre>
+ *
+ * @author bengtbrodersen
+ *
+ */
+public class ExponentialBackoffPolicy extends ContextAwareBase implements ReconnectionPolicy, LifeCycle
+{
+
+    public static final long   DEFAULT_INITIAL_DELAY = 1000;
+    public static final double DEFAULT_MULTIPLIER    = 2;
+    public static final long   DEFAULT_MAX_DELAY     = AbstractSocketAppender.DEFAULT_RECONNECTION_DELAY;
+    public static final double DEFAULT_JITTER        = 0.5;
+
+    private long               initialDelay          = DEFAULT_INITIAL_DELAY;
+    private double             multiplier            = DEFAULT_MULTIPLIER;
+    private long               maxDelay              = DEFAULT_MAX_DELAY;
+    private double             jitter                = DEFAULT_JITTER;
+    private boolean            started;
+
+
+
+
+    @Override
+    public void start()
+    {
+        int errorCount = 0;
+        if (this.initialDelay < 0 || this.maxDelay < 0)
+        {
+            errorCount++;
+            this.addError("Delays must be non-negative");
+        }
+        if (this.multiplier < 1)
+        {
+            errorCount++;
+            this.addError("Multiplier must be at least 1");
+        }
+        if (this.jitter < 0 || this.jitter > 1)
+        {
+            errorCount++;
+            this.addError("Jitter must be between 0 and 1");
+        }
+        if (errorCount == 0)
+        {
+            this.started = true;
+        }
+    }
+
+
+
+
+    @Override
+    public void stop()
+    {
+        this.started = false;
+    }
+
+
+
+
+    @Override
+    public boolean isStarted()
+    {
+        return this.started;
+    }
+
+
+
+
+    /**
+     * {@inheritDoc}
+     */
+    @Override
+    public long nextDelay(final int failures)
+    {
+        if (failures <= 1)
+        {
+            return 0;
+        }
+        final double exponential = this.initialDelay * Math.pow(this.multiplier, failures - 2);
+        final long delay = (long) Math.min(exponential, this.maxDelay);
+        if (this.jitter == 0 || delay == 0)
+        {
+            return delay;
+        }
+        return delay - (long) (delay * this.jitter * ThreadLocalRandom.current().nextDouble());
+    }
+
+
+
+
+    /**
+     * The <b>initialDelay</b> property takes the delay in milliseconds after the second consecutive failure. The default value is 1 second.
+     */
+    public void setInitialDelay(final long initialDelay)
+    {
+        this.initialDelay = initialDelay;
+    }
+
+
+
+
+    public long getInitialDelay()
+    {
+        return this.initialDelay;
+    }
+
+
+
+
+    /**
+     * The <b>multiplier</b> property takes the factor every further failure multiplies the delay with, at least 1. The default value is 2.
+     */
+    public void setMultiplier(final double multiplier)
+    {
+        this.multiplier = multiplier;
+    }
+
+
+
+
+    public double getMultiplier()
+    {
+        return this.multiplier;
+    }
+
+
+
+
+    /**
+     * The <b>maxDelay</b> property takes the longest delay in milliseconds. The default value is 30 seconds.
+     */
+    public void setMaxDelay(final long maxDelay)
+    {
+        this.maxDelay = maxDelay;
+    }
+
+
+
+
+    public long getMaxDelay()
+    {
+        return this.maxDelay;
+    }
+
+
+
+
+    /**
+     * The <b>jitter</b> property takes the largest fraction, between 0 and 1, by which a delay is shortened at random. The default value is 0.5.
+     */
+    public void setJitter(final double jitter)
+    {
+        this.jitter = jitter;
+    }
+
+
+
+
+    public double getJitter()
+    {
+        return this.jitter;
+    }
+
+}
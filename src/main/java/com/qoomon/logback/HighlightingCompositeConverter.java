@@ -12,15 +12,25 @@ import static com.qoomon.logback.ANSIUtil.YELLOW_BG;
 import static com.qoomon.logback.ANSIUtil.YELLOW_FG;
 import static com.qoomon.logback.ANSIUtil.set;
 
-import java.util.HashMap;
-import java.util.Map;
+import java.io.Console;
+import java.lang.reflect.Method;
 
 import ch.qos.logback.classic.Level;
 import ch.qos.logback.classic.spi.ILoggingEvent;
 import ch.qos.logback.core.pattern.CompositeConverter;
+import ch.qos.logback.core.pattern.Converter;
+import ch.qos.logback.core.pattern.FormattingConverter;
 
 /**
  * Highlighting based on log event level
+ * <p>
+ * The configured styles are compiled into an immutable snapshot, an array indexed by the level from {@link Level#TRACE} to {@link Level#ERROR}. Every setter publishes a new snapshot, so styles can be changed while
+ * logging, for example on a configuration rescan, and logging threads read them without locking. The style, the output of the child converters and the reset are written into a reusable per-thread buffer, so the only allocation per event
+ * is the resulting string.
+ * <p>
+ * The <b>color</b> mode, given as option <code>%highlight(...){auto}</code> or property, decides whether styles are written at all: {@value #COLOR_ALWAYS} (the default), {@value #COLOR_NEVER} or {@value #COLOR_AUTO}, which writes them only
+ * if standard output is a terminal, <code>TERM</code> is not <code>dumb</code> and <code>NO_COLOR</code> is not set. The system property {@value #COLOR_PROPERTY} overrides the configured mode. Without styles the converter passes the
+ * output of its child converters through, a single unformatted child converter without any copy.
  *
  * @author bengtbrodersen
  *
@@ -28,8 +38,43 @@ import ch.qos.logback.core.pattern.CompositeConverter;
 public class HighlightingCompositeConverter extends CompositeConverter<ILoggingEvent>
 {
 
-    final private String             defaultStyle = set(RESET);
-    final private Map<Level, String> levelStyles  = new HashMap<Level, String>();
+    /**
+     * Color mode that always writes styles.
+     */
+    public static final String                      COLOR_ALWAYS            = "always";
+
+    /**
+     * Color mode that never writes styles.
+     */
+    public static final String                      COLOR_NEVER             = "never";
+
+    /**
+     * Color mode that writes styles only to a terminal.
+     */
+    public static final String                      COLOR_AUTO              = "auto";
+
+    public static final String                      DEFAULT_COLOR           = COLOR_ALWAYS;
+
+    /**
+     * System property that overrides the configured color mode.
+     */
+    public static final String                      COLOR_PROPERTY          = "logbackx.color";
+
+    private static final int                        INITIAL_BUFFER_CAPACITY = 256;
+    private static final int                        MAX_BUFFER_CAPACITY     = 2048;
+
+    private static final ThreadLocal<StringBuilder> BUFFER                  = new ThreadLocal<StringBuilder>()
+    {
+        @Override
+        protected StringBuilder initialValue()
+        {
+            return new StringBuilder(INITIAL_BUFFER_CAPACITY);
+        }
+    };
+
+    private volatile Styles                         styles                  = new Styles(set(RESET));
+    private String                                  color;
+    private volatile boolean                        colored                 = true;
 
 
 
@@ -42,18 +87,121 @@ public class HighlightingCompositeConverter extends CompositeConverter<ILoggingE
 
 
 
+    @Override
+    public void start()
+    {
+        String color = System.getProperty(COLOR_PROPERTY);
+        if (color == null)
+        {
+            color = this.color != null ? this.color : this.getFirstOption();
+        }
+        if (color == null)
+        {
+            color = DEFAULT_COLOR;
+        }
+
+        if (COLOR_ALWAYS.equalsIgnoreCase(color))
+        {
+            this.colored = true;
+        }
+        else if (COLOR_NEVER.equalsIgnoreCase(color))
+        {
+            this.colored = false;
+        }
+        else if (COLOR_AUTO.equalsIgnoreCase(color))
+        {
+            this.colored = isTerminal();
+        }
+        else
+        {
+            this.addError("Unknown color mode \"" + color + "\", expected \"" + COLOR_ALWAYS + "\", \"" + COLOR_NEVER
+                    + "\" or \"" + COLOR_AUTO + "\"");
+            return;
+        }
+        super.start();
+    }
+
+
+
+
+    @Override
+    public String convert(final ILoggingEvent event)
+    {
+        if (this.colored)
+        {
+            final Styles styles = this.styles;
+            return this.convert(event, styles.get(event.getLevel().levelInt), styles.defaultStyle);
+        }
+
+        final Converter<ILoggingEvent> childConverter = this.getChildConverter();
+        if (childConverter == null)
+        {
+            return "";
+        }
+        if (childConverter.getNext() == null && !isFormatting(childConverter))
+        {
+            return childConverter.convert(event);
+        }
+        return this.convert(event, "", "");
+    }
+
+
+
+
+    /**
+     * Writes the style, the output of the child converters and the default style into one buffer, instead of converting the children to a string first and wrapping it in {@link #transform(ILoggingEvent, String)}.
+     */
+    private String convert(final ILoggingEvent event, final String style, final String defaultStyle)
+    {
+        // child converters may be highlighting converters themselves and share the buffer, so only the part behind start is used
+        final StringBuilder buffer = BUFFER.get();
+        final int start = buffer.length();
+        try
+        {
+            buffer.append(style);
+            final int contentStart = buffer.length();
+            for (Converter<ILoggingEvent> converter = this.getChildConverter(); converter != null; converter = converter
+                    .getNext())
+            {
+                converter.write(buffer, event);
+            }
+            if (buffer.length() > contentStart)
+            {
+                buffer.append(defaultStyle);
+            }
+            return buffer.substring(start);
+        }
+        finally
+        {
+            buffer.setLength(start);
+            if (start == 0 && buffer.capacity() > MAX_BUFFER_CAPACITY)
+            {
+                BUFFER.set(new StringBuilder(INITIAL_BUFFER_CAPACITY));
+            }
+        }
+    }
+
+
+
+
     @Override
     protected String transform(final ILoggingEvent event, final String in)
     {
-        final Level level = event.getLevel();
-        final StringBuilder builder = new StringBuilder();
-        builder.append(this.getStyle(level));
-        if (!in.isEmpty())
+        if (!this.colored)
+        {
+            return in;
+        }
+        final Styles styles = this.styles;
+        final String style = styles.get(event.getLevel().levelInt);
+        if (in.isEmpty())
         {
-            builder.append(in);
-            builder.append(this.getDefaultStyle());
+            return style;
         }
-        return builder.toString();
+        return new StringBuilder(style.length() + in.length() + styles.defaultStyle.length())
+                .append(style)
+                .append(in)
+                .append(styles.defaultStyle)
+                .toString();
     }
 
 
@@ -66,9 +214,7 @@ public class HighlightingCompositeConverter extends CompositeConverter<ILoggingE
      */
     public String getStyle(final Level level)
     {
-        final String style = this.levelStyles.get(level);
-        return style != null ? style : this.getDefaultStyle();
-
+        return this.styles.get(level.levelInt);
     }
 
 
@@ -76,7 +222,37 @@ public class HighlightingCompositeConverter extends CompositeConverter<ILoggingE
 
     public String getDefaultStyle()
     {
-        return this.defaultStyle;
+        return this.styles.defaultStyle;
+    }
+
+
+
+
+    public String getColor()
+    {
+        return this.color;
+    }
+
+
+
+
+    /**
+     * Sets the color mode, {@value #COLOR_ALWAYS}, {@value #COLOR_NEVER} or {@value #COLOR_AUTO}; takes effect on {@link #start()}.
+     */
+    public void setColor(final String color)
+    {
+        this.color = color;
+    }
+
+
+
+
+    /**
+     * Returns whether styles are written, as decided by the color mode on {@link #start()}.
+     */
+    public boolean isColored()
+    {
+        return this.colored;
     }
 
 
@@ -95,31 +271,22 @@ public class HighlightingCompositeConverter extends CompositeConverter<ILoggingE
 
         if (templateId == 0)
         {
-            this.levelStyles.put(Level.ERROR, set(WHITE_FG, RED_BG, BOLD_ON));
-            this.levelStyles.put(Level.WARN, set(YELLOW_FG, BOLD_ON));
-            this.levelStyles.put(Level.INFO, set(BLUE_FG));
-            this.levelStyles.put(Level.DEBUG, set(DEFAULT_FG));
-            this.levelStyles.put(Level.TRACE, set(DEFAULT_FG));
+            this.setStyles(set(WHITE_FG, RED_BG, BOLD_ON), set(YELLOW_FG, BOLD_ON), set(BLUE_FG), set(DEFAULT_FG),
+                    set(DEFAULT_FG));
             return;
         }
 
         if (templateId == 1)
         {
-            this.levelStyles.put(Level.ERROR, set(WHITE_FG, RED_BG));
-            this.levelStyles.put(Level.WARN, set(WHITE_FG, YELLOW_BG));
-            this.levelStyles.put(Level.INFO, set(WHITE_FG, BLUE_BG));
-            this.levelStyles.put(Level.DEBUG, set(DEFAULT_BG));
-            this.levelStyles.put(Level.TRACE, set(DEFAULT_BG));
+            this.setStyles(set(WHITE_FG, RED_BG), set(WHITE_FG, YELLOW_BG), set(WHITE_FG, BLUE_BG), set(DEFAULT_BG),
+                    set(DEFAULT_BG));
             return;
         }
 
         if (templateId == 2)
         {
-            this.levelStyles.put(Level.ERROR, set(WHITE_FG, RED_BG, BOLD_ON));
-            this.levelStyles.put(Level.WARN, set(YELLOW_BG));
-            this.levelStyles.put(Level.INFO, set(BLUE_FG));
-            this.levelStyles.put(Level.DEBUG, set(DEFAULT_FG));
-            this.levelStyles.put(Level.TRACE, set(DEFAULT_FG));
+            this.setStyles(set(WHITE_FG, RED_BG, BOLD_ON), set(YELLOW_BG), set(BLUE_FG), set(DEFAULT_FG),
+                    set(DEFAULT_FG));
             return;
         }
 
@@ -130,7 +297,7 @@ public class HighlightingCompositeConverter extends CompositeConverter<ILoggingE
 
     public void setErrorStyle(final String style)
     {
-        this.levelStyles.put(Level.ERROR, set(style.split(";")));
+        this.setStyle(Level.ERROR, set(style.split(";")));
     }
 
 
@@ -138,7 +305,7 @@ public class HighlightingCompositeConverter extends CompositeConverter<ILoggingE
 
     public void setWarnStyle(final String style)
     {
-        this.levelStyles.put(Level.WARN, set(style.split(";")));
+        this.setStyle(Level.WARN, set(style.split(";")));
     }
 
 
@@ -146,7 +313,7 @@ public class HighlightingCompositeConverter extends CompositeConverter<ILoggingE
 
     public void setInfoStyle(final String style)
     {
-        this.levelStyles.put(Level.INFO, set(style.split(";")));
+        this.setStyle(Level.INFO, set(style.split(";")));
     }
 
 
@@ -154,7 +321,7 @@ public class HighlightingCompositeConverter extends CompositeConverter<ILoggingE
 
     public void setDebugStyle(final String style)
     {
-        this.levelStyles.put(Level.DEBUG, set(style.split(";")));
+        this.setStyle(Level.DEBUG, set(style.split(";")));
     }
 
 
@@ -162,7 +329,140 @@ public class HighlightingCompositeConverter extends CompositeConverter<ILoggingE
 
     public void setTraceStyle(final String style)
     {
-        this.levelStyles.put(Level.TRACE, set(style.split(";")));
+        this.setStyle(Level.TRACE, set(style.split(";")));
+    }
+
+
+
+
+    /**
+     * Replaces the style of one level. Writers are serialized so concurrent updates of different levels are not lost.
+     */
+    private synchronized void setStyle(final Level level, final String style)
+    {
+        this.styles = this.styles.with(level, style);
+    }
+
+
+
+
+    private synchronized void setStyles(final String error, final String warn, final String info, final String debug,
+            final String trace)
+    {
+        this.styles = this.styles
+                .with(Level.ERROR, error)
+                .with(Level.WARN, warn)
+                .with(Level.INFO, info)
+                .with(Level.DEBUG, debug)
+                .with(Level.TRACE, trace);
+    }
+
+
+
+
+    private static boolean isFormatting(final Converter<ILoggingEvent> converter)
+    {
+        return converter instanceof FormattingConverter
+                && ((FormattingConverter<ILoggingEvent>) converter).getFormattingInfo() != null;
+    }
+
+
+
+
+    /**
+     * Returns whether standard output is an interactive terminal that understands escape sequences.
+     */
+    private static boolean isTerminal()
+    {
+        if (System.getenv("NO_COLOR") != null || "dumb".equalsIgnoreCase(System.getenv("TERM")))
+        {
+            return false;
+        }
+        // null if standard input or output is redirected
+        final Console console = System.console();
+        if (console == null)
+        {
+            return false;
+        }
+        try
+        {
+            // since Java 22 a console may exist without a terminal
+            final Method isTerminal = Console.class.getMethod("isTerminal");
+            return (Boolean) isTerminal.invoke(console);
+        }
+        catch (final NoSuchMethodException ex)
+        {
+            return true;
+        }
+        catch (final Exception ex)
+        {
+            return false;
+        }
+    }
+
+
+
+
+    /**
+     * Maps the level values 5000, 10000, 20000, 30000 and 40000 from {@link Level#TRACE} to {@link Level#ERROR} to 0 to 4, any other value to an index out of that range.
+     */
+    private static int levelIndex(final int levelInt)
+    {
+        return levelInt < Level.TRACE_INT ? -1 : levelInt / Level.DEBUG_INT;
+    }
+
+
+
+
+    /**
+     * An immutable set of styles, the style of every level and the default style that ends a highlighted section. Levels without a style of their own get the default style.
+     */
+    static final class Styles
+    {
+        private final String[] levelStyles;
+        final String           defaultStyle;
+
+
+
+
+        Styles(final String defaultStyle)
+        {
+            this(new String[levelIndex(Level.ERROR_INT) + 1], defaultStyle);
+        }
+
+
+
+
+        private Styles(final String[] levelStyles, final String defaultStyle)
+        {
+            this.levelStyles = levelStyles;
+            this.defaultStyle = defaultStyle;
+        }
+
+
+
+
+        String get(final int levelInt)
+        {
+            final int index = levelIndex(levelInt);
+            final String style = index >= 0 && index < this.levelStyles.length ? this.levelStyles[index] : null;
+            return style != null ? style : this.defaultStyle;
+        }
+
+
+
+
+        Styles with(final Level level, final String style)
+        {
+            final int index = levelIndex(level.levelInt);
+            if (index < 0 || index >= this.levelStyles.length)
+            {
+                return this;
+            }
+            final String[] levelStyles = this.levelStyles.clone();
+            levelStyles[index] = style;
+            return new Styles(levelStyles, this.defaultStyle);
+        }
     }
 
 }
@@ -0,0 +1,145 @@
+package com.qoomon.logback;
+
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.atomic.AtomicLongArray;
+
+/**
+ * A lock-free histogram of durations with power of two buckets.
+ * <p>
+ * Bucket 0 counts durations below one microsecond, bucket <code>i</code> counts durations from <code>2^(i-1)</code> up to <code>2^i</code> microseconds; the last bucket counts everything longer. Percentiles are reported as the upper bound
+ * of the bucket they fall into, so they are accurate to a factor of two, which is plenty to tell whether an appender keeps up.
+ *
+ * @author bengtbrodersen
+ *
+ */
+public final class LatencyHistogram
+{
+
+    /**
+     * Number of buckets, the last one covers everything above about 17 minutes.
+     */
+    public static final int      BUCKETS = 31;
+
+    private final AtomicLongArray counts = new AtomicLongArray(BUCKETS);
+    private final AtomicLong      count   = new AtomicLong();
+    private final AtomicLong      total   = new AtomicLong();
+    private final AtomicLong      max     = new AtomicLong();
+
+
+
+
+    /**
+     * Records a duration.
+     *
+     * @param nanos
+     *            the duration in nanoseconds
+     */
+    public void record(final long nanos)
+    {
+        final long micros = TimeUnit.NANOSECONDS.toMicros(Math.max(nanos, 0));
+        this.counts.incrementAndGet(Math.min(64 - Long.numberOfLeadingZeros(micros), BUCKETS - 1));
+        this.count.incrementAndGet();
+        this.total.addAndGet(nanos);
+        long current;
+        while (nanos > (current = this.max.get()) && !this.max.compareAndSet(current, nanos))
+        {
+            // retry
+        }
+    }
+
+
+
+
+    /**
+     * Returns the number of recorded durations.
+     */
+    public long getCount()
+    {
+        return this.count.get();
+    }
+
+
+
+
+    /**
+     * Returns the mean duration in microseconds.
+     */
+    public long getMeanMicros()
+    {
+        final long count = this.count.get();
+        return count == 0 ? 0 : TimeUnit.NANOSECONDS.toMicros(this.total.get() / count);
+    }
+
+
+
+
+    /**
+     * Returns the longest duration in microseconds.
+     */
+    public long getMaxMicros()
+    {
+        return TimeUnit.NANOSECONDS.toMicros(this.max.get());
+    }
+
+
+
+
+    /**
+     * Returns the upper bound in microseconds of the bucket the given percentile falls into.
+     *
+     * @param percentile
+     *            the percentile, between 0 and 100
+     */
+    public long getPercentileMicros(final double percentile)
+    {
+        final long[] counts = this.getBucketCounts();
+        long total = 0;
+        for (final long count : counts)
+        {
+            total += count;
+        }
+        if (total == 0)
+        {
+            return 0;
+        }
+        final long rank = (long) Math.ceil(total * percentile / 100);
+        long seen = 0;
+        for (int i = 0; i < counts.length; i++)
+        {
+            seen += counts[i];
+            if (seen >= rank && counts[i] > 0)
+            {
+                return 1L << i;
+            }
+        }
+        return 1L << (counts.length - 1);
+    }
+
+
+
+
+    /**
+     * Returns a snapshot of the bucket counts.
+     */
+    public long[] getBucketCounts()
+    {
+        final long[] counts = new long[BUCKETS];
+        for (int i = 0; i < BUCKETS; i++)
+        {
+            counts[i] = this.counts.get(i);
+        }
+        return counts;
+    }
+
+
+
+
+    @Override
+    public String toString()
+    {
+        return "count=" + this.getCount() + " mean=" + this.getMeanMicros() + "us p50=" + this.getPercentileMicros(50)
+                + "us p99=" + this.getPercentileMicros(99) + "us max=" + this.getMaxMicros() + "us";
+    }
+
+}
@@ -0,0 +1,606 @@
+package com.qoomon.logback;
+
+import java.io.IOException;
+import java.io.OutputStream;
+import java.net.InetSocketAddress;
+import java.net.StandardSocketOptions;
+import java.nio.ByteBuffer;
+import java.nio.channels.SelectionKey;
+import java.nio.channels.SocketChannel;
+import java.util.ArrayDeque;
+import java.util.ArrayList;
+import java.util.Deque;
+import java.util.List;
+import java.util.concurrent.BlockingQueue;
+import java.util.concurrent.atomic.AtomicBoolean;
+import java.util.concurrent.atomic.AtomicInteger;
+
+import ch.qos.logback.core.encoder.Encoder;
+
+/**
+ * A non-blocking connection of an {@link AbstractSocketAppender}, driven by the {@link SocketIoLoop} of its context. It delivers the events of a single queue, which may be shared with the other connections of the appender.
+ * <p>
+ * Connecting, failing over to the next endpoint, reconnecting after the delay of the {@link AbstractSocketAppender#getReconnectionPolicy() reconnectionPolicy} and writing all happen on the loop thread, no thread is blocked while the remote peer is slow or
+ * unreachable; only re-resolving a host name after the DNS refresh interval may block briefly. Queued events are encoded into a
+ * chain of pooled direct buffers, compressed if configured, which is written with a single gathering write. If the socket does not take everything, the rest is written once the channel becomes writable again; no further events are encoded in the meantime, so the queue
+ * provides the backpressure as with the blocking transport.
+ *
+ * @author bengtbrodersen
+ *
+ * @param <E>
+ *            the event type of the appender
+ */
+final class NioSocketConnection<E> implements SocketIoLoop.Handler
+{
+
+    /**
+     * Size of the pooled direct buffers events are encoded into.
+     */
+    static final int                        CHUNK_SIZE        = 32 * 1024;
+
+    /**
+     * Maximum number of buffered bytes before encoding pauses until the socket has taken them.
+     */
+    static final int                        MAX_PENDING_BYTES = 16 * CHUNK_SIZE;
+
+    private final AbstractSocketAppender<E> appender;
+    private final BlockingQueue<E>          queue;
+    private final SocketIoLoop              loop;
+    private final AtomicBoolean             flushScheduled    = new AtomicBoolean();
+    private final AtomicInteger             lingerCountdown   = new AtomicInteger();
+    private final Deque<ByteBuffer>         pending           = new ArrayDeque<ByteBuffer>();
+    private final Deque<ByteBuffer>         freeChunks        = new ArrayDeque<ByteBuffer>();
+    private final List<E>                   batch             = new ArrayList<E>();
+    private final ByteBuffer                readBuffer        = ByteBuffer.allocate(256);
+    private final OutputStream              chunkStream       = new ChunkOutputStream();
+    private final Runnable                  flushTask;
+    private final Runnable                  connectTask;
+
+    private SocketChannel                   channel;
+    private Endpoint                        endpoint;
+    private SelectionKey                    key;
+    private OutputStream                    out;
+    private Encoder<E>                      encoder;
+    private boolean                         connected;
+    private boolean                         connectedBefore;
+    private boolean                         stopped;
+    private volatile boolean                draining;
+    private volatile boolean                drained;
+    private long                            pendingBytes;
+    private long                            encodeNanos;
+    private long                            lingerDeadline;
+    private SocketIoLoop.Timer              timer;
+    private SocketIoLoop.Timer              lingerTimer;
+
+
+
+
+    NioSocketConnection(final AbstractSocketAppender<E> appender, final BlockingQueue<E> queue, final SocketIoLoop loop)
+    {
+        this.appender = appender;
+        this.queue = queue;
+        this.loop = loop;
+        this.flushTask = new Runnable()
+        {
+            @Override
+            public void run()
+            {
+                NioSocketConnection.this.flush();
+            }
+        };
+        this.connectTask = new Runnable()
+        {
+            @Override
+            public void run()
+            {
+                NioSocketConnection.this.connect();
+            }
+        };
+    }
+
+
+
+
+    /**
+     * Starts connecting to the remote peer.
+     */
+    void start()
+    {
+        this.loop.execute(this.connectTask);
+    }
+
+
+
+
+    /**
+     * Closes the connection and releases the loop. Events that have not been written yet stay in the queue.
+     */
+    void stop()
+    {
+        this.loop.execute(new Runnable()
+        {
+            @Override
+            public void run()
+            {
+                NioSocketConnection.this.stopped = true;
+                if (NioSocketConnection.this.timer != null)
+                {
+                    NioSocketConnection.this.timer.cancel();
+                }
+                if (NioSocketConnection.this.connected)
+                {
+                    try
+                    {
+                        NioSocketConnection.this.append(NioSocketConnection.this.encoder.footerBytes());
+                        NioSocketConnection.this.out.flush();
+                        NioSocketConnection.this.write();
+                    }
+                    catch (final IOException ex)
+                    {
+                        assert true; // closing anyway
+                    }
+                }
+                NioSocketConnection.this.close();
+                NioSocketConnection.this.loop.release();
+            }
+        });
+    }
+
+
+
+
+    /**
+     * Makes the connection write the queued events at once, in batches of at least {@value AbstractSocketAppender#DRAIN_BATCH_SIZE} events. Call it again to check on the progress with {@link #isDrained()}.
+     */
+    void drain()
+    {
+        this.draining = true;
+        this.loop.execute(new Runnable()
+        {
+            @Override
+            public void run()
+            {
+                final NioSocketConnection<E> connection = NioSocketConnection.this;
+                connection.flush();
+                // a connection that is not established does not wait for a reconnect
+                connection.drained = !connection.connected
+                        || (connection.batch.isEmpty() && connection.pending.isEmpty() && !connection.appender.hasQueuedEvents(connection.queue));
+            }
+        });
+    }
+
+
+
+
+    /**
+     * Returns whether the last {@link #drain()} found nothing left to write.
+     */
+    boolean isDrained()
+    {
+        return this.drained;
+    }
+
+
+
+
+    /**
+     * Tells the loop that an event has been appended. Cheap enough for every append: only the first event after the connection went idle wakes the loop.
+     */
+    void eventAppended()
+    {
+        if (!this.flushScheduled.get() && this.flushScheduled.compareAndSet(false, true))
+        {
+            this.loop.execute(this.flushTask);
+        }
+        else if (this.lingerCountdown.get() > 0 && this.lingerCountdown.decrementAndGet() == 0)
+        {
+            // batch is full, stop lingering
+            this.loop.execute(this.flushTask);
+        }
+    }
+
+
+
+
+    private void connect()
+    {
+        this.timer = null;
+        if (this.stopped)
+        {
+            return;
+        }
+        final Endpoint next = this.appender.getEndpointGroup().next();
+        final long delay = next.retryDelay(System.currentTimeMillis());
+        if (delay > 0)
+        {
+            // all endpoints unavailable
+            this.timer = this.loop.schedule(this.connectTask, delay);
+            return;
+        }
+        this.endpoint = next;
+        try
+        {
+            final InetSocketAddress address = new InetSocketAddress(
+                    next.resolve(this.appender.getDnsRefreshInterval()), next.getPort());
+            this.channel = SocketChannel.open();
+            this.channel.configureBlocking(false);
+            this.channel.setOption(StandardSocketOptions.TCP_NODELAY, true);
+            if (this.channel.connect(address))
+            {
+                this.key = this.channel.register(this.loop.selector(), SelectionKey.OP_READ, this);
+                this.connected();
+            }
+            else
+            {
+                this.key = this.channel.register(this.loop.selector(), SelectionKey.OP_CONNECT, this);
+            }
+        }
+        catch (final IOException ex)
+        {
+            this.failed(ex);
+        }
+    }
+
+
+
+
+    private void connected() throws IOException
+    {
+        this.connected = true;
+        this.appender.getEndpointGroup().connected(this.endpoint);
+        this.key.interestOps(SelectionKey.OP_READ);
+        this.encoder = this.appender.newConnectionEncoder();
+        this.out = this.appender.newOutputStream(this.chunkStream);
+        this.append(this.encoder.headerBytes());
+        this.out.flush();
+        this.appender.addInfo(this.endpoint.getPeerId() + "connection established");
+        this.appender.metrics().connected(this.endpoint.getPeerId(), this.connectedBefore);
+        this.connectedBefore = true;
+        this.flushScheduled.set(true);
+        this.flush();
+    }
+
+
+
+
+    /**
+     * {@inheritDoc}
+     */
+    @Override
+    public void handle(final SelectionKey key)
+    {
+        try
+        {
+            if (key.isConnectable())
+            {
+                if (this.channel.finishConnect())
+                {
+                    this.connected();
+                }
+                return;
+            }
+            if (key.isReadable())
+            {
+                this.readBuffer.clear();
+                if (this.channel.read(this.readBuffer) < 0)
+                {
+                    throw new IOException("connection closed by remote peer");
+                }
+            }
+            if (key.isValid() && key.isWritable())
+            {
+                this.flush();
+            }
+        }
+        catch (final IOException ex)
+        {
+            this.failed(ex);
+        }
+    }
+
+
+
+
+    /**
+     * {@inheritDoc}
+     */
+    @Override
+    public void closed()
+    {
+        this.close();
+    }
+
+
+
+
+    /**
+     * Encodes and writes queued events until the queue is empty or the socket does not take more bytes.
+     */
+    private void flush()
+    {
+        if (!this.connected)
+        {
+            // events stay queued, flushScheduled stays set until connected() flushes them
+            return;
+        }
+        try
+        {
+            while (true)
+            {
+                if (!this.write())
+                {
+                    this.key.interestOps(SelectionKey.OP_READ | SelectionKey.OP_WRITE);
+                    return;
+                }
+                if (this.lingering())
+                {
+                    return;
+                }
+                if (!this.encodeBatch())
+                {
+                    this.key.interestOps(SelectionKey.OP_READ);
+                    this.flushScheduled.set(false);
+                    // an event appended before the flag was reset did not schedule a flush
+                    if (!this.appender.hasQueuedEvents(this.queue) || !this.flushScheduled.compareAndSet(false, true))
+                    {
+                        return;
+                    }
+                }
+            }
+        }
+        catch (final IOException ex)
+        {
+            this.failed(ex);
+        }
+    }
+
+
+
+
+    /**
+     * Waits up to <b>lingerMillis</b> for a full batch before encoding.
+     */
+    private boolean lingering()
+    {
+        final int lingerMillis = this.appender.getLingerMillis();
+        final long queued = lingerMillis > 0 ? this.appender.getQueuedEventCount(this.queue) : 0;
+        if (lingerMillis <= 0 || this.draining || queued == 0 || queued >= this.appender.getBatchSize())
+        {
+            this.stopLingering();
+            return false;
+        }
+        final long now = System.nanoTime();
+        if (this.lingerDeadline == 0)
+        {
+            this.lingerDeadline = now + lingerMillis * 1000000L;
+            this.lingerTimer = this.loop.schedule(this.flushTask, lingerMillis);
+            // appenders flush as soon as the batch is full
+            this.lingerCountdown.set((int) (this.appender.getBatchSize() - queued));
+            return true;
+        }
+        if (this.lingerDeadline - now > 0)
+        {
+            return true;
+        }
+        this.stopLingering();
+        return false;
+    }
+
+
+
+
+    private void stopLingering()
+    {
+        if (this.lingerDeadline != 0)
+        {
+            this.lingerDeadline = 0;
+            this.lingerCountdown.set(0);
+            this.lingerTimer.cancel();
+            this.lingerTimer = null;
+        }
+    }
+
+
+
+
+    /**
+     * Encodes up to <b>batchSize</b> events into the pending buffers. The events are kept in the batch until {@link #write()} has written all pending buffers, they count as sent only then. Only called when nothing is pending.
+     *
+     * @return <code>false</code> if there was no event to encode
+     */
+    private boolean encodeBatch() throws IOException
+    {
+        final int batchSize = this.draining ?
+                Math.max(this.appender.getBatchSize(), AbstractSocketAppender.DRAIN_BATCH_SIZE) : this.appender.getBatchSize();
+        E event;
+        while (this.batch.size() < batchSize && this.pendingBytes < MAX_PENDING_BYTES
+                && (event = this.appender.nextEvent(this.queue)) != null)
+        {
+            this.batch.add(event);
+        }
+        if (this.batch.isEmpty())
+        {
+            return false;
+        }
+        this.appender.metrics().queueDepthSampled(this.queue.size() + this.batch.size());
+        final long start = System.nanoTime();
+        for (final E queued : this.batch)
+        {
+            this.append(this.appender.encodeEvent(this.encoder, queued));
+        }
+        this.out.flush();
+        this.encodeNanos = System.nanoTime() - start;
+        return true;
+    }
+
+
+
+
+    private void append(final byte[] bytes) throws IOException
+    {
+        if (bytes != null)
+        {
+            this.out.write(bytes);
+        }
+    }
+
+
+
+
+    /**
+     * Writes the pending buffers with a single gathering write. Once everything has been written, the events of the batch count as sent.
+     *
+     * @return <code>true</code> if everything has been written
+     */
+    private boolean write() throws IOException
+    {
+        if (this.pending.isEmpty())
+        {
+            this.batchWritten();
+            return true;
+        }
+        final ByteBuffer[] buffers = this.pending.toArray(new ByteBuffer[this.pending.size()]);
+        for (final ByteBuffer buffer : buffers)
+        {
+            buffer.flip();
+        }
+        final long start = System.nanoTime();
+        final long written = this.channel.write(buffers);
+        this.appender.metrics().bytesWritten(written, System.nanoTime() - start);
+        this.pendingBytes -= written;
+        while (!this.pending.isEmpty() && !this.pending.peekFirst().hasRemaining())
+        {
+            this.freeChunks.push(this.pending.removeFirst());
+        }
+        for (final ByteBuffer buffer : this.pending)
+        {
+            buffer.compact();
+        }
+        if (!this.pending.isEmpty())
+        {
+            return false;
+        }
+        this.batchWritten();
+        return true;
+    }
+
+
+
+
+    private void batchWritten()
+    {
+        if (!this.batch.isEmpty())
+        {
+            this.appender.metrics().eventsSent(this.batch.size(), this.encodeNanos);
+            this.appender.getEndpointGroup().delivered(this.endpoint);
+            this.appender.release(this.batch);
+        }
+    }
+
+
+
+
+    /**
+     * Closes the failed connection and fails over to the next available endpoint.
+     */
+    private void failed(final Exception ex)
+    {
+        if (this.connected)
+        {
+            this.appender.addInfo(this.endpoint.getPeerId() + "connection failed: " + ex);
+        }
+        else
+        {
+            this.appender.connectionFailed(this.endpoint.getPeerId(), ex);
+        }
+        this.close();
+        final int reconnectionDelay = this.appender.getReconnectionDelay();
+        if (!this.stopped && !this.draining && reconnectionDelay > 0)
+        {
+            this.appender.getEndpointGroup().failed(this.endpoint);
+            this.loop.execute(this.connectTask);
+        }
+    }
+
+
+
+
+    private void close()
+    {
+        if (this.channel == null)
+        {
+            return;
+        }
+        if (this.key != null)
+        {
+            this.key.cancel();
+            this.key = null;
+        }
+        try
+        {
+            this.channel.close();
+        }
+        catch (final IOException ex)
+        {
+            assert true; // closed anyway
+        }
+        this.channel = null;
+        CompressingOutputStream.release(this.out);
+        this.out = null;
+        if (this.connected)
+        {
+            this.connected = false;
+            this.endpoint.disconnected();
+            this.appender.addInfo(this.endpoint.getPeerId() + "connection closed");
+            this.appender.metrics().disconnected(this.endpoint.getPeerId());
+        }
+        this.appender.batchFailed(this.batch, this.endpoint.getPeerId());
+        while (!this.pending.isEmpty())
+        {
+            this.freeChunks.push(this.pending.removeFirst());
+        }
+        this.pendingBytes = 0;
+        this.stopLingering();
+    }
+
+
+
+
+    /**
+     * Appends written bytes to the chain of pending direct buffers.
+     */
+    private final class ChunkOutputStream extends OutputStream
+    {
+        @Override
+        public void write(final int b)
+        {
+            this.write(new byte[] { (byte) b }, 0, 1);
+        }
+
+
+
+
+        @Override
+        public void write(final byte[] bytes, final int offset, final int length)
+        {
+            final Deque<ByteBuffer> pending = NioSocketConnection.this.pending;
+            int position = offset;
+            while (position < offset + length)
+            {
+                ByteBuffer chunk = pending.peekLast();
+                if (chunk == null || !chunk.hasRemaining())
+                {
+                    final Deque<ByteBuffer> freeChunks = NioSocketConnection.this.freeChunks;
+                    chunk = freeChunks.isEmpty() ? ByteBuffer.allocateDirect(CHUNK_SIZE) : freeChunks.pop();
+                    chunk.clear();
+                    pending.addLast(chunk);
+                }
+                final int chunkLength = Math.min(chunk.remaining(), offset + length - position);
+                chunk.put(bytes, position, chunkLength);
+                position += chunkLength;
+            }
+            NioSocketConnection.this.pendingBytes += length;
+        }
+    }
+
+}
@@ -0,0 +1,52 @@
+package com.qoomon.logback;
+
+/**
+ * Policies that decide what happens to a logging event when the queue of an {@link AbstractSocketAppender} is full.
+ *
+ * @author bengtbrodersen
+ *
+ */
+public enum OverflowPolicy
+{
+    /**
+     * Drops the event that is being appended.
+     */
+    DROP_NEWEST,
+
+    /**
+     * Drops the oldest queued events until the appended event fits into the queue.
+     */
+    DROP_OLDEST,
+
+    /**
+     * Blocks the appending thread until there is space in the queue, at most for the configured blocking timeout. The event is dropped if the timeout expires.
+     */
+    BLOCK,
+
+    /**
+     * Drops the appended event right away if it is discardable, e.g. below a threshold level, otherwise behaves like {@link #BLOCK}.
+     */
+    DROP_BELOW_THRESHOLD;
+
+
+
+
+    /**
+     * Returns the policy with the given name. Case, dashes and underscores are ignored, so <code>dropOldest</code>, <code>drop-oldest</code> and <code>DROP_OLDEST</code> are all accepted.
+     *
+     * @throws IllegalArgumentException
+     *             if there is no such policy
+     */
+    public static OverflowPolicy fromName(final String name)
+    {
+        final String normalizedName = name.trim().replace("-", "").replace("_", "");
+        for (final OverflowPolicy policy : OverflowPolicy.values())
+        {
+            if (policy.name().replace("_", "").equalsIgnoreCase(normalizedName))
+            {
+                return policy;
+            }
+        }
+        throw new IllegalArgumentException("No overflow policy " + name);
+    }
+}
@@ -0,0 +1,22 @@
+package com.qoomon.logback;
+
+import ch.qos.logback.core.encoder.Encoder;
+
+/**
+ * An {@link Encoder} whose output depends on what it has written to the same stream before, like the string dictionary of {@link BinaryEventEncoder}. An {@link AbstractSocketAppender} configured with such an encoder asks it for a new
+ * instance whenever a connection is established, so every stream starts with a fresh state and every instance is only used by the thread serving its connection.
+ *
+ * @author bengtbrodersen
+ *
+ * @param <E>
+ *            the event type
+ */
+public interface PerConnectionEncoder<E> extends Encoder<E>
+{
+
+    /**
+     * Returns a new, started encoder for a single connection, configured like this one. Its header is written first, its footer when the connection is closed by the appender.
+     */
+    Encoder<E> newConnectionEncoder();
+
+}
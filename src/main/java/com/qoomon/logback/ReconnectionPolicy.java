@@ -0,0 +1,24 @@
+package com.qoomon.logback;
+
+/**
+ * Decides how long a socket appender waits before it connects to an endpoint again, after a connection attempt or an established connection to that endpoint failed. Configure an implementation with a nested
+ * <code>&lt;reconnectionPolicy class="..."/&gt;</code> element of the appender, see {@link ExponentialBackoffPolicy}. Without a policy the appender waits the fixed {@link AbstractSocketAppender#getReconnectionDelay() reconnectionDelay}.
+ * <p>
+ * Meanwhile the appender fails over to the other endpoints. Policies are shared by all connections and endpoints of an appender and called from several threads, so they must be thread-safe.
+ *
+ * @author bengtbrodersen
+ *
+ */
+public interface ReconnectionPolicy
+{
+
+    /**
+     * Returns the delay before the next connection attempt to an endpoint.
+     *
+     * @param failures
+     *            the number of consecutive failures of the endpoint, 1 after the first failure; reset once a connection delivered a batch or stayed up for a while, so a peer that accepts connections and closes them at once is not retried in a tight loop
+     * @return the delay in milliseconds, zero to retry at once
+     */
+    long nextDelay(int failures);
+
+}
@@ -0,0 +1,322 @@
+package com.qoomon.logback;
+
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.List;
+import java.util.Map;
+
+import org.slf4j.Marker;
+import org.slf4j.event.KeyValuePair;
+import org.slf4j.helpers.MessageFormatter;
+
+import ch.qos.logback.classic.Level;
+import ch.qos.logback.classic.spi.CallerData;
+import ch.qos.logback.classic.spi.ILoggingEvent;
+import ch.qos.logback.classic.spi.IThrowableProxy;
+import ch.qos.logback.classic.spi.LoggerContextVO;
+
+/**
+ * A mutable copy of a logging event that is reused for many events, see {@link AbstractSocketAppender#setRecycleEvents(boolean)}.
+ * <p>
+ * {@link #fill(ILoggingEvent, boolean, boolean)} copies the fields of an appended event, which must have been prepared for deferred processing, into the argument array and the marker and key value pair lists of this instance instead of referencing
+ * the ones of the event, so the appended event and its collections become garbage right away. {@link #clear()} drops all references once the event has been delivered. Visibility between the appending thread and the delivering thread is
+ * provided by the queues the instance is passed through.
+ *
+ * @author bengtbrodersen
+ *
+ */
+final class RecycledLoggingEvent implements ILoggingEvent
+{
+    private final List<Marker>       markerBuffer       = new ArrayList<Marker>(2);
+    private final List<KeyValuePair> keyValuePairBuffer = new ArrayList<KeyValuePair>(4);
+    private Object[]                 argumentBuffer;
+
+    private LoggerContextVO          loggerContext;
+    private long                     timestamp;
+    private int                      nanoseconds;
+    private Level                    level;
+    private long                     sequenceNumber;
+    private String                   loggerName;
+    private String                   threadName;
+    private String                   message;
+    private Object[]                 arguments;
+    private String                   formattedMessage;
+    private Map<String, String>      mdc;
+    private List<Marker>             markers;
+    private List<KeyValuePair>       keyValuePairs;
+    private StackTraceElement[]      callerData;
+    private IThrowableProxy          throwable;
+
+
+
+
+    /**
+     * Copies an appended event.
+     *
+     * @param event
+     *            the appended event, on the appending thread
+     * @param formatted
+     *            whether the message of the event has been formatted already and is copied as well
+     * @param includeMdc
+     *            whether the MDC of the event is copied, else the copy has an empty MDC
+     */
+    void fill(final ILoggingEvent event, final boolean formatted, final boolean includeMdc)
+    {
+        this.loggerContext = event.getLoggerContextVO();
+        this.timestamp = event.getTimeStamp();
+        this.nanoseconds = event.getNanoseconds();
+        this.level = event.getLevel();
+        this.sequenceNumber = event.getSequenceNumber();
+        this.loggerName = event.getLoggerName();
+        this.threadName = event.getThreadName();
+        this.message = event.getMessage();
+        this.arguments = this.copyArguments(event.getArgumentArray());
+        this.formattedMessage = formatted ? event.getFormattedMessage() : null;
+        this.mdc = includeMdc ? event.getMDCPropertyMap() : Collections.<String, String> emptyMap();
+        this.markers = copy(event.getMarkerList(), this.markerBuffer);
+        this.keyValuePairs = copy(event.getKeyValuePairs(), this.keyValuePairBuffer);
+        this.callerData = event.hasCallerData() ? event.getCallerData() : null;
+        this.throwable = event.getThrowableProxy();
+    }
+
+
+
+
+    /**
+     * Drops all references to the content of the last event.
+     */
+    void clear()
+    {
+        this.loggerContext = null;
+        this.level = null;
+        this.loggerName = null;
+        this.threadName = null;
+        this.message = null;
+        if (this.argumentBuffer != null)
+        {
+            Arrays.fill(this.argumentBuffer, null);
+        }
+        this.arguments = null;
+        this.formattedMessage = null;
+        this.mdc = null;
+        this.markerBuffer.clear();
+        this.markers = null;
+        this.keyValuePairBuffer.clear();
+        this.keyValuePairs = null;
+        this.callerData = null;
+        this.throwable = null;
+    }
+
+
+
+
+    /**
+     * Copies the arguments into the array of a previous event if it has the same length.
+     */
+    private Object[] copyArguments(final Object[] arguments)
+    {
+        if (arguments == null)
+        {
+            return null;
+        }
+        if (this.argumentBuffer == null || this.argumentBuffer.length != arguments.length)
+        {
+            this.argumentBuffer = new Object[arguments.length];
+        }
+        System.arraycopy(arguments, 0, this.argumentBuffer, 0, arguments.length);
+        return this.argumentBuffer;
+    }
+
+
+
+
+    private static <T> List<T> copy(final List<T> source, final List<T> buffer)
+    {
+        buffer.clear();
+        if (source == null)
+        {
+            return null;
+        }
+        buffer.addAll(source);
+        return buffer;
+    }
+
+
+
+
+    @Override
+    public String getThreadName()
+    {
+        return this.threadName;
+    }
+
+
+
+
+    @Override
+    public Level getLevel()
+    {
+        return this.level;
+    }
+
+
+
+
+    @Override
+    public String getMessage()
+    {
+        return this.message;
+    }
+
+
+
+
+    @Override
+    public Object[] getArgumentArray()
+    {
+        return this.arguments;
+    }
+
+
+
+
+    @Override
+    public String getFormattedMessage()
+    {
+        if (this.formattedMessage == null)
+        {
+            this.formattedMessage = this.arguments != null ?
+                    MessageFormatter.arrayFormat(this.message, this.arguments).getMessage() : this.message;
+        }
+        return this.formattedMessage;
+    }
+
+
+
+
+    @Override
+    public String getLoggerName()
+    {
+        return this.loggerName;
+    }
+
+
+
+
+    @Override
+    public LoggerContextVO getLoggerContextVO()
+    {
+        return this.loggerContext;
+    }
+
+
+
+
+    @Override
+    public IThrowableProxy getThrowableProxy()
+    {
+        return this.throwable;
+    }
+
+
+
+
+    @Override
+    public StackTraceElement[] getCallerData()
+    {
+        return this.callerData != null ? this.callerData : CallerData.EMPTY_CALLER_DATA_ARRAY;
+    }
+
+
+
+
+    @Override
+    public boolean hasCallerData()
+    {
+        return this.callerData != null;
+    }
+
+
+
+
+    @Override
+    public List<Marker> getMarkerList()
+    {
+        return this.markers;
+    }
+
+
+
+
+    @Override
+    public Map<String, String> getMDCPropertyMap()
+    {
+        return this.mdc;
+    }
+
+
+
+
+    @Override
+    @Deprecated
+    public Map<String, String> getMdc()
+    {
+        return this.mdc;
+    }
+
+
+
+
+    @Override
+    public long getTimeStamp()
+    {
+        return this.timestamp;
+    }
+
+
+
+
+    @Override
+    public int getNanoseconds()
+    {
+        return this.nanoseconds;
+    }
+
+
+
+
+    @Override
+    public long getSequenceNumber()
+    {
+        return this.sequenceNumber;
+    }
+
+
+
+
+    @Override
+    public List<KeyValuePair> getKeyValuePairs()
+    {
+        return this.keyValuePairs;
+    }
+
+
+
+
+    @Override
+    public void prepareForDeferredProcessing()
+    {
+        // prepared by the appended event
+    }
+
+
+
+
+    @Override
+    public String toString()
+    {
+        return "[" + this.level + "] " + this.getFormattedMessage();
+    }
+
+}
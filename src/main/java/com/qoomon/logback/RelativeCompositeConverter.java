@@ -4,7 +4,10 @@ import ch.qos.logback.classic.spi.ILoggingEvent;
 import ch.qos.logback.core.pattern.CompositeConverter;
 
 /**
- * Highlighting based on log event level
+ * Time since the start of the logger context, formatted as <code>HH:mm:ss,SSS</code>, prefixed with the week and the day of the week, <code>Www-d </code>, after the first day.
+ * <p>
+ * The text of the latest timestamp is cached in an immutable holder that is replaced as a whole, so logging threads never lock; threads racing on a new timestamp just format it twice. Formatting writes the digits into a reusable per-thread
+ * buffer, the only allocations are the resulting string and its holder, once per timestamp.
  *
  * @author bengtbrodersen
  *
@@ -12,8 +15,21 @@ import ch.qos.logback.core.pattern.CompositeConverter;
 public class RelativeCompositeConverter extends CompositeConverter<ILoggingEvent>
 {
 
-    long   lastTimestamp = -1;
-    String timesmapCache = null;
+    /**
+     * Maximum length of a formatted relative time, reached with the largest number of weeks a long can hold.
+     */
+    private static final int                 MAX_LENGTH = 40;
+
+    private static final ThreadLocal<char[]> BUFFER     = new ThreadLocal<char[]>()
+    {
+        @Override
+        protected char[] initialValue()
+        {
+            return new char[MAX_LENGTH];
+        }
+    };
+
+    private volatile CachedText              cache      = new CachedText(-1, null);
 
 
 
@@ -23,52 +39,100 @@ public class RelativeCompositeConverter extends CompositeConverter<ILoggingEvent
     }
 
 
+
+
     @Override
     public String transform(final ILoggingEvent event, final String in)
     {
-        final long now = event.getTimeStamp();
-
-        synchronized (this)
+        final long timestamp = event.getTimeStamp();
+        final CachedText cache = this.cache;
+        if (cache.timestamp == timestamp)
         {
-            // update timesmapStrCache only if now != lastTimestamp
-            if (now != this.lastTimestamp)
-            {
-                this.lastTimestamp = now;
-                // this.timesmapCache = Long.toString(now - event.getLoggerContextVO().getBirthTime());
-                this.timesmapCache = this.transform(now - event.getLoggerContextVO().getBirthTime());
-            }
-            return this.timesmapCache;
+            return cache.text;
         }
+        final String text = format(timestamp - event.getLoggerContextVO().getBirthTime());
+        this.cache = new CachedText(timestamp, text);
+        return text;
     }
 
 
 
 
-    private String transform(final long value)
+    /**
+     * Formats a duration, negative durations are formatted as zero.
+     */
+    static String format(final long millis)
     {
+        final long value = Math.max(millis, 0);
+        final long seconds = value / 1000;
+        final long minutes = seconds / 60;
+        final long hours = minutes / 60;
+        final long days = hours / 24;
+
+        final char[] buffer = BUFFER.get();
+        int position = 0;
+        if (days > 0)
+        {
+            buffer[position++] = 'W';
+            position = appendDigits(buffer, position, days / 7, 2);
+            buffer[position++] = '-';
+            buffer[position++] = (char) ('0' + days % 7);
+            buffer[position++] = ' ';
+        }
+        position = appendDigits(buffer, position, hours % 24, 2);
+        buffer[position++] = ':';
+        position = appendDigits(buffer, position, minutes % 60, 2);
+        buffer[position++] = ':';
+        position = appendDigits(buffer, position, seconds % 60, 2);
+        buffer[position++] = ',';
+        position = appendDigits(buffer, position, value % 1000, 3);
+        return new String(buffer, 0, position);
+    }
+
 
-        final long ms = value % 1000;
-        final long s = (value / 1000) % 60;
-        final long m = (value / 1000 / 60) % 60;
-        final long h = (value / 1000 / 60 / 60) % 24;
-        final long d = (value / 1000 / 60 / 60 / 24) % 7;
-        final long w = (value / 1000 / 60 / 60 / 24 / 7);
 
-        final StringBuffer stringBuffer = new StringBuffer();
 
-        if (w + d > 0)
+    /**
+     * Writes a non-negative value with at least <code>width</code> digits, padded with leading zeros.
+     *
+     * @return the position after the last digit
+     */
+    private static int appendDigits(final char[] buffer, final int position, final long value, final int width)
+    {
+        int digits = 1;
+        for (long rest = value / 10; rest > 0; rest /= 10)
         {
-            stringBuffer.append("W").append(String.format("%02d", d))
-                    .append("-").append(d).append(" ");
+            digits++;
         }
+        final int length = Math.max(digits, width);
+        long rest = value;
+        for (int i = position + length - 1; i >= position; i--)
+        {
+            buffer[i] = (char) ('0' + rest % 10);
+            rest /= 10;
+        }
+        return position + length;
+    }
 
-        stringBuffer.append(String.format("%02d", h))
-                .append(":").append(String.format("%02d", m))
-                .append(":").append(String.format("%02d", s))
-                .append(",").append(String.format("%03d", ms));
 
-        return stringBuffer.toString();
-    }
 
 
+    /**
+     * A timestamp and its formatted text, published together.
+     */
+    private static final class CachedText
+    {
+        final long   timestamp;
+        final String text;
+
+
+
+
+        CachedText(final long timestamp, final String text)
+        {
+            this.timestamp = timestamp;
+            this.text = text;
+        }
+    }
+
 }
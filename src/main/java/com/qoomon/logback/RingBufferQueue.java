@@ -0,0 +1,445 @@
+package com.qoomon.logback;
+
+import java.util.AbstractQueue;
+import java.util.ArrayList;
+import java.util.Collection;
+import java.util.Collections;
+import java.util.Iterator;
+import java.util.List;
+import java.util.concurrent.BlockingQueue;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.atomic.AtomicLongArray;
+import java.util.concurrent.atomic.AtomicReferenceArray;
+import java.util.concurrent.locks.Condition;
+import java.util.concurrent.locks.LockSupport;
+import java.util.concurrent.locks.ReentrantLock;
+
+/**
+ * A bounded, lock-free {@link BlockingQueue} backed by a ring buffer.
+ * <p>
+ * Producers claim slots by a compare-and-set on the tail sequence, so any number of threads may offer concurrently without taking a lock. Every slot carries its own sequence number that tells whether it is free for the producer of a given round or
+ * holds an element for the consumer of that round. The queue is designed for a single consumer, the dispatcher of an appender, but removal is also lock-free and therefore safe from any thread.
+ * <p>
+ * How the consumer waits for elements in {@link #take()} and {@link #poll(long, TimeUnit)} is controlled by a {@link WaitStrategy}. Producers waiting for space in {@link #put(Object)} and {@link #offer(Object, long, TimeUnit)} always park for short
+ * periods.
+ * <p>
+ * The capacity is rounded up to the next power of two. Iteration works on a snapshot and does not support removal.
+ *
+ * @author bengtbrodersen
+ *
+ * @param <E>
+ *            the type of elements held in this queue
+ */
+public class RingBufferQueue<E> extends AbstractQueue<E> implements BlockingQueue<E>
+{
+
+    private final int                     capacity;
+    private final int                     mask;
+    private final AtomicReferenceArray<E> elements;
+    private final AtomicLongArray         sequences;
+    private final AtomicLong              head = new AtomicLong();
+    private final AtomicLong              tail = new AtomicLong();
+
+    private final WaitStrategy            waitStrategy;
+    private final ReentrantLock           lock = new ReentrantLock();
+    private final Condition               notEmpty = this.lock.newCondition();
+    private volatile boolean              consumerWaiting;
+
+
+
+
+    /**
+     * Creates a ring buffer queue.
+     *
+     * @param capacity
+     *            minimum number of elements the queue can hold, rounded up to the next power of two
+     * @param waitStrategy
+     *            how the consumer waits for elements
+     */
+    public RingBufferQueue(final int capacity, final WaitStrategy waitStrategy)
+    {
+        if (capacity <= 0)
+        {
+            throw new IllegalArgumentException("capacity must be positive");
+        }
+        if (capacity > 1 << 30)
+        {
+            throw new IllegalArgumentException("capacity must not exceed " + (1 << 30));
+        }
+        if (waitStrategy == null)
+        {
+            throw new NullPointerException("waitStrategy");
+        }
+        this.capacity = capacity == 1 ? 1 : Integer.highestOneBit(capacity - 1) << 1;
+        this.mask = this.capacity - 1;
+        this.elements = new AtomicReferenceArray<E>(this.capacity);
+        this.sequences = new AtomicLongArray(this.capacity);
+        for (int i = 0; i < this.capacity; i++)
+        {
+            this.sequences.set(i, i);
+        }
+        this.waitStrategy = waitStrategy;
+    }
+
+
+
+
+    /**
+     * {@inheritDoc}
+     */
+    @Override
+    public boolean offer(final E element)
+    {
+        if (element == null)
+        {
+            throw new NullPointerException();
+        }
+        long position = this.tail.get();
+        while (true)
+        {
+            final int index = (int) position & this.mask;
+            final long difference = this.sequences.get(index) - position;
+            if (difference == 0)
+            {
+                if (this.tail.compareAndSet(position, position + 1))
+                {
+                    this.elements.lazySet(index, element);
+                    // volatile write, pairs with the consumerWaiting read below
+                    this.sequences.set(index, position + 1);
+                    this.signalNotEmpty();
+                    return true;
+                }
+                position = this.tail.get();
+            }
+            else if (difference < 0)
+            {
+                return false; // full
+            }
+            else
+            {
+                position = this.tail.get();
+            }
+        }
+    }
+
+
+
+
+    /**
+     * {@inheritDoc}
+     */
+    @Override
+    public E poll()
+    {
+        long position = this.head.get();
+        while (true)
+        {
+            final int index = (int) position & this.mask;
+            final long difference = this.sequences.get(index) - (position + 1);
+            if (difference == 0)
+            {
+                if (this.head.compareAndSet(position, position + 1))
+                {
+                    final E element = this.elements.get(index);
+                    this.elements.lazySet(index, null);
+                    this.sequences.lazySet(index, position + this.capacity);
+                    return element;
+                }
+                position = this.head.get();
+            }
+            else if (difference < 0)
+            {
+                return null; // empty
+            }
+            else
+            {
+                position = this.head.get();
+            }
+        }
+    }
+
+
+
+
+    /**
+     * {@inheritDoc}
+     */
+    @Override
+    public E peek()
+    {
+        while (true)
+        {
+            final long position = this.head.get();
+            final int index = (int) position & this.mask;
+            if (this.sequences.get(index) != position + 1)
+            {
+                return null;
+            }
+            final E element = this.elements.get(index);
+            if (element != null && this.head.get() == position)
+            {
+                return element;
+            }
+        }
+    }
+
+
+
+
+    /**
+     * {@inheritDoc}
+     */
+    @Override
+    public void put(final E element) throws InterruptedException
+    {
+        this.offer(element, Long.MAX_VALUE, TimeUnit.NANOSECONDS);
+    }
+
+
+
+
+    /**
+     * {@inheritDoc}
+     */
+    @Override
+    public boolean offer(final E element, final long timeout, final TimeUnit unit) throws InterruptedException
+    {
+        final long deadline = deadline(timeout, unit);
+        while (!this.offer(element))
+        {
+            if (Thread.interrupted())
+            {
+                throw new InterruptedException();
+            }
+            final long remaining = deadline - System.nanoTime();
+            if (remaining <= 0)
+            {
+                return false;
+            }
+            LockSupport.parkNanos(Math.min(remaining, WaitStrategy.PARK_NANOS));
+        }
+        return true;
+    }
+
+
+
+
+    /**
+     * {@inheritDoc}
+     */
+    @Override
+    public E take() throws InterruptedException
+    {
+        return this.poll(Long.MAX_VALUE, TimeUnit.NANOSECONDS);
+    }
+
+
+
+
+    /**
+     * {@inheritDoc}
+     */
+    @Override
+    public E poll(final long timeout, final TimeUnit unit) throws InterruptedException
+    {
+        final long deadline = deadline(timeout, unit);
+        E element;
+        while ((element = this.poll()) == null)
+        {
+            if (Thread.interrupted())
+            {
+                throw new InterruptedException();
+            }
+            final long remaining = deadline - System.nanoTime();
+            if (remaining <= 0)
+            {
+                return null;
+            }
+            if (this.waitStrategy == WaitStrategy.BLOCKING)
+            {
+                this.awaitNotEmpty(remaining);
+            }
+            else
+            {
+                this.waitStrategy.idle();
+            }
+        }
+        return element;
+    }
+
+
+
+
+    private void awaitNotEmpty(final long nanos) throws InterruptedException
+    {
+        this.lock.lockInterruptibly();
+        try
+        {
+            this.consumerWaiting = true;
+            if (this.isEmpty())
+            {
+                this.notEmpty.awaitNanos(nanos);
+            }
+        }
+        finally
+        {
+            this.consumerWaiting = false;
+            this.lock.unlock();
+        }
+    }
+
+
+
+
+    private void signalNotEmpty()
+    {
+        if (this.consumerWaiting)
+        {
+            this.lock.lock();
+            try
+            {
+                this.notEmpty.signal();
+            }
+            finally
+            {
+                this.lock.unlock();
+            }
+        }
+    }
+
+
+
+
+    private static long deadline(final long timeout, final TimeUnit unit)
+    {
+        final long nanos = unit.toNanos(timeout);
+        final long now = System.nanoTime();
+        return nanos > Long.MAX_VALUE - now ? Long.MAX_VALUE : now + nanos;
+    }
+
+
+
+
+    /**
+     * {@inheritDoc}
+     */
+    @Override
+    public int drainTo(final Collection<? super E> collection)
+    {
+        return this.drainTo(collection, Integer.MAX_VALUE);
+    }
+
+
+
+
+    /**
+     * {@inheritDoc}
+     */
+    @Override
+    public int drainTo(final Collection<? super E> collection, final int maxElements)
+    {
+        if (collection == this)
+        {
+            throw new IllegalArgumentException();
+        }
+        int count = 0;
+        E element;
+        while (count < maxElements && (element = this.poll()) != null)
+        {
+            collection.add(element);
+            count++;
+        }
+        return count;
+    }
+
+
+
+
+    /**
+     * {@inheritDoc}
+     */
+    @Override
+    public int size()
+    {
+        while (true)
+        {
+            final long head = this.head.get();
+            final long tail = this.tail.get();
+            if (this.head.get() == head)
+            {
+                return (int) Math.max(0, Math.min(this.capacity, tail - head));
+            }
+        }
+    }
+
+
+
+
+    /**
+     * {@inheritDoc}
+     */
+    @Override
+    public boolean isEmpty()
+    {
+        return this.peek() == null;
+    }
+
+
+
+
+    /**
+     * {@inheritDoc}
+     */
+    @Override
+    public int remainingCapacity()
+    {
+        return this.capacity - this.size();
+    }
+
+
+
+
+    /**
+     * Returns the actual capacity of this queue.
+     */
+    public int capacity()
+    {
+        return this.capacity;
+    }
+
+
+
+
+    /**
+     * Returns the {@link WaitStrategy} of this queue.
+     */
+    public WaitStrategy getWaitStrategy()
+    {
+        return this.waitStrategy;
+    }
+
+
+
+
+    /**
+     * Returns an iterator over a snapshot of the elements currently in this queue. The iterator does not support removal.
+     */
+    @Override
+    public Iterator<E> iterator()
+    {
+        final List<E> snapshot = new ArrayList<E>(this.size());
+        final long tail = this.tail.get();
+        for (long position = this.head.get(); position < tail; position++)
+        {
+            final int index = (int) position & this.mask;
+            final E element = this.elements.get(index);
+            if (element != null && this.sequences.get(index) == position + 1)
+            {
+                snapshot.add(element);
+            }
+        }
+        return Collections.unmodifiableList(snapshot).iterator();
+    }
+
+}
@@ -2,13 +2,22 @@ package com.qoomon.logback;
 
 
 import java.net.InetAddress;
+import java.util.List;
+import java.util.Map;
 
+import ch.qos.logback.classic.Level;
+import ch.qos.logback.classic.net.LoggingEventPreSerializationTransformer;
+import ch.qos.logback.classic.net.server.HardenedLoggingEventInputStream;
 import ch.qos.logback.classic.spi.ILoggingEvent;
+import ch.qos.logback.core.spi.PreSerializationTransformer;
 
 /**
  * Sends {@link ILoggingEvent} objects to a remote a log server, usually a {@link SocketNode}.
  *
  * For more information on this appender, please refer to the online manual at http://logback.qos.ch/manual/appenders.html#SocketAppender
+ * <p>
+ * The appending thread only captures what depends on it: the thread name, the MDC unless <b>includeMdc</b> is off, the caller data if <b>includeCallerData</b> is on and the formatted message if <b>formatMessageOnAppend</b> is on. Message
+ * formatting and serializing the throwable are left to the thread delivering the event.
  *
  * @author Ceki G&uuml;lc&uuml;
  * @author S&eacute;bastien Pennec
@@ -18,7 +27,24 @@ public class SocketAppender extends AbstractSocketAppender<ILoggingEvent>
 {
 
 
-    private boolean                                                 includeCallerData = false;
+    /**
+     * <b>shardBy</b> value that shards events by logger name.
+     */
+    public static final String                                      SHARD_BY_LOGGER     = "logger";
+
+    /**
+     * Prefix of the <b>shardBy</b> value that shards events by an MDC value, e.g. <code>mdc:requestId</code>.
+     */
+    public static final String                                      SHARD_BY_MDC_PREFIX = "mdc:";
+
+    private static final PreSerializationTransformer<ILoggingEvent> PST                   = new LoggingEventPreSerializationTransformer();
+
+    private boolean                                                 includeCallerData     = false;
+    private boolean                                                 includeMdc            = true;
+    private boolean                                                 formatMessageOnAppend = false;
+    private Level                                                   discardingThreshold   = Level.INFO;
+    private String                                                  shardMdcKey;
+    private EventSampler                                            sampler;
 
 
 
@@ -54,22 +80,345 @@ public class SocketAppender extends AbstractSocketAppender<ILoggingEvent>
 
 
 
+    /**
+     * Starts the <b>sampler</b> again if the appender is restarted after a stop.
+     */
     @Override
-    protected void postProcessEvent(final ILoggingEvent event)
+    public void start()
+    {
+        final EventSampler sampler = this.sampler;
+        if (sampler != null && !sampler.isStarted() && !this.isStarted())
+        {
+            sampler.start();
+        }
+        super.start();
+    }
+
+
+
+
+    /**
+     * Queues the summary of the events the <b>sampler</b> suppressed since its last summary, so it is delivered or spilled with the queued events, then stops the appender and the sampler.
+     */
+    @Override
+    public void stop()
     {
+        final EventSampler sampler = this.sampler;
+        if (sampler != null && this.isStarted())
+        {
+            final ILoggingEvent summary = sampler.flushSummary();
+            if (summary != null)
+            {
+                this.enqueue(summary);
+            }
+        }
+        super.stop();
+        if (sampler != null)
+        {
+            sampler.stop();
+        }
+    }
+
+
+
+
+    /**
+     * Resolves the lazy fields of the event that are bound to the appending thread, as configured.
+     */
+    @Override
+    protected void prepareForDeferredProcessing(final ILoggingEvent event)
+    {
+        event.getThreadName();
+        if (this.includeMdc || this.shardMdcKey != null)
+        {
+            event.getMDCPropertyMap();
+        }
         if (this.includeCallerData)
         {
             event.getCallerData();
+        }
+        if (this.formatMessageOnAppend)
+        {
+            event.getFormattedMessage();
+        }
+    }
+
+
+
+
+    /**
+     * Nothing left to do, everything bound to the appending thread has been captured by {@link #prepareForDeferredProcessing(ILoggingEvent)} and the encoder resolves the rest.
+     */
+    @Override
+    protected void postProcessEvent(final ILoggingEvent event)
+    {
+    }
+
+
+
+
+    @Override
+    protected ILoggingEvent newRecycledEvent()
+    {
+        return new RecycledLoggingEvent();
+    }
+
+
+
+
+    @Override
+    protected void fillRecycledEvent(final ILoggingEvent recycled, final ILoggingEvent event)
+    {
+        ((RecycledLoggingEvent) recycled).fill(event, this.formatMessageOnAppend, this.includeMdc);
+    }
+
+
+
+
+    /**
+     * Queues a copy without the MDC if <b>includeMdc</b> is off, the appended event keeps its MDC for the other appenders. Only called while all recycled events are in use, see {@link #isCopyingEvents()}.
+     */
+    @Override
+    protected ILoggingEvent toQueuedEvent(final ILoggingEvent event)
+    {
+        if (this.includeMdc)
+        {
+            return event;
+        }
+        final RecycledLoggingEvent copy = new RecycledLoggingEvent();
+        copy.fill(event, this.formatMessageOnAppend, false);
+        return copy;
+    }
+
+
+
+
+    /**
+     * Events are copied to drop their MDC if <b>includeMdc</b> is off.
+     */
+    @Override
+    protected boolean isCopyingEvents()
+    {
+        return !this.includeMdc;
     }
+
+
+
+
+    @Override
+    protected void clearRecycledEvent(final ILoggingEvent recycled)
+    {
+        ((RecycledLoggingEvent) recycled).clear();
     }
 
 
 
 
+    @Override
+    protected PreSerializationTransformer<ILoggingEvent> getPST()
+    {
+        return PST;
+    }
+
+
+
+
+    /**
+     * The classes a socket receiver accepts, see {@link HardenedLoggingEventInputStream}.
+     */
+    @Override
+    protected List<String> getSpillWhitelist()
+    {
+        return HardenedLoggingEventInputStream.getWhilelist();
+    }
+
+
+
+
+    /**
+     * Events at or below the <b>discardingThreshold</b> level are discardable.
+     */
+    @Override
+    protected boolean isDiscardable(final ILoggingEvent event)
+    {
+        return event.getLevel().toInt() <= this.discardingThreshold.toInt();
+    }
+
+
+
+
+    @Override
+    protected String getLevelName(final ILoggingEvent event)
+    {
+        return event.getLevel().levelStr;
+    }
+
+
+
+
+    /**
+     * Supports {@value #SHARD_BY_LOGGER} and <code>{@value #SHARD_BY_MDC_PREFIX}&lt;key&gt;</code>.
+     */
+    @Override
+    protected boolean isShardBy(final String shardBy)
+    {
+        return SHARD_BY_LOGGER.equals(shardBy)
+                || shardBy.startsWith(SHARD_BY_MDC_PREFIX) && shardBy.length() > SHARD_BY_MDC_PREFIX.length();
+    }
+
+
+
+
+    @Override
+    protected Object getShardKey(final ILoggingEvent event)
+    {
+        if (this.shardMdcKey == null)
+        {
+            return event.getLoggerName();
+        }
+        final Map<String, String> mdc = event.getMDCPropertyMap();
+        return mdc != null ? mdc.get(this.shardMdcKey) : null;
+    }
+
+
+
+
+    /**
+     * The <b>shardBy</b> property takes {@value #SHARD_BY_LOGGER} to keep the events of every logger in order, or <code>{@value #SHARD_BY_MDC_PREFIX}&lt;key&gt;</code> to keep the events with the same value of an MDC key in order. See
+     * {@link AbstractSocketAppender#setShardBy(String)}.
+     */
+    @Override
+    public void setShardBy(final String shardBy)
+    {
+        super.setShardBy(shardBy);
+        this.shardMdcKey = shardBy != null && shardBy.startsWith(SHARD_BY_MDC_PREFIX) ?
+                shardBy.substring(SHARD_BY_MDC_PREFIX.length()) : null;
+    }
+
+
+
+
+    /**
+     * The <b>includeCallerData</b> property captures the caller data on the appending thread, which requires a stack trace. Off by default.
+     */
     public void setIncludeCallerData(final boolean includeCallerData)
     {
         this.includeCallerData = includeCallerData;
     }
 
 
+
+
+    public boolean isIncludeCallerData()
+    {
+        return this.includeCallerData;
+    }
+
+
+
+
+    /**
+     * The <b>includeMdc</b> property captures the MDC of the appending thread. If turned off, events are sent with an empty MDC, while other appenders still see the MDC of the appended event. The copies without MDC are taken from
+     * preallocated events that are reused as with <b>recycleEvents</b>. On by default.
+     */
+    public void setIncludeMdc(final boolean includeMdc)
+    {
+        this.includeMdc = includeMdc;
+    }
+
+
+
+
+    public boolean isIncludeMdc()
+    {
+        return this.includeMdc;
+    }
+
+
+
+
+    /**
+     * The <b>formatMessageOnAppend</b> property formats the message on the appending thread, for arguments that may change after they have been logged. Off by default, the message is formatted on the thread delivering the event, if at all.
+     */
+    public void setFormatMessageOnAppend(final boolean formatMessageOnAppend)
+    {
+        this.formatMessageOnAppend = formatMessageOnAppend;
+    }
+
+
+
+
+    public boolean isFormatMessageOnAppend()
+    {
+        return this.formatMessageOnAppend;
+    }
+
+
+
+
+    /**
+     * The <b>discardingThreshold</b> property takes the highest level that the <code>dropBelowThreshold</code> overflow policy drops when the queue is full. Events above that level wait for space in the queue. The default value is INFO, so WARN
+     * and ERROR events are kept.
+     */
+    public void setDiscardingThreshold(final String discardingThreshold)
+    {
+        this.discardingThreshold = Level.toLevel(discardingThreshold, Level.INFO);
+    }
+
+
+
+
+    /**
+     * Returns the value of the <b>discardingThreshold</b> property.
+     */
+    public String getDiscardingThreshold()
+    {
+        return this.discardingThreshold.levelStr;
+    }
+
+
+
+
+    /**
+     * Applies the <b>sampler</b>, preceding the event with the summary of the suppressed events when it is due.
+     */
+    @Override
+    protected boolean isSuppressed(final ILoggingEvent event)
+    {
+        final EventSampler sampler = this.sampler;
+        if (sampler == null)
+        {
+            return false;
+        }
+        final ILoggingEvent summary = sampler.pollSummary();
+        if (summary != null)
+        {
+            this.enqueue(summary);
+        }
+        return sampler.isSuppressed(event);
+    }
+
+
+
+
+    /**
+     * The <b>sampler</b> property takes an {@link EventSampler} that rate limits, samples and deduplicates events before they are queued. None by default.
+     */
+    public void setSampler(final EventSampler sampler)
+    {
+        this.sampler = sampler;
+    }
+
+
+
+
+    /**
+     * Returns the value of the <b>sampler</b> property.
+     */
+    public EventSampler getSampler()
+    {
+        return this.sampler;
+    }
+
+
 }
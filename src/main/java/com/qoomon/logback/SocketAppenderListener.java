@@ -0,0 +1,74 @@
+package com.qoomon.logback;
+
+/**
+ * Receives the events the {@link SocketAppenderMetrics} of an {@link AbstractSocketAppender} are made of, e.g. to bridge them to a metrics library. Register listeners with {@link AbstractSocketAppender#addListener(SocketAppenderListener)} or
+ * with a nested <code>&lt;listener class="..."/&gt;</code> element of the appender configuration.
+ * <p>
+ * Listeners are called on the dispatching and appending threads, so they must be thread-safe and return quickly. An exception thrown by a listener is reported once as an error of the appender and
+ * does not keep the other listeners from being called.
+ *
+ * @author bengtbrodersen
+ *
+ */
+public interface SocketAppenderListener
+{
+
+    /**
+     * Called after a connection to a remote peer has been established.
+     *
+     * @param peerId
+     *            identifies the remote peer
+     * @param reconnect
+     *            <code>true</code> if the connection replaces a connection that has been lost
+     */
+    void connected(String peerId, boolean reconnect);
+
+
+
+
+    /**
+     * Called after an established connection has been closed.
+     *
+     * @param peerId
+     *            identifies the remote peer
+     */
+    void disconnected(String peerId);
+
+
+
+
+    /**
+     * Called after a batch of events has been written to a connection.
+     *
+     * @param events
+     *            number of events in the batch
+     * @param encodeNanos
+     *            time spent encoding the batch
+     */
+    void eventsSent(int events, long encodeNanos);
+
+
+
+
+    /**
+     * Called after bytes have been written to a connection.
+     *
+     * @param bytes
+     *            number of bytes, after compression
+     * @param writeNanos
+     *            time spent writing
+     */
+    void bytesWritten(long bytes, long writeNanos);
+
+
+
+
+    /**
+     * Called for every event that is dropped instead of being delivered, including the events of a batch that failed to be written.
+     *
+     * @param level
+     *            the level name of the event, see {@link AbstractSocketAppender#getDroppedEventCounts()}
+     */
+    void eventDropped(String level);
+
+}
@@ -0,0 +1,503 @@
+package com.qoomon.logback;
+
+import java.util.List;
+import java.util.concurrent.CopyOnWriteArrayList;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicBoolean;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.atomic.LongAdder;
+
+/**
+ * Live counters and gauges of an {@link AbstractSocketAppender}, see {@link AbstractSocketAppender#getMetrics()}.
+ * <p>
+ * Counters are updated by the appending and dispatching threads and never reset. The queue depth is read on demand; its high-water mark is sampled whenever a dispatcher takes a batch from the queue. Connections, written batches and
+ * bytes and dropped events are also passed on to the registered {@link SocketAppenderListener}s; enqueued and suppressed events and the queue depth are not, they are only counted. A listener that throws is reported once and does not keep
+ * the other listeners from being called. With the <b>jmx</b> property of the appender the metrics are registered as an MBean.
+ *
+ * @author bengtbrodersen
+ *
+ */
+public class SocketAppenderMetrics implements SocketAppenderMetricsMBean
+{
+
+    private final AbstractSocketAppender<?>    appender;
+    private final List<SocketAppenderListener> listeners          = new CopyOnWriteArrayList<SocketAppenderListener>();
+    private final AtomicBoolean                listenerFailed     = new AtomicBoolean();
+    private final LongAdder                    enqueued           = new LongAdder();
+    private final LongAdder                    suppressed         = new LongAdder();
+    private final LongAdder                    sent               = new LongAdder();
+    private final LongAdder                    bytesWritten       = new LongAdder();
+    private final AtomicLong                   reconnects         = new AtomicLong();
+    private final AtomicLong                   highWaterMark      = new AtomicLong();
+    private final LatencyHistogram             encodeTime         = new LatencyHistogram();
+    private final LatencyHistogram             writeTime          = new LatencyHistogram();
+    private int                                connected;
+    private long                               disconnectedSince  = System.nanoTime();
+    private long                               disconnectedNanos;
+
+
+
+
+    SocketAppenderMetrics(final AbstractSocketAppender<?> appender)
+    {
+        this.appender = appender;
+    }
+
+
+
+
+    void addListener(final SocketAppenderListener listener)
+    {
+        this.listeners.add(listener);
+    }
+
+
+
+
+    void removeListener(final SocketAppenderListener listener)
+    {
+        this.listeners.remove(listener);
+    }
+
+
+
+
+    /**
+     * Reports the first exception thrown by a listener, the appending or dispatching thread that called it carries on.
+     */
+    private void listenerFailed(final SocketAppenderListener listener, final RuntimeException ex)
+    {
+        if (this.listenerFailed.compareAndSet(false, true))
+        {
+            this.appender.addError("Listener " + listener + " of appender named [" + this.appender.getName()
+                    + "] failed. Further failures of listeners are not reported.", ex);
+        }
+    }
+
+
+
+
+    void eventEnqueued()
+    {
+        this.enqueued.increment();
+    }
+
+
+
+
+    void eventSuppressed()
+    {
+        this.suppressed.increment();
+    }
+
+
+
+
+    void eventDropped(final String level)
+    {
+        for (final SocketAppenderListener listener : this.listeners)
+        {
+            try
+            {
+                listener.eventDropped(level);
+            }
+            catch (final RuntimeException ex)
+            {
+                this.listenerFailed(listener, ex);
+            }
+        }
+    }
+
+
+
+
+    void queueDepthSampled(final long depth)
+    {
+        long current;
+        while (depth > (current = this.highWaterMark.get()) && !this.highWaterMark.compareAndSet(current, depth))
+        {
+            // retry
+        }
+    }
+
+
+
+
+    void eventsSent(final int events, final long encodeNanos)
+    {
+        this.sent.add(events);
+        this.encodeTime.record(encodeNanos);
+        for (final SocketAppenderListener listener : this.listeners)
+        {
+            try
+            {
+                listener.eventsSent(events, encodeNanos);
+            }
+            catch (final RuntimeException ex)
+            {
+                this.listenerFailed(listener, ex);
+            }
+        }
+    }
+
+
+
+
+    void bytesWritten(final long bytes, final long writeNanos)
+    {
+        this.bytesWritten.add(bytes);
+        this.writeTime.record(writeNanos);
+        for (final SocketAppenderListener listener : this.listeners)
+        {
+            try
+            {
+                listener.bytesWritten(bytes, writeNanos);
+            }
+            catch (final RuntimeException ex)
+            {
+                this.listenerFailed(listener, ex);
+            }
+        }
+    }
+
+
+
+
+    void connected(final String peerId, final boolean reconnect)
+    {
+        synchronized (this)
+        {
+            if (this.connected++ == 0)
+            {
+                this.disconnectedNanos += System.nanoTime() - this.disconnectedSince;
+            }
+        }
+        if (reconnect)
+        {
+            this.reconnects.incrementAndGet();
+        }
+        for (final SocketAppenderListener listener : this.listeners)
+        {
+            try
+            {
+                listener.connected(peerId, reconnect);
+            }
+            catch (final RuntimeException ex)
+            {
+                this.listenerFailed(listener, ex);
+            }
+        }
+    }
+
+
+
+
+    void disconnected(final String peerId)
+    {
+        synchronized (this)
+        {
+            if (--this.connected == 0)
+            {
+                this.disconnectedSince = System.nanoTime();
+            }
+        }
+        for (final SocketAppenderListener listener : this.listeners)
+        {
+            try
+            {
+                listener.disconnected(peerId);
+            }
+            catch (final RuntimeException ex)
+            {
+                this.listenerFailed(listener, ex);
+            }
+        }
+    }
+
+
+
+
+    /**
+     * Returns the number of events that have been accepted for delivery, queued or spilled.
+     */
+    @Override
+    public long getEnqueuedEventCount()
+    {
+        return this.enqueued.sum();
+    }
+
+
+
+
+    /**
+     * Returns the number of events that have been written to a connection. Events of a batch that fails are counted as dropped instead, unless they are spilled.
+     */
+    @Override
+    public long getSentEventCount()
+    {
+        return this.sent.sum();
+    }
+
+
+
+
+    /**
+     * Returns the number of events suppressed before they were queued, see {@link AbstractSocketAppender#isSuppressed(Object)}.
+     */
+    @Override
+    public long getSuppressedEventCount()
+    {
+        return this.suppressed.sum();
+    }
+
+
+
+
+    /**
+     * Returns the number of dropped events, see {@link AbstractSocketAppender#getDroppedEventCounts()}.
+     */
+    @Override
+    public long getDroppedEventCount()
+    {
+        return this.appender.getDroppedEventCount();
+    }
+
+
+
+
+    /**
+     * Returns the number of spilled events waiting for replay.
+     */
+    @Override
+    public long getSpilledEventCount()
+    {
+        return this.appender.getSpilledEventCount();
+    }
+
+
+
+
+    /**
+     * Returns the number of events in the queues.
+     */
+    @Override
+    public long getQueueDepth()
+    {
+        return this.appender.getQueueDepth();
+    }
+
+
+
+
+    /**
+     * Returns the highest sampled queue depth.
+     */
+    @Override
+    public long getQueueHighWaterMark()
+    {
+        return this.highWaterMark.get();
+    }
+
+
+
+
+    /**
+     * {@inheritDoc}
+     */
+    @Override
+    public void resetQueueHighWaterMark()
+    {
+        this.highWaterMark.set(this.getQueueDepth());
+    }
+
+
+
+
+    /**
+     * Returns the number of bytes written to all connections, after compression.
+     */
+    @Override
+    public long getBytesWritten()
+    {
+        return this.bytesWritten.sum();
+    }
+
+
+
+
+    /**
+     * Returns the number of currently established connections.
+     */
+    @Override
+    public synchronized int getConnectedCount()
+    {
+        return this.connected;
+    }
+
+
+
+
+    /**
+     * Returns the number of connections that have been established to replace a lost one.
+     */
+    @Override
+    public long getReconnectCount()
+    {
+        return this.reconnects.get();
+    }
+
+
+
+
+    /**
+     * Returns the total time during which no connection was established, including the time before the first connection.
+     */
+    @Override
+    public synchronized long getDisconnectedMillis()
+    {
+        final long nanos = this.connected == 0 ?
+                this.disconnectedNanos + System.nanoTime() - this.disconnectedSince : this.disconnectedNanos;
+        return TimeUnit.NANOSECONDS.toMillis(nanos);
+    }
+
+
+
+
+    /**
+     * Returns the number of endpoints whose circuit is open, see {@link AbstractSocketAppender#setCircuitBreakerThreshold(int)}.
+     */
+    @Override
+    public int getOpenCircuitCount()
+    {
+        return this.appender.getOpenCircuitCount();
+    }
+
+
+
+
+    /**
+     * Returns the histogram of the time spent encoding a batch.
+     */
+    public LatencyHistogram getEncodeTime()
+    {
+        return this.encodeTime;
+    }
+
+
+
+
+    /**
+     * Returns the histogram of the time spent writing to a connection.
+     */
+    public LatencyHistogram getWriteTime()
+    {
+        return this.writeTime;
+    }
+
+
+
+
+    @Override
+    public long getEncodeTimeMeanMicros()
+    {
+        return this.encodeTime.getMeanMicros();
+    }
+
+
+
+
+    @Override
+    public long getEncodeTimeP50Micros()
+    {
+        return this.encodeTime.getPercentileMicros(50);
+    }
+
+
+
+
+    @Override
+    public long getEncodeTimeP99Micros()
+    {
+        return this.encodeTime.getPercentileMicros(99);
+    }
+
+
+
+
+    @Override
+    public long getEncodeTimeMaxMicros()
+    {
+        return this.encodeTime.getMaxMicros();
+    }
+
+
+
+
+    @Override
+    public long[] getEncodeTimeHistogram()
+    {
+        return this.encodeTime.getBucketCounts();
+    }
+
+
+
+
+    @Override
+    public long getWriteTimeMeanMicros()
+    {
+        return this.writeTime.getMeanMicros();
+    }
+
+
+
+
+    @Override
+    public long getWriteTimeP50Micros()
+    {
+        return this.writeTime.getPercentileMicros(50);
+    }
+
+
+
+
+    @Override
+    public long getWriteTimeP99Micros()
+    {
+        return this.writeTime.getPercentileMicros(99);
+    }
+
+
+
+
+    @Override
+    public long getWriteTimeMaxMicros()
+    {
+        return this.writeTime.getMaxMicros();
+    }
+
+
+
+
+    @Override
+    public long[] getWriteTimeHistogram()
+    {
+        return this.writeTime.getBucketCounts();
+    }
+
+
+
+
+    @Override
+    public String toString()
+    {
+        return "enqueued=" + this.getEnqueuedEventCount() + " suppressed=" + this.getSuppressedEventCount() + " sent="
+                + this.getSentEventCount() + " dropped="
+                + this.getDroppedEventCount() + " spilled=" + this.getSpilledEventCount() + " queueDepth="
+                + this.getQueueDepth() + " highWaterMark=" + this.getQueueHighWaterMark() + " bytesWritten="
+                + this.getBytesWritten() + " connected=" + this.getConnectedCount() + " reconnects="
+                + this.getReconnectCount() + " disconnectedMillis=" + this.getDisconnectedMillis() + " openCircuits="
+                + this.getOpenCircuitCount() + " encodeTime=["
+                + this.encodeTime + "] writeTime=[" + this.writeTime + "]";
+    }
+
+}
@@ -0,0 +1,61 @@
+package com.qoomon.logback;
+
+/**
+ * The JMX view of {@link SocketAppenderMetrics}. Durations are in microseconds, percentiles are bucket upper bounds, see {@link LatencyHistogram}.
+ *
+ * @author bengtbrodersen
+ *
+ */
+public interface SocketAppenderMetricsMBean
+{
+
+    long getEnqueuedEventCount();
+
+    long getSuppressedEventCount();
+
+    long getSentEventCount();
+
+    long getDroppedEventCount();
+
+    long getSpilledEventCount();
+
+    long getQueueDepth();
+
+    long getQueueHighWaterMark();
+
+    long getBytesWritten();
+
+    int getConnectedCount();
+
+    long getReconnectCount();
+
+    long getDisconnectedMillis();
+
+    int getOpenCircuitCount();
+
+    long getEncodeTimeMeanMicros();
+
+    long getEncodeTimeP50Micros();
+
+    long getEncodeTimeP99Micros();
+
+    long getEncodeTimeMaxMicros();
+
+    long[] getEncodeTimeHistogram();
+
+    long getWriteTimeMeanMicros();
+
+    long getWriteTimeP50Micros();
+
+    long getWriteTimeP99Micros();
+
+    long getWriteTimeMaxMicros();
+
+    long[] getWriteTimeHistogram();
+
+    /**
+     * Resets the queue high-water mark to the current queue depth.
+     */
+    void resetQueueHighWaterMark();
+
+}
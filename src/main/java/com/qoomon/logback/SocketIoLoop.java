@@ -0,0 +1,364 @@
+package com.qoomon.logback;
+
+import java.io.IOException;
+import java.nio.channels.CancelledKeyException;
+import java.nio.channels.SelectionKey;
+import java.nio.channels.Selector;
+import java.util.ArrayList;
+import java.util.Iterator;
+import java.util.List;
+import java.util.PriorityQueue;
+import java.util.Queue;
+import java.util.concurrent.ConcurrentLinkedQueue;
+import java.util.concurrent.TimeUnit;
+
+import ch.qos.logback.core.Context;
+import ch.qos.logback.core.ContextBase;
+import ch.qos.logback.core.spi.ContextAwareBase;
+
+/**
+ * An I/O thread that multiplexes the non-blocking socket channels and reconnection timers of socket appenders of a {@link Context}.
+ * <p>
+ * All socket appenders of a context share a small pool of loops, so the number of I/O threads does not depend on the number of appenders. A loop is created when a connection {@link #acquire(Context, int) acquires} one while all existing
+ * loops are in use and fewer loops than requested exist, and terminates once its last connection {@link #release() released} it. Selection keys carry a {@link Handler} as attachment. Other threads hand work to the loop with
+ * {@link #execute(Runnable)}; timers scheduled with {@link #schedule(Runnable, long)} are run by the loop thread as well, so handlers never need to synchronize with each other.
+ *
+ * @author bengtbrodersen
+ *
+ */
+final class SocketIoLoop extends ContextAwareBase implements Runnable
+{
+
+    /**
+     * Key under which the loops of a context are registered with {@link Context#putObject(String, Object)}.
+     */
+    static final String                   CONTEXT_KEY = SocketIoLoop.class.getName();
+
+    private final List<SocketIoLoop>      loops;
+    private final Selector                selector;
+    private final Thread                  thread;
+    private final Queue<Runnable>         tasks       = new ConcurrentLinkedQueue<Runnable>();
+    private final PriorityQueue<Timer>    timers      = new PriorityQueue<Timer>();
+    private long                          timerSequence;
+    private int                           references;
+    private volatile boolean              running     = true;
+
+
+
+
+    private SocketIoLoop(final Context context, final List<SocketIoLoop> loops) throws IOException
+    {
+        this.setContext(context);
+        this.loops = loops;
+        this.selector = Selector.open();
+        this.thread = new Thread(this, "logback-socket-io-" + loops.size());
+        this.thread.setDaemon(true);
+    }
+
+
+
+
+    /**
+     * Returns the least used loop of the given context, starting a new one if all loops are in use and there are less than <code>maxLoops</code>. Every call must be paired with a call of {@link #release()}.
+     *
+     * @param maxLoops
+     *            the number of loops the context may have, loops beyond it are kept until they are released
+     * @throws IOException
+     *             if the selector cannot be opened
+     */
+    static SocketIoLoop acquire(final Context context, final int maxLoops) throws IOException
+    {
+        synchronized (context.getConfigurationLock())
+        {
+            @SuppressWarnings("unchecked")
+            List<SocketIoLoop> loops = (List<SocketIoLoop>) context.getObject(CONTEXT_KEY);
+            if (loops == null)
+            {
+                loops = new ArrayList<SocketIoLoop>(maxLoops);
+                context.putObject(CONTEXT_KEY, loops);
+            }
+            SocketIoLoop loop = null;
+            for (final SocketIoLoop candidate : loops)
+            {
+                if (loop == null || candidate.references < loop.references)
+                {
+                    loop = candidate;
+                }
+            }
+            if (loop == null || (loop.references > 0 && loops.size() < maxLoops))
+            {
+                loop = new SocketIoLoop(context, loops);
+                loops.add(loop);
+                loop.thread.start();
+            }
+            loop.references++;
+            return loop;
+        }
+    }
+
+
+
+
+    /**
+     * Releases a loop acquired by {@link #acquire(Context, int)}, terminating it if it is no longer used.
+     */
+    void release()
+    {
+        synchronized (this.getContext().getConfigurationLock())
+        {
+            this.references--;
+            if (this.references > 0)
+            {
+                return;
+            }
+            this.loops.remove(this);
+            if (this.loops.isEmpty() && this.getContext().getObject(CONTEXT_KEY) == this.loops
+                    && this.getContext() instanceof ContextBase)
+            {
+                ((ContextBase) this.getContext()).removeObject(CONTEXT_KEY);
+            }
+        }
+        this.running = false;
+        this.selector.wakeup();
+    }
+
+
+
+
+    Selector selector()
+    {
+        return this.selector;
+    }
+
+
+
+
+    boolean inLoop()
+    {
+        return Thread.currentThread() == this.thread;
+    }
+
+
+
+
+    /**
+     * Runs the task on the loop thread, soon.
+     */
+    void execute(final Runnable task)
+    {
+        this.tasks.add(task);
+        if (!this.inLoop())
+        {
+            this.selector.wakeup();
+        }
+    }
+
+
+
+
+    /**
+     * Runs the task on the loop thread after the given delay. Must be called from the loop thread.
+     *
+     * @return the timer, which can be {@link Timer#cancel() cancelled}
+     */
+    Timer schedule(final Runnable task, final long delayMillis)
+    {
+        final Timer timer = new Timer(task, System.nanoTime() + TimeUnit.MILLISECONDS.toNanos(delayMillis),
+                this.timerSequence++);
+        this.timers.add(timer);
+        return timer;
+    }
+
+
+
+
+    /**
+     * {@inheritDoc}
+     */
+    @Override
+    public void run()
+    {
+        while (this.running)
+        {
+            try
+            {
+                final long timeout = this.nextTimeout();
+                if (timeout < 0)
+                {
+                    this.selector.selectNow();
+                }
+                else
+                {
+                    this.selector.select(timeout);
+                }
+                this.processSelectedKeys();
+                this.runTasks();
+                this.runTimers();
+            }
+            catch (final IOException ex)
+            {
+                this.addError("socket I/O loop failed", ex);
+            }
+            catch (final RuntimeException ex)
+            {
+                this.addError("socket I/O loop task failed", ex);
+            }
+        }
+        this.runTasks();
+        for (final SelectionKey key : this.selector.keys())
+        {
+            ((Handler) key.attachment()).closed();
+        }
+        try
+        {
+            this.selector.close();
+        }
+        catch (final IOException ex)
+        {
+            assert true; // nothing left to do
+        }
+    }
+
+
+
+
+    /**
+     * Returns the time to wait in select, 0 for no timer, -1 for pending work.
+     */
+    private long nextTimeout()
+    {
+        if (!this.tasks.isEmpty())
+        {
+            return -1;
+        }
+        final Timer timer = this.timers.peek();
+        if (timer == null)
+        {
+            return 0;
+        }
+        final long millis = TimeUnit.NANOSECONDS.toMillis(timer.deadline - System.nanoTime());
+        return millis <= 0 ? -1 : millis;
+    }
+
+
+
+
+    private void processSelectedKeys()
+    {
+        final Iterator<SelectionKey> keys = this.selector.selectedKeys().iterator();
+        while (keys.hasNext())
+        {
+            final SelectionKey key = keys.next();
+            keys.remove();
+            try
+            {
+                ((Handler) key.attachment()).handle(key);
+            }
+            catch (final CancelledKeyException ex)
+            {
+                assert true; // closed by the handler meanwhile
+            }
+        }
+    }
+
+
+
+
+    private void runTasks()
+    {
+        Runnable task;
+        while ((task = this.tasks.poll()) != null)
+        {
+            task.run();
+        }
+    }
+
+
+
+
+    private void runTimers()
+    {
+        final long now = System.nanoTime();
+        Timer timer;
+        while ((timer = this.timers.peek()) != null && timer.deadline - now <= 0)
+        {
+            this.timers.poll();
+            if (!timer.cancelled)
+            {
+                timer.task.run();
+            }
+        }
+    }
+
+
+
+
+    /**
+     * Handles the ready operations of a selection key on the loop thread.
+     */
+    interface Handler
+    {
+        /**
+         * Called for every selected key.
+         */
+        void handle(SelectionKey key);
+
+
+
+
+        /**
+         * Called for every registered key when the loop terminates.
+         */
+        void closed();
+    }
+
+
+
+
+    /**
+     * A task scheduled by {@link SocketIoLoop#schedule(Runnable, long)}.
+     */
+    static final class Timer implements Comparable<Timer>
+    {
+        private final Runnable task;
+        private final long     deadline;
+        private final long     sequence;
+        private boolean        cancelled;
+
+
+
+
+        Timer(final Runnable task, final long deadline, final long sequence)
+        {
+            this.task = task;
+            this.deadline = deadline;
+            this.sequence = sequence;
+        }
+
+
+
+
+        /**
+         * Prevents the task from running. Must be called from the loop thread.
+         */
+        void cancel()
+        {
+            this.cancelled = true;
+        }
+
+
+
+
+        @Override
+        public int compareTo(final Timer other)
+        {
+            final long difference = this.deadline - other.deadline;
+            if (difference != 0)
+            {
+                return difference < 0 ? -1 : 1;
+            }
+            return this.sequence < other.sequence ? -1 : this.sequence == other.sequence ? 0 : 1;
+        }
+    }
+
+}
@@ -0,0 +1,476 @@
+package com.qoomon.logback;
+
+import java.io.Closeable;
+import java.io.File;
+import java.io.FilenameFilter;
+import java.io.IOException;
+import java.io.RandomAccessFile;
+import java.lang.reflect.Field;
+import java.lang.reflect.Method;
+import java.nio.ByteBuffer;
+import java.nio.MappedByteBuffer;
+import java.nio.channels.FileChannel;
+import java.util.ArrayDeque;
+import java.util.Arrays;
+import java.util.Deque;
+
+/**
+ * A FIFO queue of byte records that lives in memory-mapped, append-only segment files on disk.
+ * <p>
+ * Records are appended to the newest segment. A new segment file is started whenever the current one is full, as long as the total size of all segments stays within the configured maximum. Records are read from the oldest segment, which is deleted
+ * once it has been read completely. Each record is stored as its length followed by its bytes; a length of zero marks the end of the written part of a segment and a negated length marks a record that has already been read.
+ * <p>
+ * Segments that are left over from a previous run, e.g. after a crash or a stop while the remote peer was unreachable, are picked up again when a queue is opened on the same directory.
+ * <p>
+ * All operations are synchronized except {@link #isEmpty()} and {@link #size()}, which are cheap enough to be checked on every append. The mapping of a segment is released as soon as the segment is deleted or the queue is closed, rather than
+ * when the garbage collector gets to it, so a closed queue no longer accepts records.
+ *
+ * @author bengtbrodersen
+ *
+ */
+public class SpillQueue implements Closeable
+{
+
+    /**
+     * File name suffix of segment files.
+     */
+    public static final String  SEGMENT_SUFFIX = ".spill";
+
+    private static final int    LENGTH_SIZE    = 4;
+
+    private static final Object UNSAFE;
+    private static final Method INVOKE_CLEANER;
+
+    static
+    {
+        Object unsafe = null;
+        Method invokeCleaner = null;
+        try
+        {
+            // Java 9 and later
+            final Class<?> unsafeClass = Class.forName("sun.misc.Unsafe");
+            invokeCleaner = unsafeClass.getMethod("invokeCleaner", ByteBuffer.class);
+            final Field field = unsafeClass.getDeclaredField("theUnsafe");
+            field.setAccessible(true);
+            unsafe = field.get(null);
+        }
+        catch (final Exception ex)
+        {
+            invokeCleaner = null;
+        }
+        UNSAFE = unsafe;
+        INVOKE_CLEANER = invokeCleaner;
+    }
+
+    private final File          directory;
+    private final int           segmentSize;
+    private final long          maxSize;
+
+    private final Deque<Segment> segments      = new ArrayDeque<Segment>();
+    private long                nextSegmentId;
+    private volatile long       recordCount;
+    private boolean             closed;
+
+
+
+
+    /**
+     * Opens a spill queue on the given directory, creating the directory if necessary and recovering records of existing segment files.
+     *
+     * @param directory
+     *            directory the segment files are kept in
+     * @param segmentSize
+     *            size of a single segment file in bytes
+     * @param maxSize
+     *            maximum total size of all segment files in bytes
+     * @throws IOException
+     *             if the directory or an existing segment cannot be opened
+     */
+    public SpillQueue(final File directory, final int segmentSize, final long maxSize) throws IOException
+    {
+        if (segmentSize <= 2 * LENGTH_SIZE)
+        {
+            throw new IllegalArgumentException("segment size too small: " + segmentSize);
+        }
+        if (!directory.isDirectory() && !directory.mkdirs())
+        {
+            throw new IOException("Failed to create spill directory " + directory);
+        }
+        this.directory = directory;
+        this.segmentSize = segmentSize;
+        this.maxSize = maxSize;
+        this.recover();
+    }
+
+
+
+
+    private void recover() throws IOException
+    {
+        final File[] files = this.directory.listFiles(new FilenameFilter()
+        {
+            @Override
+            public boolean accept(final File dir, final String name)
+            {
+                return name.endsWith(SEGMENT_SUFFIX);
+            }
+        });
+        if (files == null)
+        {
+            throw new IOException("Failed to list spill directory " + this.directory);
+        }
+        Arrays.sort(files);
+        long records = 0;
+        for (final File file : files)
+        {
+            final long id = segmentId(file);
+            if (id < 0)
+            {
+                continue;
+            }
+            final Segment segment = new Segment(file, id);
+            records += segment.recover();
+            this.segments.addLast(segment);
+            this.nextSegmentId = id + 1;
+        }
+        this.recordCount = records;
+    }
+
+
+
+
+    private static long segmentId(final File file)
+    {
+        final String name = file.getName();
+        try
+        {
+            return Long.parseLong(name.substring(0, name.length() - SEGMENT_SUFFIX.length()));
+        }
+        catch (final NumberFormatException ex)
+        {
+            return -1;
+        }
+    }
+
+
+
+
+    /**
+     * Appends a record.
+     *
+     * @param record
+     *            the bytes to store, must not be empty
+     * @return <code>false</code> if the record does not fit into a segment, the maximum size would be exceeded or the queue has been closed
+     * @throws IOException
+     *             if a new segment file cannot be created
+     */
+    public synchronized boolean append(final byte[] record) throws IOException
+    {
+        if (this.closed || record.length == 0 || record.length > this.segmentSize - 2 * LENGTH_SIZE)
+        {
+            return false;
+        }
+        Segment segment = this.segments.peekLast();
+        if (segment == null || !segment.hasRoomFor(record.length))
+        {
+            if ((this.segments.size() + 1L) * this.segmentSize > this.maxSize)
+            {
+                return false;
+            }
+            if (segment != null)
+            {
+                segment.sealed = true;
+            }
+            segment = new Segment(new File(this.directory, String.format("%020d", this.nextSegmentId) + SEGMENT_SUFFIX),
+                    this.nextSegmentId);
+            this.nextSegmentId++;
+            this.segments.addLast(segment);
+        }
+        segment.write(record);
+        this.recordCount++;
+        return true;
+    }
+
+
+
+
+    /**
+     * Appends a record, but only if the queue is not empty. Used to keep records in order with a queue that is only bypassed while there are spilled records.
+     *
+     * @see #append(byte[])
+     */
+    public synchronized boolean appendIfNotEmpty(final byte[] record) throws IOException
+    {
+        return this.recordCount > 0 && this.append(record);
+    }
+
+
+
+
+    /**
+     * Removes and returns the oldest record.
+     *
+     * @return the record or <code>null</code> if the queue is empty
+     */
+    public synchronized byte[] poll()
+    {
+        while (true)
+        {
+            final Segment segment = this.segments.peekFirst();
+            if (segment == null)
+            {
+                return null;
+            }
+            final byte[] record = segment.read();
+            if (record != null)
+            {
+                this.recordCount--;
+                return record;
+            }
+            if (segment != this.segments.peekLast() || segment.sealed)
+            {
+                this.segments.removeFirst();
+                segment.delete();
+                continue;
+            }
+            return null;
+        }
+    }
+
+
+
+
+    /**
+     * Tells whether there are no records in the queue.
+     */
+    public boolean isEmpty()
+    {
+        return this.recordCount == 0;
+    }
+
+
+
+
+    /**
+     * Returns the number of records in the queue.
+     */
+    public long size()
+    {
+        return this.recordCount;
+    }
+
+
+
+
+    /**
+     * Returns the directory the segment files are kept in.
+     */
+    public File getDirectory()
+    {
+        return this.directory;
+    }
+
+
+
+
+    /**
+     * Flushes all segments to disk and releases their files. Unread records stay on disk and are recovered by the next queue opened on the same directory. Records appended afterwards are rejected.
+     */
+    @Override
+    public synchronized void close()
+    {
+        this.closed = true;
+        for (final Segment segment : this.segments)
+        {
+            segment.close();
+        }
+        this.segments.clear();
+    }
+
+
+
+
+    /**
+     * Releases the mapping of a buffer right away, so the disk space of a deleted segment is freed and open file handles do not pile up. The buffer must not be accessed afterwards. If the mapping cannot be released explicitly, it is released
+     * once the buffer is garbage collected.
+     */
+    private static void unmap(final MappedByteBuffer buffer)
+    {
+        try
+        {
+            if (INVOKE_CLEANER != null)
+            {
+                INVOKE_CLEANER.invoke(UNSAFE, buffer);
+            }
+            else
+            {
+                // Java 8
+                final Method cleanerMethod = buffer.getClass().getMethod("cleaner");
+                cleanerMethod.setAccessible(true);
+                final Object cleaner = cleanerMethod.invoke(buffer);
+                if (cleaner != null)
+                {
+                    cleaner.getClass().getMethod("clean").invoke(cleaner);
+                }
+            }
+        }
+        catch (final Exception ex)
+        {
+            assert true; // released by the garbage collector
+        }
+    }
+
+
+
+
+    /**
+     * A single memory-mapped segment file.
+     */
+    private final class Segment
+    {
+        private final File             file;
+        private final long             id;
+        private final RandomAccessFile randomAccessFile;
+        private final MappedByteBuffer buffer;
+        private int                    writePosition;
+        private int                    readPosition;
+        private boolean                sealed;
+
+
+
+
+        Segment(final File file, final long id) throws IOException
+        {
+            this.file = file;
+            this.id = id;
+            this.randomAccessFile = new RandomAccessFile(file, "rw");
+            try
+            {
+                final int size = (int) Math.max(this.randomAccessFile.length(), SpillQueue.this.segmentSize);
+                this.buffer = this.randomAccessFile.getChannel().map(FileChannel.MapMode.READ_WRITE, 0, size);
+            }
+            catch (final IOException ex)
+            {
+                this.randomAccessFile.close();
+                throw ex;
+            }
+        }
+
+
+
+
+        /**
+         * Scans a segment of a previous run, returns the number of records in it. Recovered segments are never written to again.
+         */
+        int recover()
+        {
+            this.sealed = true;
+            int records = 0;
+            int position = 0;
+            while (position + LENGTH_SIZE <= this.buffer.capacity())
+            {
+                final int length = this.buffer.getInt(position);
+                if (length == 0 || position + LENGTH_SIZE + Math.abs(length) > this.buffer.capacity())
+                {
+                    break;
+                }
+                position += LENGTH_SIZE + Math.abs(length);
+                if (length < 0)
+                {
+                    this.readPosition = position;
+                }
+                else
+                {
+                    records++;
+                }
+            }
+            this.writePosition = position;
+            return records;
+        }
+
+
+
+
+        boolean hasRoomFor(final int length)
+        {
+            return !this.sealed && this.writePosition + LENGTH_SIZE + length + LENGTH_SIZE <= this.buffer.capacity();
+        }
+
+
+
+
+        void write(final byte[] record)
+        {
+            // payload first, length last, so that a torn write is never mistaken for a record
+            this.buffer.position(this.writePosition + LENGTH_SIZE);
+            this.buffer.put(record);
+            this.buffer.putInt(this.writePosition, record.length);
+            this.writePosition += LENGTH_SIZE + record.length;
+        }
+
+
+
+
+        byte[] read()
+        {
+            if (this.readPosition >= this.writePosition)
+            {
+                return null;
+            }
+            final int length = this.buffer.getInt(this.readPosition);
+            final byte[] record = new byte[length];
+            this.buffer.position(this.readPosition + LENGTH_SIZE);
+            this.buffer.get(record);
+            this.buffer.putInt(this.readPosition, -length);
+            this.readPosition += LENGTH_SIZE + length;
+            return record;
+        }
+
+
+
+
+        void close()
+        {
+            this.buffer.force();
+            unmap(this.buffer);
+            try
+            {
+                this.randomAccessFile.close();
+            }
+            catch (final IOException ex)
+            {
+                assert true; // nothing left to do
+            }
+        }
+
+
+
+
+        void delete()
+        {
+            unmap(this.buffer);
+            try
+            {
+                this.randomAccessFile.close();
+            }
+            catch (final IOException ex)
+            {
+                assert true; // deleted anyway
+            }
+            if (!this.file.delete())
+            {
+                this.file.deleteOnExit();
+            }
+        }
+
+
+
+
+        @Override
+        public String toString()
+        {
+            return "segment " + this.id;
+        }
+    }
+
+}
@@ -0,0 +1,169 @@
+package com.qoomon.logback;
+
+import java.io.ByteArrayInputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.InvalidClassException;
+import java.io.ObjectOutputStream;
+import java.io.ObjectStreamClass;
+import java.io.OutputStream;
+import java.io.Serializable;
+import java.util.List;
+
+import ch.qos.logback.core.net.HardenedObjectInputStream;
+
+/**
+ * Serializes events into the records of a {@link SpillQueue} and back.
+ * <p>
+ * Records are read one at a time and may outlive the process, so every record has to be readable on its own. To keep them small anyway, records carry no stream header and class descriptors are written as class name and serial version
+ * UID only; the reading side takes the rest from the local class. The serializing stream is reused and reset between records.
+ * <p>
+ * Records are deserialized with a {@link HardenedObjectInputStream}, only whitelisted classes and classes of the <code>java.lang</code> and <code>java.util</code> packages are accepted, so a tampered spill file cannot instantiate arbitrary
+ * classes.
+ *
+ * @author bengtbrodersen
+ *
+ */
+final class SpillSerializer
+{
+
+    private final List<String>          whitelist;
+    private final ByteArrayOutputStream bytes = new ByteArrayOutputStream(1024);
+    private SpillOutputStream           out;
+
+
+
+
+    /**
+     * @param whitelist
+     *            names of the classes besides <code>java.lang</code> and <code>java.util</code> ones that may be deserialized
+     */
+    SpillSerializer(final List<String> whitelist)
+    {
+        this.whitelist = whitelist;
+    }
+
+
+
+
+    /**
+     * Serializes an object into a record.
+     */
+    synchronized byte[] serialize(final Serializable object) throws IOException
+    {
+        if (this.out == null)
+        {
+            this.out = new SpillOutputStream(this.bytes);
+        }
+        this.bytes.reset();
+        try
+        {
+            this.out.writeObject(object);
+            this.out.flush();
+            final byte[] record = this.bytes.toByteArray();
+            // forget the objects and classes written so far, the next record must be readable on its own
+            this.out.reset();
+            this.out.flush();
+            return record;
+        }
+        catch (final IOException ex)
+        {
+            // the state of the stream is undefined after a failed write
+            this.out = null;
+            throw ex;
+        }
+    }
+
+
+
+
+    /**
+     * Deserializes a record.
+     */
+    Object deserialize(final byte[] record) throws IOException, ClassNotFoundException
+    {
+        return new SpillInputStream(new ByteArrayInputStream(record), this.whitelist).readObject();
+    }
+
+
+
+
+    private static final class SpillOutputStream extends ObjectOutputStream
+    {
+        SpillOutputStream(final OutputStream out) throws IOException
+        {
+            super(out);
+        }
+
+
+
+
+        @Override
+        protected void writeStreamHeader()
+        {
+            // every record starts without header
+        }
+
+
+
+
+        @Override
+        protected void writeClassDescriptor(final ObjectStreamClass desc) throws IOException
+        {
+            this.writeUTF(desc.getName());
+            this.writeLong(desc.getSerialVersionUID());
+        }
+    }
+
+
+
+
+    private static final class SpillInputStream extends HardenedObjectInputStream
+    {
+        private final List<String> whitelist;
+
+
+
+
+        SpillInputStream(final InputStream in, final List<String> whitelist) throws IOException
+        {
+            super(in, whitelist);
+            this.whitelist = whitelist;
+        }
+
+
+
+
+        @Override
+        protected void readStreamHeader()
+        {
+            // records start without header
+        }
+
+
+
+
+        /**
+         * Looks the descriptor up from the local class. The whitelist is checked before the class is loaded, {@link #resolveClass(ObjectStreamClass)} checks it once more.
+         */
+        @Override
+        protected ObjectStreamClass readClassDescriptor() throws IOException, ClassNotFoundException
+        {
+            final String name = this.readUTF();
+            final long serialVersionUID = this.readLong();
+            if (!name.startsWith("java.lang") && !name.startsWith("java.util") && !this.whitelist.contains(name))
+            {
+                throw new InvalidClassException("Unauthorized deserialization attempt", name);
+            }
+            final ObjectStreamClass desc = ObjectStreamClass.lookupAny(
+                    Class.forName(name, false, SpillSerializer.class.getClassLoader()));
+            if (desc.getSerialVersionUID() != serialVersionUID)
+            {
+                throw new InvalidClassException(name, "spilled by an incompatible version of the class");
+            }
+            return desc;
+        }
+    }
+
+}
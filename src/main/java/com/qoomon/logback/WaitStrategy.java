@@ -0,0 +1,89 @@
+package com.qoomon.logback;
+
+import java.util.concurrent.locks.LockSupport;
+
+/**
+ * Strategies the consumer of a {@link RingBufferQueue} uses to wait for new elements.
+ * <p>
+ * The strategies trade latency for CPU usage, from {@link #SPIN} (lowest latency, burns a core) to {@link #BLOCKING} (highest latency, no CPU while idle).
+ *
+ * @author bengtbrodersen
+ *
+ */
+public enum WaitStrategy
+{
+    /**
+     * Busy spins, re-checking the queue without pausing.
+     */
+    SPIN
+    {
+        @Override
+        void idle()
+        {
+            // busy spin
+        }
+    },
+
+    /**
+     * Yields the processor to other threads between checks.
+     */
+    YIELD
+    {
+        @Override
+        void idle()
+        {
+            Thread.yield();
+        }
+    },
+
+    /**
+     * Parks the waiting thread for a short period between checks.
+     */
+    PARK
+    {
+        @Override
+        void idle()
+        {
+            LockSupport.parkNanos(PARK_NANOS);
+        }
+    },
+
+    /**
+     * Blocks on a condition that is signalled by producers.
+     */
+    BLOCKING
+    {
+        @Override
+        void idle()
+        {
+            LockSupport.parkNanos(PARK_NANOS);
+        }
+    };
+
+    /**
+     * Time a {@link #PARK}ed thread sleeps before re-checking.
+     */
+    static final long PARK_NANOS = 50000L;
+
+
+
+
+    /**
+     * Pauses the waiting thread once. {@link #BLOCKING} waits are handled by the queue itself, this method is only used as a fallback.
+     */
+    abstract void idle();
+
+
+
+
+    /**
+     * Returns the wait strategy with the given (case insensitive) name.
+     *
+     * @throws IllegalArgumentException
+     *             if there is no such strategy
+     */
+    public static WaitStrategy fromName(final String name)
+    {
+        return WaitStrategy.valueOf(name.trim().toUpperCase());
+    }
+}
@@ -0,0 +1,134 @@
+package com.qoomon.logback;
+
+import static com.qoomon.logback.ANSIUtil.BOLD_ON;
+import static com.qoomon.logback.ANSIUtil.ESC_END;
+import static com.qoomon.logback.ANSIUtil.ESC_START;
+import static com.qoomon.logback.ANSIUtil.EXTENDED_BG;
+import static com.qoomon.logback.ANSIUtil.EXTENDED_FG;
+import static com.qoomon.logback.ANSIUtil.GREEN_FG;
+import static com.qoomon.logback.ANSIUtil.RED_BG;
+import static com.qoomon.logback.ANSIUtil.RED_FG;
+import static com.qoomon.logback.ANSIUtil.RESET;
+import static com.qoomon.logback.ANSIUtil.set;
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertSame;
+
+import org.junit.Test;
+
+/**
+ * Compilation of codes into SGR sequences by {@link ANSIUtil#set(String...)}.
+ */
+public class ANSIUtilTest
+{
+
+    @Test
+    public void compilesCodesIntoOneSequence()
+    {
+        assertEquals(sgr("31;41;1"), set(RED_FG, RED_BG, BOLD_ON));
+    }
+
+
+
+
+    @Test
+    public void ignoresBlankCodes()
+    {
+        assertEquals(sgr("31"), set("", RED_FG, " "));
+        assertEquals("", set());
+        assertEquals("", set("", " "));
+    }
+
+
+
+
+    @Test
+    public void dropsCodesBeforeReset()
+    {
+        assertEquals(sgr("0;1"), set(RED_FG, RESET, BOLD_ON));
+        assertEquals(sgr("0"), set(RED_FG, BOLD_ON, RESET));
+    }
+
+
+
+
+    @Test
+    public void keepsRepeatedCodeAtItsLastPosition()
+    {
+        assertEquals(sgr("41;31"), set(RED_FG, RED_BG, RED_FG));
+        assertEquals(sgr("0;1"), set(RED_FG, RESET, BOLD_ON, BOLD_ON));
+    }
+
+
+
+
+    @Test
+    public void splitsCodesWithSeveralParameters()
+    {
+        assertEquals(sgr("31;1"), set("31; 1"));
+        assertEquals(sgr("41;31"), set("31;41", RED_FG));
+    }
+
+
+
+
+    @Test
+    public void keepsIndexedColourZeroApartFromReset()
+    {
+        // the 0 of 38;5;0 is the colour black, not a reset
+        assertEquals(sgr("31;38;5;0"), set(RED_FG, EXTENDED_FG, "5", "0"));
+        assertEquals(sgr("31;38;5;0"), set(RED_FG, "38;5;0"));
+        assertEquals(sgr("0;38;5;0"), set("48;5;0", RESET, "38;5;0"));
+    }
+
+
+
+
+    @Test
+    public void keepsRgbColourTogether()
+    {
+        assertEquals(sgr("1;48;2;0;0;0"), set(BOLD_ON, EXTENDED_BG, "2", "0", "0", "0"));
+        assertEquals(sgr("48;2;10;20;30;32"), set("48;2;10;20;30", GREEN_FG));
+    }
+
+
+
+
+    @Test
+    public void deduplicatesExtendedColoursAsOneCode()
+    {
+        assertEquals(sgr("38;5;1"), set("38;5;1", "38;5;1"));
+        // the same parameter in different colours is no duplicate
+        assertEquals(sgr("38;5;1;48;5;1"), set("38;5;1", "48;5;1"));
+        // a 0 of its own after extended colours is a reset
+        assertEquals(sgr("0"), set("48;5;0", "38;5;0", RESET));
+    }
+
+
+
+
+    @Test
+    public void keepsIncompleteExtendedColour()
+    {
+        assertEquals(sgr("38"), set(EXTENDED_FG));
+        assertEquals(sgr("38;5"), set(EXTENDED_FG, "5"));
+        assertEquals(sgr("38;2;1"), set(EXTENDED_FG, "2", "1"));
+    }
+
+
+
+
+    @Test
+    public void cachesStyles()
+    {
+        assertSame(set(RED_FG, BOLD_ON), set(RED_FG, BOLD_ON));
+    }
+
+
+
+
+    private static String sgr(final String parameters)
+    {
+        return ESC_START + parameters + ESC_END;
+    }
+
+}
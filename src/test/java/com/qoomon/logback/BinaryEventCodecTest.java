@@ -0,0 +1,322 @@
+package com.qoomon.logback;
+
+import static org.junit.Assert.assertArrayEquals;
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertNotNull;
+import static org.junit.Assert.assertNull;
+import static org.junit.Assert.assertSame;
+import static org.junit.Assert.assertTrue;
+import static org.junit.Assert.fail;
+
+import java.io.ByteArrayInputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.IOException;
+import java.io.StreamCorruptedException;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+
+import org.junit.Before;
+import org.junit.Test;
+import org.slf4j.MarkerFactory;
+
+import ch.qos.logback.classic.Level;
+import ch.qos.logback.classic.LoggerContext;
+import ch.qos.logback.classic.spi.ILoggingEvent;
+import ch.qos.logback.classic.spi.IThrowableProxy;
+import ch.qos.logback.classic.spi.LoggingEvent;
+import ch.qos.logback.classic.util.LogbackMDCAdapter;
+
+/**
+ * Round trips of logging events through {@link BinaryEventEncoder} and {@link BinaryEventDecoder}, and streams the decoder must reject.
+ */
+public class BinaryEventCodecTest
+{
+
+    private LoggerContext context;
+
+
+
+
+    @Before
+    public void setUp()
+    {
+        this.context = new LoggerContext();
+        this.context.setName("test");
+        this.context.setMDCAdapter(new LogbackMDCAdapter());
+    }
+
+
+
+
+    @Test
+    public void roundTripsPatternAndArguments() throws IOException
+    {
+        this.context.getMDCAdapter().put("request", "r1");
+        final LoggingEvent event = this.event("a.b.C", Level.WARN, "user {} took {} ms", null, "alice", 42);
+        event.addMarker(MarkerFactory.getMarker("AUDIT"));
+
+        final ILoggingEvent decoded = this.roundTrip(this.newEncoder(), event).get(0);
+
+        assertEquals(Level.WARN, decoded.getLevel());
+        assertEquals("a.b.C", decoded.getLoggerName());
+        assertEquals(Thread.currentThread().getName(), decoded.getThreadName());
+        assertEquals(event.getTimeStamp(), decoded.getTimeStamp());
+        assertEquals("user {} took {} ms", decoded.getMessage());
+        assertArrayEquals(new Object[] { "alice", "42" }, decoded.getArgumentArray());
+        assertEquals("user alice took 42 ms", decoded.getFormattedMessage());
+        assertEquals("r1", decoded.getMDCPropertyMap().get("request"));
+        assertEquals("AUDIT", decoded.getMarkerList().get(0).getName());
+        assertEquals("test", decoded.getLoggerContextVO().getName());
+    }
+
+
+
+
+    @Test
+    public void sendsMutableArgumentsFormatted() throws IOException
+    {
+        final LoggingEvent event = this.event("a", Level.INFO, "list {}", null, new ArrayList<String>(Arrays.asList("x")));
+
+        final ILoggingEvent decoded = this.roundTrip(this.newEncoder(), event).get(0);
+
+        assertEquals("list [x]", decoded.getFormattedMessage());
+        assertNull(decoded.getArgumentArray());
+    }
+
+
+
+
+    @Test
+    public void roundTripsAfterDictionaryEviction() throws IOException
+    {
+        final BinaryEventEncoder encoder = this.newEncoder();
+        encoder.setDictionarySize(2);
+        final List<ILoggingEvent> events = new ArrayList<ILoggingEvent>();
+        for (int i = 0; i < 20; i++)
+        {
+            // more logger names than slots, used again after they have been evicted
+            events.add(this.event("logger" + i % 5, Level.INFO, "message " + i % 3, null));
+        }
+
+        final List<ILoggingEvent> decoded = this.decode(this.encode(encoder, events), 2);
+
+        assertEquals(events.size(), decoded.size());
+        for (int i = 0; i < events.size(); i++)
+        {
+            assertEquals(events.get(i).getLoggerName(), decoded.get(i).getLoggerName());
+            assertEquals(events.get(i).getFormattedMessage(), decoded.get(i).getFormattedMessage());
+        }
+    }
+
+
+
+
+    @Test(expected = StreamCorruptedException.class)
+    public void rejectsDictionaryLargerThanExpected() throws IOException
+    {
+        final List<ILoggingEvent> events = new ArrayList<ILoggingEvent>();
+        for (int i = 0; i < 3; i++)
+        {
+            events.add(this.event("logger" + i, Level.INFO, "message", null));
+        }
+        this.decode(this.encode(this.newEncoder(), events), 2);
+    }
+
+
+
+
+    @Test
+    public void roundTripsThrowables() throws IOException
+    {
+        final Exception cause = new IllegalArgumentException("cause");
+        final Exception exception = new IllegalStateException("failed", cause);
+        exception.addSuppressed(new IOException("suppressed"));
+
+        final IThrowableProxy decoded = this.roundTrip(this.newEncoder(),
+                this.event("a", Level.ERROR, "boom", exception)).get(0).getThrowableProxy();
+
+        assertEquals(IllegalStateException.class.getName(), decoded.getClassName());
+        assertEquals("failed", decoded.getMessage());
+        assertEquals(exception.getStackTrace().length, decoded.getStackTraceElementProxyArray().length);
+        assertEquals("cause", decoded.getCause().getMessage());
+        assertTrue(decoded.getCause().getCommonFrames() > 0);
+        assertEquals("suppressed", decoded.getSuppressed()[0].getMessage());
+    }
+
+
+
+
+    @Test
+    public void roundTripsCyclicThrowables() throws IOException
+    {
+        final Exception first = new IllegalStateException("first");
+        final Exception second = new IllegalArgumentException("second", first);
+        first.initCause(second);
+
+        final IThrowableProxy decoded = this.roundTrip(this.newEncoder(),
+                this.event("a", Level.ERROR, "cycle", first)).get(0).getThrowableProxy();
+
+        assertEquals("first", decoded.getMessage());
+        assertEquals("second", decoded.getCause().getMessage());
+        final IThrowableProxy cycle = decoded.getCause().getCause();
+        assertNotNull(cycle);
+        assertTrue(cycle.isCyclic());
+        assertNull(cycle.getCause());
+    }
+
+
+
+
+    @Test
+    public void truncatesDeeplyNestedThrowables() throws IOException
+    {
+        Exception exception = new Exception("0");
+        for (int i = 1; i < BinaryEventEncoder.MAX_THROWABLE_DEPTH + 10; i++)
+        {
+            exception = new Exception(String.valueOf(i), exception);
+        }
+
+        IThrowableProxy decoded = this.roundTrip(this.newEncoder(),
+                this.event("a", Level.ERROR, "deep", exception)).get(0).getThrowableProxy();
+
+        int depth = 0;
+        for (; decoded != null; decoded = decoded.getCause())
+        {
+            depth++;
+        }
+        assertEquals(BinaryEventEncoder.MAX_THROWABLE_DEPTH, depth);
+    }
+
+
+
+
+    @Test
+    public void rejectsTooDeeplyNestedThrowables() throws IOException
+    {
+        final byte[] event = this.newEncoder().encode(this.event("a", Level.ERROR, "deep", null));
+        final ByteArrayOutputStream stream = new ByteArrayOutputStream();
+        stream.write(this.newEncoder().headerBytes());
+        // the event without its last byte, the empty throwable
+        stream.write(event, 0, event.length - 1);
+        final int depth = BinaryEventEncoder.MAX_THROWABLE_DEPTH + 1;
+        for (int i = 0; i < depth; i++)
+        {
+            // throwable, null class name, null message, no frames, no common frames, then the cause
+            stream.write(new byte[] { BinaryEventEncoder.THROWABLE, 0, 0, 0, 0 });
+        }
+        stream.write(BinaryEventEncoder.THROWABLE_NONE);
+        for (int i = 0; i < depth; i++)
+        {
+            // no suppressed exceptions
+            stream.write(0);
+        }
+
+        try
+        {
+            this.decode(stream.toByteArray(), BinaryEventEncoder.DEFAULT_DICTIONARY_SIZE);
+            fail("decoded a throwable nested " + depth + " deep");
+        }
+        catch (final StreamCorruptedException ex)
+        {
+            assertTrue(ex.getMessage().contains(String.valueOf(BinaryEventEncoder.MAX_THROWABLE_DEPTH)));
+        }
+    }
+
+
+
+
+    @Test(expected = StreamCorruptedException.class)
+    public void rejectsForeignStreams() throws IOException
+    {
+        this.decode("not a binary event stream".getBytes("UTF-8"), BinaryEventEncoder.DEFAULT_DICTIONARY_SIZE);
+    }
+
+
+
+
+    @Test
+    public void readsEmptyStream() throws IOException
+    {
+        assertNull(new BinaryEventDecoder(new ByteArrayInputStream(new byte[0])).readEvent());
+    }
+
+
+
+
+    @Test
+    public void startsNewDictionaryWithEveryHeader() throws IOException
+    {
+        final BinaryEventEncoder encoder = this.newEncoder();
+        final ILoggingEvent event = this.event("a", Level.INFO, "message", null);
+        this.encode(encoder, Arrays.asList(event));
+
+        // a second stream of the same encoder defines its strings again
+        final List<ILoggingEvent> decoded = this.roundTrip(encoder, event);
+
+        assertEquals("a", decoded.get(0).getLoggerName());
+        assertSame(Level.INFO, decoded.get(0).getLevel());
+    }
+
+
+
+
+    private BinaryEventEncoder newEncoder()
+    {
+        final BinaryEventEncoder encoder = new BinaryEventEncoder();
+        encoder.setContext(this.context);
+        encoder.start();
+        return encoder;
+    }
+
+
+
+
+    private LoggingEvent event(final String logger, final Level level, final String message, final Throwable throwable,
+            final Object... arguments)
+    {
+        final LoggingEvent event = new LoggingEvent(BinaryEventCodecTest.class.getName(), this.context.getLogger(logger),
+                level, message, throwable, arguments.length == 0 ? null : arguments);
+        event.prepareForDeferredProcessing();
+        return event;
+    }
+
+
+
+
+    private List<ILoggingEvent> roundTrip(final BinaryEventEncoder encoder, final ILoggingEvent event) throws IOException
+    {
+        return this.decode(this.encode(encoder, Arrays.asList(event)), BinaryEventEncoder.DEFAULT_DICTIONARY_SIZE);
+    }
+
+
+
+
+    private byte[] encode(final BinaryEventEncoder encoder, final List<? extends ILoggingEvent> events) throws IOException
+    {
+        final ByteArrayOutputStream stream = new ByteArrayOutputStream();
+        stream.write(encoder.headerBytes());
+        for (final ILoggingEvent event : events)
+        {
+            stream.write(encoder.encode(event));
+        }
+        stream.write(encoder.footerBytes());
+        return stream.toByteArray();
+    }
+
+
+
+
+    private List<ILoggingEvent> decode(final byte[] stream, final int dictionarySize) throws IOException
+    {
+        final BinaryEventDecoder decoder = new BinaryEventDecoder(new ByteArrayInputStream(stream), dictionarySize);
+        final List<ILoggingEvent> events = new ArrayList<ILoggingEvent>();
+        ILoggingEvent event;
+        while ((event = decoder.readEvent()) != null)
+        {
+            events.add(event);
+        }
+        return events;
+    }
+
+}
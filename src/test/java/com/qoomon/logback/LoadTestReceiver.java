@@ -0,0 +1,420 @@
+package com.qoomon.logback;
+
+import java.io.FilterInputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.net.ServerSocket;
+import java.net.Socket;
+import java.net.SocketException;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.zip.InflaterInputStream;
+
+import ch.qos.logback.classic.spi.ILoggingEvent;
+
+/**
+ * A receiver that stands in for a log collector in load and fault tests of socket appenders on the local machine. It decodes the streams of its clients, counts events and bytes and measures the latency from the timestamp of an event until
+ * it has been received. Events are discarded.
+ * <p>
+ * Streams of appenders with a {@link BinaryEventEncoder} are decoded into events; other streams are expected to be text and count an event per line, without latency. Faults are injected per connection: reads are throttled to
+ * <b>readRate</b> bytes per second, paused for <b>pauseFor</b> milliseconds every <b>pauseEvery</b> milliseconds, and the connection is reset after <b>resetAfter</b> bytes.
+ */
+public class LoadTestReceiver extends Thread
+{
+
+    private final ServerSocket     serverSocket;
+    private final boolean          inflate;
+    private final boolean          binary;
+    private long                   readRate;
+    private long                   resetAfter;
+    private long                   pauseEvery;
+    private long                   pauseFor;
+
+    private final AtomicLong       connections = new AtomicLong();
+    private final AtomicLong       resets      = new AtomicLong();
+    private final AtomicLong       events      = new AtomicLong();
+    private final AtomicLong       bytes       = new AtomicLong();
+    private final LatencyHistogram latency     = new LatencyHistogram();
+
+
+
+
+    /**
+     * Usage: <code>LoadTestReceiver [port] [deflate] [binary] [readRate=bytes/s] [resetAfter=bytes] [pauseEvery=ms] [pauseFor=ms] [report=ms]</code>
+     * <p>
+     * Prints the event and byte rates and the latency histogram every <code>report</code> milliseconds, every second by default.
+     */
+    public static void main(final String[] args) throws Exception
+    {
+        final int port = args.length > 0 ? Integer.parseInt(args[0]) : 5516;
+        boolean inflate = false;
+        boolean binary = false;
+        long readRate = 0;
+        long resetAfter = 0;
+        long pauseEvery = 0;
+        long pauseFor = 0;
+        long report = 1000;
+        for (int i = 1; i < args.length; i++)
+        {
+            final String arg = args[i];
+            if (arg.equals(AbstractSocketAppender.COMPRESSION_DEFLATE))
+            {
+                inflate = true;
+            }
+            else if (arg.equals("binary"))
+            {
+                binary = true;
+            }
+            else if (arg.startsWith("readRate="))
+            {
+                readRate = Long.parseLong(arg.substring("readRate=".length()));
+            }
+            else if (arg.startsWith("resetAfter="))
+            {
+                resetAfter = Long.parseLong(arg.substring("resetAfter=".length()));
+            }
+            else if (arg.startsWith("pauseEvery="))
+            {
+                pauseEvery = Long.parseLong(arg.substring("pauseEvery=".length()));
+            }
+            else if (arg.startsWith("pauseFor="))
+            {
+                pauseFor = Long.parseLong(arg.substring("pauseFor=".length()));
+            }
+            else if (arg.startsWith("report="))
+            {
+                report = Long.parseLong(arg.substring("report=".length()));
+            }
+            else
+            {
+                throw new IllegalArgumentException("unknown option: " + arg);
+            }
+        }
+
+        final LoadTestReceiver receiver = new LoadTestReceiver(port, inflate, binary);
+        receiver.setReadRate(readRate);
+        receiver.setResetAfter(resetAfter);
+        receiver.setPause(pauseEvery, pauseFor);
+        receiver.start();
+        System.out.println("receiving on port " + receiver.getLocalPort());
+
+        long lastEvents = 0;
+        long lastBytes = 0;
+        while (true)
+        {
+            Thread.sleep(report);
+            final long events = receiver.getEventCount();
+            final long bytes = receiver.getByteCount();
+            System.out.println((events - lastEvents) * 1000 / report + " events/s, " + (bytes - lastBytes) * 1000 / report
+                    + " bytes/s, " + receiver.getConnectionCount() + " connections, " + receiver.getResetCount()
+                    + " resets, latency " + receiver.getLatency());
+            lastEvents = events;
+            lastBytes = bytes;
+        }
+    }
+
+
+
+
+    /**
+     * @param port
+     *            the port to listen on, 0 for any free port, see {@link #getLocalPort()}
+     * @param inflate
+     *            whether the clients compress their streams with <code>compression=deflate</code>
+     * @param binary
+     *            whether the clients encode their events with a {@link BinaryEventEncoder}
+     */
+    public LoadTestReceiver(final int port, final boolean inflate, final boolean binary) throws IOException
+    {
+        super("LoadTestReceiver-" + port);
+        this.setDaemon(true);
+        this.serverSocket = new ServerSocket(port);
+        this.inflate = inflate;
+        this.binary = binary;
+    }
+
+
+
+
+    /**
+     * Throttles the reads of every connection to the given number of bytes per second, 0 to read as fast as possible.
+     */
+    public void setReadRate(final long readRate)
+    {
+        this.readRate = readRate;
+    }
+
+
+
+
+    /**
+     * Resets every connection after it has received the given number of bytes, 0 to never reset.
+     */
+    public void setResetAfter(final long resetAfter)
+    {
+        this.resetAfter = resetAfter;
+    }
+
+
+
+
+    /**
+     * Stops reading every connection for <code>pauseFor</code> milliseconds every <code>pauseEvery</code> milliseconds, 0 to never pause.
+     */
+    public void setPause(final long pauseEvery, final long pauseFor)
+    {
+        this.pauseEvery = pauseEvery;
+        this.pauseFor = pauseFor;
+    }
+
+
+
+
+    public int getLocalPort()
+    {
+        return this.serverSocket.getLocalPort();
+    }
+
+
+
+
+    /**
+     * Returns the number of accepted connections.
+     */
+    public long getConnectionCount()
+    {
+        return this.connections.get();
+    }
+
+
+
+
+    /**
+     * Returns the number of connections reset by fault injection.
+     */
+    public long getResetCount()
+    {
+        return this.resets.get();
+    }
+
+
+
+
+    /**
+     * Returns the number of received events.
+     */
+    public long getEventCount()
+    {
+        return this.events.get();
+    }
+
+
+
+
+    /**
+     * Returns the number of received bytes, as sent over the wire.
+     */
+    public long getByteCount()
+    {
+        return this.bytes.get();
+    }
+
+
+
+
+    /**
+     * Returns the latencies from the timestamps of the received events until their receipt, of binary streams only. Event timestamps have millisecond resolution, so latencies below a millisecond are recorded as zero.
+     */
+    public LatencyHistogram getLatency()
+    {
+        return this.latency;
+    }
+
+
+
+
+    /**
+     * Stops accepting connections. Connections already accepted end when their clients close them.
+     */
+    public void close() throws IOException
+    {
+        this.serverSocket.close();
+    }
+
+
+
+
+    @Override
+    public void run()
+    {
+        try
+        {
+            while (true)
+            {
+                final Socket socket = this.serverSocket.accept();
+                this.connections.incrementAndGet();
+                final Thread node = new Thread(new Runnable()
+                {
+                    @Override
+                    public void run()
+                    {
+                        LoadTestReceiver.this.receive(socket);
+                    }
+                }, "LoadTestReceiverNode-" + socket.getRemoteSocketAddress());
+                node.setDaemon(true);
+                node.start();
+            }
+        }
+        catch (final IOException ex)
+        {
+            assert true; // closed
+        }
+    }
+
+
+
+
+    private void receive(final Socket socket)
+    {
+        try
+        {
+            final FaultInjectingInputStream raw = new FaultInjectingInputStream(socket);
+            final InputStream in = this.inflate ? new InflaterInputStream(raw) : raw;
+            if (this.binary)
+            {
+                final BinaryEventDecoder decoder = new BinaryEventDecoder(in);
+                ILoggingEvent event;
+                while ((event = decoder.readEvent()) != null)
+                {
+                    this.events.incrementAndGet();
+                    this.latency.record(TimeUnit.MILLISECONDS.toNanos(System.currentTimeMillis() - event.getTimeStamp()));
+                }
+            }
+            else
+            {
+                final byte[] buffer = new byte[8192];
+                int read;
+                while ((read = in.read(buffer)) >= 0)
+                {
+                    for (int i = 0; i < read; i++)
+                    {
+                        if (buffer[i] == '\n')
+                        {
+                            this.events.incrementAndGet();
+                        }
+                    }
+                }
+            }
+        }
+        catch (final IOException ex)
+        {
+            assert true; // reset or failed, the client reconnects
+        }
+        finally
+        {
+            try
+            {
+                socket.close();
+            }
+            catch (final IOException ex)
+            {
+                assert true; // closing anyway
+            }
+        }
+    }
+
+
+
+
+    /**
+     * Counts the bytes read from a socket and injects the configured faults.
+     */
+    private final class FaultInjectingInputStream extends FilterInputStream
+    {
+        private final Socket socket;
+        private final long   start = System.nanoTime();
+        private long         received;
+        private long         nextPause;
+
+
+
+
+        FaultInjectingInputStream(final Socket socket) throws IOException
+        {
+            super(socket.getInputStream());
+            this.socket = socket;
+            this.nextPause = LoadTestReceiver.this.pauseEvery > 0 ?
+                    this.start + TimeUnit.MILLISECONDS.toNanos(LoadTestReceiver.this.pauseEvery) : Long.MAX_VALUE;
+        }
+
+
+
+
+        @Override
+        public int read() throws IOException
+        {
+            final byte[] b = new byte[1];
+            return this.read(b, 0, 1) < 0 ? -1 : b[0] & 0xff;
+        }
+
+
+
+
+        @Override
+        public int read(final byte[] b, final int off, final int len) throws IOException
+        {
+            this.injectFaults();
+            final long readRate = LoadTestReceiver.this.readRate;
+            // read in small steps, so throttling does not turn into bursts
+            final int max = readRate > 0 ? (int) Math.max(1, Math.min(len, readRate / 100)) : len;
+            final int read = super.read(b, off, max);
+            if (read > 0)
+            {
+                this.received += read;
+                LoadTestReceiver.this.bytes.addAndGet(read);
+            }
+            return read;
+        }
+
+
+
+
+        private void injectFaults() throws IOException
+        {
+            final long resetAfter = LoadTestReceiver.this.resetAfter;
+            if (resetAfter > 0 && this.received >= resetAfter)
+            {
+                LoadTestReceiver.this.resets.incrementAndGet();
+                // closing with a zero linger timeout sends a RST instead of a FIN
+                this.socket.setSoLinger(true, 0);
+                this.socket.close();
+                throw new SocketException("reset by fault injection");
+            }
+            try
+            {
+                final long now = System.nanoTime();
+                if (now - this.nextPause >= 0)
+                {
+                    Thread.sleep(LoadTestReceiver.this.pauseFor);
+                    this.nextPause = System.nanoTime() + TimeUnit.MILLISECONDS.toNanos(LoadTestReceiver.this.pauseEvery);
+                }
+                final long readRate = LoadTestReceiver.this.readRate;
+                if (readRate > 0)
+                {
+                    final long due = this.start + (long) (this.received * 1e9 / readRate);
+                    final long ahead = due - System.nanoTime();
+                    if (ahead > 0)
+                    {
+                        TimeUnit.NANOSECONDS.sleep(ahead);
+                    }
+                }
+            }
+            catch (final InterruptedException ex)
+            {
+                Thread.currentThread().interrupt();
+                throw new IOException("interrupted", ex);
+            }
+        }
+    }
+
+}
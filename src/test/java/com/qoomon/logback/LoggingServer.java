@@ -1,15 +1,225 @@
 package com.qoomon.logback;
 
+import java.io.IOException;
+import java.io.InputStream;
+import java.net.InetAddress;
+import java.net.ServerSocket;
+import java.net.Socket;
+import java.util.Arrays;
+import java.util.List;
+import java.util.zip.InflaterInputStream;
+
+import javax.net.ServerSocketFactory;
+
+import ch.qos.logback.classic.Logger;
 import ch.qos.logback.classic.LoggerContext;
 import ch.qos.logback.classic.net.SimpleSocketServer;
+import ch.qos.logback.classic.spi.ILoggingEvent;
 
 public class LoggingServer
 {
 
-    public static void main(final String[] args)
+    /**
+     * Usage: <code>LoggingServer [port] [deflate] [binary]</code>
+     * <p>
+     * With <code>deflate</code> the server inflates the streams of appenders configured with <code>compression=deflate</code>. With <code>binary</code> it reads the streams of appenders configured with a {@link BinaryEventEncoder}.
+     */
+    public static void main(final String[] args) throws IOException
     {
+        final int port = args.length > 0 ? Integer.parseInt(args[0]) : 5516;
+        final List<String> options = Arrays.asList(args).subList(Math.min(args.length, 1), args.length);
+        final boolean inflate = options.contains(AbstractSocketAppender.COMPRESSION_DEFLATE);
+
         final LoggerContext lc = new LoggerContext();
-        final SimpleSocketServer simpleSocketServer = new SimpleSocketServer(lc, 5516);
+        if (options.contains("binary"))
+        {
+            new BinarySocketServer(lc, port, inflate).start();
+            return;
+        }
+        final SimpleSocketServer simpleSocketServer = inflate ?
+                new InflatingSocketServer(lc, port) : new SimpleSocketServer(lc, port);
         simpleSocketServer.start();
     }
+
+
+
+
+    /**
+     * Accepts the connections of socket appenders with a {@link BinaryEventEncoder} and passes the decoded events on to the loggers of its context, like {@link SimpleSocketServer} does with serialized events.
+     */
+    static class BinarySocketServer extends Thread
+    {
+        private final LoggerContext lc;
+        private final ServerSocket  serverSocket;
+        private final boolean       inflate;
+
+
+
+
+        BinarySocketServer(final LoggerContext lc, final int port, final boolean inflate) throws IOException
+        {
+            super("BinarySocketServer-" + port);
+            this.lc = lc;
+            this.serverSocket = new ServerSocket(port);
+            this.inflate = inflate;
+        }
+
+
+
+
+        @Override
+        public void run()
+        {
+            try
+            {
+                while (true)
+                {
+                    final Socket socket = this.serverSocket.accept();
+                    final Thread node = new Thread(new Runnable()
+                    {
+                        @Override
+                        public void run()
+                        {
+                            BinarySocketServer.this.receive(socket);
+                        }
+                    }, "BinarySocketNode-" + socket.getRemoteSocketAddress());
+                    node.setDaemon(true);
+                    node.start();
+                }
+            }
+            catch (final IOException ex)
+            {
+                System.err.println("server stopped: " + ex);
+            }
+        }
+
+
+
+
+        private void receive(final Socket socket)
+        {
+            try
+            {
+                final InputStream in = this.inflate ?
+                        new InflaterInputStream(socket.getInputStream()) : socket.getInputStream();
+                final BinaryEventDecoder decoder = new BinaryEventDecoder(in);
+                ILoggingEvent event;
+                while ((event = decoder.readEvent()) != null)
+                {
+                    final Logger remoteLogger = this.lc.getLogger(event.getLoggerName());
+                    if (remoteLogger.isEnabledFor(event.getLevel()))
+                    {
+                        remoteLogger.callAppenders(event);
+                    }
+                }
+            }
+            catch (final IOException ex)
+            {
+                System.err.println(socket.getRemoteSocketAddress() + " closed: " + ex);
+            }
+            finally
+            {
+                try
+                {
+                    socket.close();
+                }
+                catch (final IOException ex)
+                {
+                    assert true; // closing anyway
+                }
+            }
+        }
+    }
+
+
+
+
+    /**
+     * A {@link SimpleSocketServer} that inflates the streams of its clients.
+     */
+    static class InflatingSocketServer extends SimpleSocketServer
+    {
+
+        InflatingSocketServer(final LoggerContext lc, final int port)
+        {
+            super(lc, port);
+        }
+
+
+
+
+        @Override
+        protected ServerSocketFactory getServerSocketFactory()
+        {
+            return new ServerSocketFactory()
+            {
+                @Override
+                public ServerSocket createServerSocket(final int port) throws IOException
+                {
+                    return new InflatingServerSocket(port);
+                }
+
+
+
+
+                @Override
+                public ServerSocket createServerSocket(final int port, final int backlog) throws IOException
+                {
+                    return new InflatingServerSocket(port);
+                }
+
+
+
+
+                @Override
+                public ServerSocket createServerSocket(final int port, final int backlog, final InetAddress address)
+                        throws IOException
+                {
+                    return new InflatingServerSocket(port);
+                }
+            };
+        }
+    }
+
+
+
+
+    /**
+     * A server socket whose accepted sockets return inflating input streams.
+     */
+    static class InflatingServerSocket extends ServerSocket
+    {
+
+        InflatingServerSocket(final int port) throws IOException
+        {
+            super(port);
+        }
+
+
+
+
+        @Override
+        public Socket accept() throws IOException
+        {
+            final Socket socket = new Socket()
+            {
+                private InputStream inputStream;
+
+
+
+
+                @Override
+                public synchronized InputStream getInputStream() throws IOException
+                {
+                    if (this.inputStream == null)
+                    {
+                        this.inputStream = new InflaterInputStream(super.getInputStream());
+                    }
+                    return this.inputStream;
+                }
+            };
+            this.implAccept(socket);
+            return socket;
+        }
+    }
 }